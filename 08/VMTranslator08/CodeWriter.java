@@ -1,11 +1,14 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Writes assembly code from VM commands.
@@ -14,7 +17,7 @@ public class CodeWriter {
   /**
    * The output file in which we write assembly code
    */
-  private FileWriter output;
+  private Writer output;
 
   /**
    * The name of the current file. Used by methods with the <code>static</code> segment
@@ -31,6 +34,17 @@ public class CodeWriter {
    */
   private Map<String, String> arithSymbols;
 
+  /**
+   * The jumps used by the fused compare-and-branch commands
+   */
+  private Map<String, String> cmpJumps;
+
+  /**
+   * What each in-place update command does to the variable (in
+   * <code>M</code>), given the popped value (in <code>D</code>)
+   */
+  private Map<String, String> inPlaceOps;
+
   /**
    * Some asm code
    */
@@ -55,10 +69,59 @@ public class CodeWriter {
   private int callCount;
 
   /**
-   * Taking a <code>FileWriter</code> as input, set up all necessary stuff
+   * The most locals that a function can have for them to be zeroed without a
+   * loop
+   */
+  private static final int MAX_UNROLLED_LOCALS = 8;
+
+  /**
+   * The same as <code>MAX_UNROLLED_LOCALS</code>, for compact functions. This
+   * is as far as unrolling is no bigger than the loop
+   */
+  private static final int MAX_COMPACT_UNROLLED_LOCALS = 2;
+
+  /**
+   * Picks the <code>local</code> and <code>argument</code> slots that live in
+   * registers, or <code>null</code> if they always live in the stack frame
+   */
+  private RegisterAllocator registerAllocator;
+
+  /**
+   * The slots of the current function that live in registers
+   */
+  private RegisterAllocator.Allocation allocation = new RegisterAllocator.Allocation();
+
+  /**
+   * Picks the functions that get fast code, or <code>null</code> if every
+   * function does
+   */
+  private ProfileGuide profileGuide;
+
+  /**
+   * The shared routines that compact functions use, by label, along with the
+   * template of each. Only the ones that end up used are written
+   */
+  private Map<String, String> sharedRoutines;
+  private Set<String> usedRoutines = new HashSet<String>();
+
+  /**
+   * What the comments that say where the code after them comes from start
+   * with. <code>//# Main 12</code> is followed by the code for the VM command
+   * of <code>Main.vm</code> at index 12, and a bare <code>//#</code> by code
+   * that doesn't come from any command
+   */
+  public static final String SOURCE_MARKER = "//#";
+
+  /**
+   * Whether source markers are written
+   */
+  private boolean sourceMarkers = false;
+
+  /**
+   * Taking a <code>Writer</code> as input, set up all necessary stuff
    * @param outFile
    */
-  public CodeWriter(FileWriter outFile) {
+  public CodeWriter(Writer outFile) {
     output = outFile;
 
     cmpCount = 0;
@@ -75,7 +138,31 @@ public class CodeWriter {
     arithSymbols.put("and", "&" );
     arithSymbols.put("or" , "|" );
     arithSymbols.put("not", "!" );
+
+    // Set up compare-and-branch jumps
+    cmpJumps = new HashMap<String, String>();
+    cmpJumps.put("lt", "JLT");
+    cmpJumps.put("gt", "JGT");
+    cmpJumps.put("eq", "JEQ");
+    cmpJumps.put("ge", "JGE");
+    cmpJumps.put("le", "JLE");
+    cmpJumps.put("ne", "JNE");
     
+    // Set up in-place updates
+    inPlaceOps = new HashMap<String, String>();
+    inPlaceOps.put("inc"   , "M+1");
+    inPlaceOps.put("dec"   , "M-1");
+    inPlaceOps.put("add-to", "D+M");
+    inPlaceOps.put("sub-to", "M-D");
+    inPlaceOps.put("and-to", "D&M");
+    inPlaceOps.put("or-to" , "D|M");
+
+    // Set up shared routines
+    sharedRoutines = new LinkedHashMap<String, String>();
+    sharedRoutines.put("$CALL"       , "callRoutine");
+    sharedRoutines.put("$RETURN"     , "return"     );
+    sharedRoutines.put("$RETURN_VOID", "return-void");
+
     // Set up base addresses. A value of zero means that it doesn't matter
     segIndices = new HashMap<String,String>();
     segIndices.put("argument", "ARG" );
@@ -92,11 +179,13 @@ public class CodeWriter {
       asmCodez = new HashMap<String, String>();
       String[] asmFiles = new String[] {
         "bootstrap",
-        "seg", "fixedIndex", "const", "static",
-        "push", "pop",
-        "unaryOp", "binaryOp", "cmp",
-        "label", "goto", "if-goto",
-        "call", "return", "function"
+        "seg", "fixedIndex", "const", "smallConst", "static",
+        "push", "pop", "inPlace", "inPlaceOp",
+        "pushRegister", "popRegister", "loadRegister", "saveRegister", "clearRegister",
+        "unaryOp", "binaryOp", "cmp", "aload", "astore",
+        "label", "goto", "if-goto", "if-cmp",
+        "call", "return", "return-void", "function", "localsUnrolled", "localsLoop",
+        "callShared", "returnShared", "callRoutine"
       };
 
       for (String fileName : asmFiles) {
@@ -109,6 +198,115 @@ public class CodeWriter {
     }
   }
 
+  /**
+   * Keeps some <code>local</code> and <code>argument</code> slots of each
+   * function in registers, as picked by a <code>RegisterAllocator</code> that
+   * has already read all of the VM files
+   * @param registerAllocator The allocator to use
+   */
+  public void setRegisterAllocator(RegisterAllocator registerAllocator) {
+    this.registerAllocator = registerAllocator;
+  }
+
+  /**
+   * Keeps the functions that a <code>ProfileGuide</code> doesn't pick compact.
+   * Functions are only fast if the guide says so
+   * @param profileGuide The guide to use, which has already made its plan
+   */
+  public void setProfileGuide(ProfileGuide profileGuide) {
+    this.profileGuide = profileGuide;
+  }
+
+  /**
+   * Has the code for each VM command start with a source marker, so that a
+   * source map can be made from the code once it's done (see
+   * <code>SOURCE_MARKER</code>)
+   */
+  public void setSourceMarkers(boolean sourceMarkers) {
+    this.sourceMarkers = sourceMarkers;
+  }
+
+  /**
+   * Writes a source marker, if they are being written
+   * @param commandIndex The index of the VM command in the current file
+   *                     (leaving out comments and blank lines), or -1 if the
+   *                     code doesn't come from a VM command
+   */
+  public void writeSourceMarker(int commandIndex) {
+    if (!sourceMarkers) {
+      return;
+    }
+    try {
+      output.write(commandIndex == -1 ? SOURCE_MARKER + "\n"
+          : String.format("%s %s %d\n", SOURCE_MARKER, currentFileName, commandIndex));
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
+  private boolean isFast(String functionName) {
+    return profileGuide == null || profileGuide.isFast(functionName);
+  }
+
+  /**
+   * Counts the instructions in some assembly code, leaving out comments and
+   * labels
+   * @param code The code to count
+   * @return The number of words it takes in ROM
+   */
+  public static int countInstructions(String code) {
+    int count = 0;
+    for (String line : code.split("\n")) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("//") && !line.startsWith("(")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Gets the number of words that the code from a template takes
+   * @param template The name of the template, e.g. <code>call</code>
+   */
+  public int templateSize(String template) {
+    return countInstructions(asmCodez.get(template));
+  }
+
+  /**
+   * Gets the number of words it takes to zero some locals
+   * @param numLocals The number of locals
+   * @param fast Whether the function is fast
+   */
+  public int localsSize(int numLocals, boolean fast) {
+    return countInstructions(localsCode("f", numLocals, fast ? Integer.MAX_VALUE : MAX_COMPACT_UNROLLED_LOCALS));
+  }
+
+  /**
+   * Writes code that moves a slot in or out of its register, or pushes or
+   * pops it
+   * @param template The name of the register template to use
+   * @param slot The slot, e.g. <code>local 2</code>
+   */
+  private void writeRegisterCode(String template, String slot) {
+    String[] slotChunks = slot.split(" ");
+
+    // Write code to file
+    Object[] codeArgs = new Object[] {
+      slotChunks[0], slotChunks[1],
+      Integer.toString(allocation.registers.get(slot)),
+      segIndices.get(slotChunks[0])
+    };
+    String code = MessageFormat.format(asmCodez.get(template), codeArgs);
+    try {
+      output.write(code);
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
   /**
    * Informs the <code>CodeWriter</code> that we are now on a new file
    * @param fileName The name of the new file, stripped of the <code>.vm</code> extension
@@ -151,6 +349,9 @@ public class CodeWriter {
         code = asmCodez.get("cmp");
         cmpCount++;
         break;
+      case "aload": case "astore": // Indexed array access (VM extension)
+        code = asmCodez.get(command);
+        break;
       default:
         // This shouldn't happen
         break;
@@ -176,13 +377,20 @@ public class CodeWriter {
    * @param index The index of the segment
    */
   public void writePushPop(Parser.CommandType command, String segment, int index) {
+    String slot = segment + " " + index;
+    if (allocation.registers.containsKey(slot)) {
+      writeRegisterCode(command == Parser.CommandType.C_PUSH ? "pushRegister" : "popRegister", slot);
+      return;
+    }
+    if (segment.equals("constant")) {
+      writePushConstant(index);
+      return;
+    }
+
     String code = "";
 
     // Generate code for getting memory addresses
     switch (segment) {
-      case "constant":
-        code = asmCodez.get("const");
-        break;
       case "static":
         code = asmCodez.get("static");
         break;
@@ -223,6 +431,83 @@ public class CodeWriter {
     }
   }
 
+  /**
+   * Writes code that pushes a constant. Unlike <code>push constant</code>,
+   * this can push negative numbers too. 0, 1 and -1 are written straight to
+   * the top of the stack, since the Hack ALU can make them without the
+   * <code>A</code> register.
+   * @param value The constant to push
+   */
+  public void writePushConstant(int value) {
+    String code;
+    if (value >= -1 && value <= 1) {
+      code = MessageFormat.format(asmCodez.get("smallConst"), Integer.toString(value));
+    } else {
+      Object[] codeArgs = new Object[] {
+        Integer.toString(value), Integer.toString(Math.abs(value)), value < 0 ? "-" : ""
+      };
+      code = MessageFormat.format(asmCodez.get("const"), codeArgs);
+    }
+    try {
+      output.write(code);
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes an in-place update of a variable, like <code>inc local 2</code> or
+   * <code>add-to static 0</code>. The variable is changed right where it is in
+   * memory, instead of being pushed, worked on, and popped back.
+   * @param command The update (<code>inc</code>, <code>add-to</code>, etc.)
+   * @param segment The memory segment of the variable
+   * @param index The index of the segment
+   */
+  public void writeInPlace(String command, String segment, int index) {
+    boolean popsValue = !command.equals("inc") && !command.equals("dec");
+
+    // Get the address of the variable into A. If a value was popped, it's in
+    // D, so D can only be used to find the address if it's saved first
+    String address;
+    Integer register = allocation.registers.get(segment + " " + index);
+    switch (register == null ? segment : "register") {
+      case "register":
+        address = String.format("@R%d\n", register);
+        break;
+      case "static":
+        address = String.format("@%s.%d\n", currentFileName, index);
+        break;
+      case "pointer": case "temp":
+        address = String.format("@%d\n", Integer.parseInt(segIndices.get(segment)) + index);
+        break;
+      default:
+        if (index == 0) {
+          address = String.format("@%s\nA=M\n", segIndices.get(segment));
+        } else if (index == 1) {
+          address = String.format("@%s\nA=M+1\n", segIndices.get(segment));
+        } else if (!popsValue) {
+          address = String.format("@%s\nD=M\n@%d\nA=D+A\n", segIndices.get(segment), index);
+        } else {
+          address = String.format("@R14\nM=D\n@%s\nD=M\n@%d\nD=D+A\n@R13\nM=D\n@R14\nD=M\n@R13\nA=M\n",
+              segIndices.get(segment), index);
+        }
+        break;
+    }
+
+    // Write code to file
+    Object[] codeArgs = new Object[] {
+      command, segment, Integer.toString(index), address, inPlaceOps.get(command)
+    };
+    String code = MessageFormat.format(asmCodez.get(popsValue ? "inPlaceOp" : "inPlace"), codeArgs);
+    try {
+      output.write(code);
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
   /**
    * Writes a label command. Nothing to complicated. For the implementation,
    * labels in functions will be named <code>functionName$label</code>.
@@ -278,6 +563,28 @@ public class CodeWriter {
     }
   }
 
+  /**
+   * Writes the assembly code for a fused compare-and-branch command, like
+   * <code>if-lt</code>. Pops y, then x, and jumps if <code>x cmp y</code>.
+   * Unlike <code>lt</code> followed by <code>if-goto</code>, no boolean is
+   * ever pushed, so this is a lot shorter.
+   * @param comparison The comparison (<code>lt</code>, <code>ge</code>, etc.)
+   * @param label
+   */
+  public void writeIfCompare(String comparison, String label) {
+    // Write code to file
+    Object[] codeArgs = new Object[] {
+      currentFunctionName, label, "if-" + comparison, cmpJumps.get(comparison)
+    };
+    String code = MessageFormat.format(asmCodez.get("if-cmp"), codeArgs);
+    try {
+      output.write(code);
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
   /**
    * Writes assembly code that implements the <code>call</code> command,
    * preserving some important memory segments in memory.
@@ -287,17 +594,31 @@ public class CodeWriter {
   public void writeCall(String functionName, int numArgs) {
     callCount++;
 
+    // The function being called might use the same registers
+    for (String slot : allocation.changed) {
+      writeRegisterCode("saveRegister", slot);
+    }
+
     // Write code to file
     Object[] codeArgs = new Object[] {
       functionName, Integer.toString(numArgs), Integer.toString(callCount)
     };
-    String code = MessageFormat.format(asmCodez.get("call"), codeArgs);
+    String template = "call";
+    if (!isFast(functionName)) {
+      template = "callShared";
+      usedRoutines.add("$CALL");
+    }
+    String code = MessageFormat.format(asmCodez.get(template), codeArgs);
     try {
       output.write(code);
     } catch (IOException e) {
       System.out.println("Something went wrong with writing to the file");
       e.printStackTrace();
     }
+
+    for (String slot : allocation.registers.keySet()) {
+      writeRegisterCode("loadRegister", slot);
+    }
   }
 
   /**
@@ -307,6 +628,31 @@ public class CodeWriter {
   public void writeReturn() { // TODO: Return code is broken
     // Write code to file
     String code = asmCodez.get("return");
+    if (!isFast(currentFunctionName)) {
+      code = MessageFormat.format(asmCodez.get("returnShared"), "return", "$RETURN");
+      usedRoutines.add("$RETURN");
+    }
+    try {
+      output.write(code);
+    } catch (IOException e) {
+      System.out.println("Something went wrong with writing to the file");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes the assembly code for <code>return-void</code>, which returns like
+   * <code>return</code> does, but leaves nothing on the caller's stack. This
+   * saves copying the return value, as well as the <code>pop</code> the
+   * caller would otherwise need to get rid of it.
+   */
+  public void writeReturnVoid() {
+    // Write code to file
+    String code = asmCodez.get("return-void");
+    if (!isFast(currentFunctionName)) {
+      code = MessageFormat.format(asmCodez.get("returnShared"), "return-void", "$RETURN_VOID");
+      usedRoutines.add("$RETURN_VOID");
+    }
     try {
       output.write(code);
     } catch (IOException e) {
@@ -315,30 +661,84 @@ public class CodeWriter {
     }
   }
 
+  /**
+   * Gets the code that zeroes the locals of a function. A single local is
+   * just a push, up to <code>maxUnrolled</code> are zeroed one after another
+   * with a single update of SP, and any more than that are zeroed in a loop,
+   * which is slower but doesn't grow with the number of locals
+   * @param functionName The name of the function
+   * @param numLocals The number of locals
+   * @param maxUnrolled The most locals to zero without a loop
+   */
+  private String localsCode(String functionName, int numLocals, int maxUnrolled) {
+    if (numLocals > maxUnrolled) {
+      return MessageFormat.format(asmCodez.get("localsLoop"), Integer.toString(numLocals), functionName);
+    } else if (numLocals > 1) {
+      return MessageFormat.format(asmCodez.get("localsUnrolled"), Integer.toString(numLocals),
+          "A=A+1\nM=0\n".repeat(numLocals - 1));
+    } else if (numLocals == 1) {
+      return MessageFormat.format(asmCodez.get("smallConst"), "0");
+    }
+    return "";
+  }
+
   /**
    * Writes assembly code that implements the <code>function</code> command,
-   * creating the local segment
+   * creating the local segment. Locals are zeroed without a loop if there are
+   * up to <code>MAX_UNROLLED_LOCALS</code> of them, or with a
+   * <code>ProfileGuide</code>, if the function is fast (or if unrolling is no
+   * bigger than the loop)
    * @param functionName The name of the function to call
    * @param numArgs The number of arguments supplied for this function
    */
   public void writeFunction(String functionName, int numLocals) {
+    currentFunctionName = functionName;
+
     // Write code to file
     Object[] codeArgs = new Object[] {
       functionName, Integer.toString(numLocals)
     };
     String code = MessageFormat.format(asmCodez.get("function"), codeArgs);
+    int maxUnrolled = MAX_UNROLLED_LOCALS;
+    if (profileGuide != null) {
+      maxUnrolled = isFast(functionName) ? Integer.MAX_VALUE : MAX_COMPACT_UNROLLED_LOCALS;
+    }
+    code += localsCode(functionName, numLocals, maxUnrolled);
     try {
       output.write(code);
     } catch (IOException e) {
       System.out.println("Something went wrong with writing to the file");
       e.printStackTrace();
     }
+
+    // Locals start off as 0, and arguments are copied from the stack frame.
+    // Only fast functions get registers
+    allocation = new RegisterAllocator.Allocation();
+    if (registerAllocator != null && isFast(functionName)) {
+      allocation = registerAllocator.getAllocation(functionName);
+      for (String slot : allocation.registers.keySet()) {
+        writeRegisterCode(slot.startsWith("local") ? "clearRegister" : "loadRegister", slot);
+      }
+    }
   }
 
   /**
-   * Closes the output file
+   * Writes the shared routines that were used by compact functions, and
+   * closes the output file
    */
   public void close() {
+    writeSourceMarker(-1);
+    for (Map.Entry<String, String> routine : sharedRoutines.entrySet()) {
+      if (usedRoutines.contains(routine.getKey())) {
+        try {
+          output.write(String.format("(%s)\n", routine.getKey()) + asmCodez.get(routine.getValue()));
+        } catch (IOException e) {
+          System.out.println("Something went wrong with writing to the file");
+          e.printStackTrace();
+        }
+      }
+    }
+
     try {
       output.close();
     } catch (IOException e) {
@@ -0,0 +1,473 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shrinks translated assembly code by finding instruction sequences that
+ * show up many times and moving them into shared subroutines, which each
+ * place that had the sequence calls instead (procedural abstraction).
+ * <p>
+ * Repeated sequences are found with a suffix array of the instructions.
+ * Labels and jumps are never part of a sequence, since a label can be jumped
+ * to from elsewhere and a jump might leave the sequence. A call is
+ * <pre>
+ * &#64;$OUT.k.n
+ * D=A
+ * &#64;$OUT.k
+ * 0;JMP
+ * ($OUT.k.n)
+ * </pre>
+ * which destroys <code>D</code> on the way in (it carries the return address)
+ * and <code>A</code> on the way out, so a sequence has to start with an
+ * A-instruction and set <code>D</code> before reading it, and whatever comes
+ * after it has to start with an A-instruction too. The return address is kept
+ * in the variable <code>$OUTRET</code>, since no outlined code ever calls
+ * other outlined code.
+ * <p>
+ * The subroutines are written after the end of the program, behind a loop
+ * that jumps to itself, so that a program without bootstrap code (which just
+ * runs off the end of its last command) stops there instead of running into
+ * them.
+ * <p>
+ * Outlining makes code slower, so with a <code>ProfileGuide</code>, nothing
+ * in the functions that it made fast is outlined.
+ * <p>
+ * Source markers (see <code>CodeWriter.SOURCE_MARKER</code>) are kept where
+ * they are. The last marker in an outlined place is written again after the
+ * call, since the code after the place still comes from it, and the outlined
+ * sequences don't come from any single VM command.
+ * @author asherhe
+ */
+public class Outliner {
+  /**
+   * The number of words that a call takes
+   */
+  private static final int CALL_SIZE = 4;
+
+  /**
+   * The number of words that a subroutine takes on top of its sequence
+   * (saving the return address, and returning)
+   */
+  private static final int BODY_OVERHEAD = 5;
+
+  /**
+   * The number of cycles that a call to a subroutine adds over running the
+   * sequence in place
+   */
+  public static final int CYCLES_PER_CALL = CALL_SIZE + BODY_OVERHEAD;
+
+  /**
+   * The number of words in the loop that keeps the end of the program from
+   * running into the subroutines
+   */
+  private static final int GUARD_SIZE = 2;
+
+  /**
+   * The longest sequence that is looked at
+   */
+  private static final int MAX_LENGTH = 256;
+
+  /**
+   * The lines of the code, and the instructions and labels in them (along
+   * with the line that each one is on)
+   */
+  private List<String> lines = new ArrayList<String>();
+  private List<String> tokens = new ArrayList<String>();
+  private List<Integer> tokenLines = new ArrayList<Integer>();
+
+  /**
+   * A sequence picked to be outlined
+   */
+  private static class Outline {
+    int start; // Where the sequence is in the tokens of its first place
+    int length;
+    List<Integer> places = new ArrayList<Integer>();
+  }
+
+  private List<Outline> outlines = new ArrayList<Outline>();
+  private ProfileGuide profileGuide;
+  private int wordsSaved = 0;
+  private int callCount = 0;
+  private boolean hasSourceMarkers = false;
+
+  /**
+   * Reads assembly code
+   * @param code The code to outline
+   */
+  public Outliner(String code) {
+    for (String line : code.split("\n")) {
+      String instruction = line.replaceAll("//.*", "").trim();
+      if (!instruction.isEmpty()) {
+        tokens.add(instruction);
+        tokenLines.add(lines.size());
+      }
+      hasSourceMarkers |= line.startsWith(CodeWriter.SOURCE_MARKER);
+      lines.add(line);
+    }
+  }
+
+  /**
+   * Leaves the functions that a <code>ProfileGuide</code> made fast alone
+   * @param profileGuide The guide, which has already made its plan
+   */
+  public void setProfileGuide(ProfileGuide profileGuide) {
+    this.profileGuide = profileGuide;
+  }
+
+  private boolean isLabel(int token) {
+    return tokens.get(token).startsWith("(");
+  }
+
+  private boolean isAInstruction(int token) {
+    return tokens.get(token).startsWith("@");
+  }
+
+  private boolean isJump(int token) {
+    return tokens.get(token).contains(";");
+  }
+
+  /**
+   * Whether a sequence sets <code>D</code> before it reads it. Since a call
+   * leaves the return address in <code>D</code>, a sequence that reads
+   * <code>D</code> first would get the wrong value, and one that never sets
+   * <code>D</code> would leave the return address there for the code after it
+   */
+  private boolean setsDFirst(int start, int end) {
+    for (int i = start; i < end; i++) {
+      String instruction = tokens.get(i);
+      if (isAInstruction(i)) {
+        continue;
+      }
+      int equals = instruction.indexOf('=');
+      String dest = equals == -1 ? "" : instruction.substring(0, equals);
+      if (instruction.substring(equals + 1).contains("D")) {
+        return false;
+      } else if (dest.contains("D")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether the first instruction after a place doesn't need <code>A</code>
+   */
+  private boolean canReturnTo(int token) {
+    while (token < tokens.size() && isLabel(token)) {
+      token++;
+    }
+    return token == tokens.size() || isAInstruction(token);
+  }
+
+  /**
+   * Turns the tokens into numbers, where the same instruction always gets the
+   * same number, and every label and jump (and everything in a fast
+   * function) gets a number of its own
+   */
+  private int[] tokenIds() {
+    int[] ids = new int[tokens.size()];
+    Map<String, Integer> instructionIds = new HashMap<String, Integer>();
+    boolean isFast = false;
+    for (int i = 0; i < ids.length; i++) {
+      if (profileGuide != null && isLabel(i)) {
+        String label = tokens.get(i).substring(1, tokens.get(i).length() - 1);
+        if (profileGuide.isFunction(label)) {
+          isFast = profileGuide.isFast(label);
+        }
+      }
+      if (isLabel(i) || isJump(i) || isFast) {
+        ids[i] = -(i + 1); // Never repeats
+      } else {
+        ids[i] = instructionIds.computeIfAbsent(tokens.get(i), instruction -> instructionIds.size());
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Sorts the suffixes of the tokens by prefix doubling
+   */
+  private static int[] suffixArray(int[] ids) {
+    int n = ids.length;
+    Integer[] order = new Integer[n];
+    int[] rank = new int[n];
+    int[] nextRank = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+      rank[i] = ids[i];
+    }
+    for (int k = 1;; k <<= 1) {
+      final int step = k;
+      final int[] r = rank;
+      Comparator<Integer> bySuffix = (a, b) -> {
+        if (r[a] != r[b]) {
+          return Integer.compare(r[a], r[b]);
+        }
+        int ra = a + step < n ? r[a + step] : Integer.MIN_VALUE;
+        int rb = b + step < n ? r[b + step] : Integer.MIN_VALUE;
+        return Integer.compare(ra, rb);
+      };
+      Arrays.sort(order, bySuffix);
+      nextRank[order[0]] = 0;
+      for (int i = 1; i < n; i++) {
+        nextRank[order[i]] = nextRank[order[i - 1]] + (bySuffix.compare(order[i - 1], order[i]) < 0 ? 1 : 0);
+      }
+      int[] swap = rank;
+      rank = nextRank;
+      nextRank = swap;
+      if (rank[order[n - 1]] == n - 1 || k >= n) {
+        break;
+      }
+    }
+    int[] sa = new int[n];
+    for (int i = 0; i < n; i++) {
+      sa[i] = order[i];
+    }
+    return sa;
+  }
+
+  /**
+   * Finds the length of the common prefix of each suffix and the one before
+   * it in the suffix array (Kasai's algorithm)
+   */
+  private static int[] commonPrefixes(int[] ids, int[] sa) {
+    int n = ids.length;
+    int[] rank = new int[n];
+    for (int i = 0; i < n; i++) {
+      rank[sa[i]] = i;
+    }
+    int[] lcp = new int[n + 1];
+    int h = 0;
+    for (int i = 0; i < n; i++) {
+      if (rank[i] > 0) {
+        int j = sa[rank[i] - 1];
+        while (i + h < n && j + h < n && ids[i + h] == ids[j + h]) {
+          h++;
+        }
+        lcp[rank[i]] = h;
+        if (h > 0) {
+          h--;
+        }
+      } else {
+        h = 0;
+      }
+    }
+    return lcp;
+  }
+
+  /**
+   * Works out how many words outlining a sequence saves
+   */
+  private static int savings(int length, int places) {
+    return places * length - places * CALL_SIZE - (length + BODY_OVERHEAD);
+  }
+
+  /**
+   * Picks the places of a sequence that can be outlined: ones that don't
+   * overlap each other or anything outlined already, and that (if the
+   * sequence is followed by whatever comes after it) can be returned to
+   */
+  private List<Integer> usablePlaces(List<Integer> places, int length, boolean checkReturn, boolean[] taken) {
+    List<Integer> usable = new ArrayList<Integer>();
+    int end = -1;
+    for (int place : places) {
+      if (place < end || (checkReturn && !canReturnTo(place + length))) {
+        continue;
+      }
+      boolean free = true;
+      for (int i = place; i < place + length && free; i++) {
+        free = !taken[i];
+      }
+      if (free) {
+        usable.add(place);
+        end = place + length;
+      }
+    }
+    return usable;
+  }
+
+  /**
+   * Trims a repeated sequence down to a part that can be outlined, and
+   * remembers it if it's worth it
+   * @param first Where the sequence is the first time it shows up
+   * @param length How long the sequence is
+   * @param places Every place the sequence shows up, sorted
+   */
+  private Outline trim(int first, int length, List<Integer> places, boolean[] taken) {
+    Outline best = null;
+    int bestSavings = 0;
+    for (int start = 0; start < length; start++) {
+      if (savings(length - start, places.size()) <= bestSavings) {
+        break; // Starting later only makes it shorter
+      }
+      if (!isAInstruction(first + start)) {
+        continue;
+      }
+      for (int end = length; end > start; end--) {
+        if (end < length && !isAInstruction(first + end)) {
+          continue;
+        }
+        if (savings(end - start, places.size()) <= bestSavings) {
+          break; // Only gets shorter from here
+        }
+        if (!setsDFirst(first + start, first + end)) {
+          continue;
+        }
+        List<Integer> shifted = new ArrayList<Integer>();
+        for (int place : places) {
+          shifted.add(place + start);
+        }
+        List<Integer> usable = usablePlaces(shifted, end - start, end == length, taken);
+        int s = savings(end - start, usable.size());
+        if (usable.size() >= 2 && s > bestSavings) {
+          best = new Outline();
+          best.start = usable.get(0);
+          best.length = end - start;
+          best.places = usable;
+          bestSavings = s;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Finds the sequences to outline, and writes the outlined code
+   * @return The new code
+   */
+  public String outline() {
+    int n = tokens.size();
+    if (n == 0) {
+      return String.join("\n", lines) + "\n";
+    }
+    int[] ids = tokenIds();
+    int[] sa = suffixArray(ids);
+    int[] lcp = commonPrefixes(ids, sa);
+
+    // Every group of suffixes that share a prefix is a repeated sequence
+    List<int[]> repeats = new ArrayList<int[]>(); // { length, from, to } in the suffix array
+    Deque<int[]> stack = new ArrayDeque<int[]>(); // { length, from }
+    stack.push(new int[] { 0, 0 });
+    for (int i = 1; i <= n; i++) {
+      int current = i < n ? Math.min(lcp[i], MAX_LENGTH) : 0;
+      int from = i - 1;
+      while (stack.peek()[0] > current) {
+        int[] top = stack.pop();
+        from = top[1];
+        repeats.add(new int[] { top[0], from, i });
+      }
+      if (stack.peek()[0] < current) {
+        stack.push(new int[] { current, from });
+      }
+    }
+    repeats.sort((a, b) -> Integer.compare(savings(b[0], b[2] - b[1]), savings(a[0], a[2] - a[1])));
+
+    // Take the most worthwhile sequences first
+    boolean[] taken = new boolean[n];
+    for (int[] repeat : repeats) {
+      if (savings(repeat[0], repeat[2] - repeat[1]) <= 0) {
+        break;
+      }
+      List<Integer> places = new ArrayList<Integer>();
+      for (int i = repeat[1]; i < repeat[2]; i++) {
+        places.add(sa[i]);
+      }
+      places.sort(null);
+      Outline outline = trim(places.get(0), repeat[0], places, taken);
+      if (outline == null) {
+        continue;
+      }
+      for (int place : outline.places) {
+        Arrays.fill(taken, place, place + outline.length, true);
+      }
+      outlines.add(outline);
+      wordsSaved += savings(outline.length, outline.places.size());
+      callCount += outline.places.size();
+    }
+
+    if (!outlines.isEmpty()) {
+      wordsSaved -= GUARD_SIZE;
+    }
+    return write();
+  }
+
+  private String write() {
+    // Where each outlined place starts and ends, by line
+    Map<Integer, Integer> calls = new HashMap<Integer, Integer>(); // first line -> outline
+    Map<Integer, Integer> skips = new HashMap<Integer, Integer>(); // first line -> last line
+    for (int k = 0; k < outlines.size(); k++) {
+      Outline outline = outlines.get(k);
+      for (int place : outline.places) {
+        int firstLine = tokenLines.get(place);
+        calls.put(firstLine, k);
+        skips.put(firstLine, tokenLines.get(place + outline.length - 1));
+      }
+    }
+
+    StringBuilder code = new StringBuilder();
+    int[] callCounts = new int[outlines.size()];
+    for (int line = 0; line < lines.size(); line++) {
+      Integer k = calls.get(line);
+      if (k == null) {
+        code.append(lines.get(line)).append('\n');
+        continue;
+      }
+      int n = callCounts[k]++;
+      code.append(String.format("// outlined $OUT.%d\n@$OUT.%d.%d\nD=A\n@$OUT.%d\n0;JMP\n($OUT.%d.%d)\n",
+          k, k, n, k, k, n));
+      String marker = null;
+      for (int skipped = line + 1; skipped <= skips.get(line); skipped++) {
+        if (lines.get(skipped).startsWith(CodeWriter.SOURCE_MARKER)) {
+          marker = lines.get(skipped);
+        }
+      }
+      if (marker != null) {
+        code.append(marker).append('\n');
+      }
+      line = skips.get(line);
+    }
+
+    if (hasSourceMarkers && !outlines.isEmpty()) {
+      code.append(CodeWriter.SOURCE_MARKER).append('\n');
+    }
+    if (!outlines.isEmpty()) {
+      code.append("// end of the program\n($OUT.END)\n@$OUT.END\n0;JMP\n");
+    }
+    for (int k = 0; k < outlines.size(); k++) {
+      Outline outline = outlines.get(k);
+      code.append(String.format("// outlined sequence, %d instructions\n($OUT.%d)\n@$OUTRET\nM=D\n",
+          outline.length, k));
+      for (int i = outline.start; i < outline.start + outline.length; i++) {
+        code.append(tokens.get(i)).append('\n');
+      }
+      code.append("@$OUTRET\nA=M\n0;JMP\n");
+    }
+    return code.toString();
+  }
+
+  /**
+   * Gets the number of sequences outlined
+   */
+  public int getOutlineCount() {
+    return outlines.size();
+  }
+
+  /**
+   * Gets the number of places that now call an outlined sequence
+   */
+  public int getCallCount() {
+    return callCount;
+  }
+
+  /**
+   * Gets the number of words of ROM saved
+   */
+  public int getWordsSaved() {
+    return wordsSaved;
+  }
+}
@@ -10,12 +10,22 @@ public class Parser {
    * Basically all the VM command types in existence. Note that
    * <code>C_ARITHMETIC</code> includes all arithmetic/logic operations
    * (<code>add</code>, <code>eq</code>, <code>and</code>, etc.)
+   * <p>
+   * <code>C_IF_COMPARE</code>, <code>C_IN_PLACE</code>, and
+   * <code>C_RETURN_VOID</code> aren't part of the standard VM language. They
+   * are extensions written by the Jack compiler: fused compare-and-branch
+   * (<code>if-lt</code>, <code>if-ge</code>, etc.), in-place updates of a
+   * variable (<code>inc</code>, <code>add-to</code>, etc.), and
+   * <code>return-void</code>, which returns without a value. The
+   * indexed array access extensions (<code>aload</code> and
+   * <code>astore</code>) take no arguments, so they are
+   * <code>C_ARITHMETIC</code> too.
    */
   public enum CommandType {
     C_ARITHMETIC,
-    C_PUSH, C_POP,
-    C_LABEL, C_GOTO, C_IF,
-    C_FUNCTION, C_RETURN, C_CALL
+    C_PUSH, C_POP, C_IN_PLACE,
+    C_LABEL, C_GOTO, C_IF, C_IF_COMPARE,
+    C_FUNCTION, C_RETURN, C_RETURN_VOID, C_CALL
   };
 
   /**
@@ -119,6 +129,15 @@ public class Parser {
     instructionChunks = instruction.split(" ");
   }
 
+  /**
+   * Checks what the next command is, without advancing to it
+   * @param command The command to check for, e.g. <code>neg</code>
+   * @return Whether the next command is exactly <code>command</code>
+   */
+  public boolean nextIs(String command) {
+    return fileStream.hasNext("\\s*" + Pattern.quote(command) + "\\s*(//.*)?");
+  }
+
   /**
    * Gets the current command type for this current instruction
    * @return The command type of the current instruction
@@ -145,12 +164,23 @@ public class Parser {
       case "if-goto":
         type = CommandType.C_IF;
         break;
+      case "if-lt": case "if-gt": case "if-eq":
+      case "if-ge": case "if-le": case "if-ne":
+        type = CommandType.C_IF_COMPARE;
+        break;
       case "function":
         type = CommandType.C_FUNCTION;
         break;
       case "return":
         type = CommandType.C_RETURN;
         break;
+      case "inc": case "dec":
+      case "add-to": case "sub-to": case "and-to": case "or-to":
+        type = CommandType.C_IN_PLACE;
+        break;
+      case "return-void":
+        type = CommandType.C_RETURN_VOID;
+        break;
       case "call":
         type = CommandType.C_CALL;
         break;
@@ -174,10 +204,27 @@ public class Parser {
     return instructionChunks[1];
   }
 
+  /**
+   * Returns the name of the current command, e.g. <code>add-to</code>
+   * @return The first word of the current command
+   */
+  public String command() {
+    return instructionChunks[0];
+  }
+
+  /**
+   * Returns the comparison of the current command. Should be called only if
+   * the current command is <code>C_IF_COMPARE</code>.
+   * @return The comparison (<code>lt</code>, <code>ge</code>, etc.)
+   */
+  public String comparison() {
+    return instructionChunks[0].substring("if-".length());
+  }
+
   /**
    * Returns the second argument of the current command. Should be called only
    * if the current command is <code>C_PUSH</code>, <code>C_POP</code>,
-   * <code>C_FUNCTON</code>, or <code>C_CALL</code>.
+   * <code>C_IN_PLACE</code>, <code>C_FUNCTON</code>, or <code>C_CALL</code>.
    * @return The second argument of the command
    */
   public int arg2() {
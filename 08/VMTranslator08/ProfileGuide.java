@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides, from a profile of a run of the program, which functions are worth
+ * fast code and which should be kept compact.
+ * <p>
+ * A fast function gets the usual code: every call to it and every return from
+ * it is written out in full, its locals are zeroed without a loop, and its
+ * locals and arguments may live in registers. A compact function is called
+ * and returns through routines that are shared by the whole program
+ * (<code>$CALL</code>, <code>$RETURN</code> and <code>$RETURN_VOID</code>),
+ * which takes a few more cycles but only a handful of words per call site.
+ * <p>
+ * Everything starts out compact. Functions are then made fast in order of how
+ * many calls they got per word of ROM that making them fast costs, for as long
+ * as the program still fits in ROM.
+ * <p>
+ * A profile is a text file with one line per function:
+ * <pre>
+ * functionName calls self total
+ * </pre>
+ * where <code>self</code> is the number of cycles spent in the function's own
+ * code, leaving out the functions it calls, and <code>total</code> (which may
+ * be left off) includes them. This is what the emulators write with
+ * <code>-profile</code>. Fast code saves cycles on every call and return, so
+ * the calls are what functions are picked by. The self times only go into how
+ * much of the run the fast functions cover, since they add up to the whole run
+ * where total times would count a call once for every function it's inside
+ * of. Blank lines and lines starting with <code>#</code> are ignored, as are
+ * functions missing from the profile (they are kept compact).
+ * @author asherhe
+ */
+public class ProfileGuide {
+  /**
+   * The number of words in the Hack ROM
+   */
+  public static final int ROM_SIZE = 32768;
+
+  private Map<String, Long> calls = new HashMap<String, Long>();
+  private Map<String, Long> selfCycles = new HashMap<String, Long>();
+
+  // What is written for each function, gathered by reading the VM files
+  private Map<String, Integer> callSites = new HashMap<String, Integer>();
+  private Map<String, Integer> returnSites = new HashMap<String, Integer>();
+  private Map<String, Integer> localCounts = new HashMap<String, Integer>();
+
+  private Set<String> fastFunctions = new HashSet<String>();
+
+  /**
+   * Reads a profile
+   * @param profileFile The profile to read
+   */
+  public ProfileGuide(Path profileFile) throws IOException {
+    for (String line : Files.readAllLines(profileFile)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] chunks = line.split("\\s+");
+      calls.put(chunks[0], Long.parseLong(chunks[1]));
+      selfCycles.put(chunks[0], chunks.length > 2 ? Long.parseLong(chunks[2]) : 0);
+    }
+  }
+
+  /**
+   * Reads through all of the commands of a VM file, counting what will be
+   * written for each function
+   * @param parser A fresh <code>Parser</code> for the file
+   */
+  public void addFile(Parser parser) {
+    String functionName = null;
+    while (parser.hasMoreCommands()) {
+      parser.advance();
+      switch (parser.commandType()) {
+        case C_FUNCTION:
+          functionName = parser.arg1();
+          localCounts.put(functionName, parser.arg2());
+          break;
+        case C_CALL:
+          addCall(parser.arg1());
+          break;
+        case C_RETURN: case C_RETURN_VOID:
+          if (functionName != null) {
+            returnSites.merge(functionName, 1, Integer::sum);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Counts a call that isn't in any VM file, like the one to
+   * <code>Sys.init</code> in the bootstrap code
+   * @param functionName The function called
+   */
+  public void addCall(String functionName) {
+    callSites.merge(functionName, 1, Integer::sum);
+  }
+
+  /**
+   * Works out how many more words of ROM a function takes if it is fast
+   * instead of compact
+   */
+  private int extraWords(String functionName, CodeWriter codeWriter) {
+    int extra = callSites.getOrDefault(functionName, 0)
+        * (codeWriter.templateSize("call") - codeWriter.templateSize("callShared"));
+    extra += returnSites.getOrDefault(functionName, 0)
+        * (codeWriter.templateSize("return") - codeWriter.templateSize("returnShared"));
+    extra += codeWriter.localsSize(localCounts.getOrDefault(functionName, 0), true)
+        - codeWriter.localsSize(localCounts.getOrDefault(functionName, 0), false);
+    return extra;
+  }
+
+  /**
+   * Picks the functions that get fast code
+   * @param codeWriter A <code>CodeWriter</code>, for the sizes of its code
+   * @param compactSize The size of the program in words when every function
+   *                    is compact
+   */
+  public void plan(CodeWriter codeWriter, int compactSize) {
+    fastFunctions.clear();
+    Map<String, Integer> extras = new HashMap<String, Integer>();
+    List<String> candidates = new ArrayList<String>();
+    for (String functionName : localCounts.keySet()) {
+      if (calls.getOrDefault(functionName, 0L) > 0) {
+        extras.put(functionName, Math.max(1, extraWords(functionName, codeWriter)));
+        candidates.add(functionName);
+      }
+    }
+    candidates.sort((a, b) -> {
+      int order = Double.compare((double) calls.get(b) / extras.get(b), (double) calls.get(a) / extras.get(a));
+      return order != 0 ? order : a.compareTo(b);
+    });
+
+    int size = compactSize;
+    long fastCycles = 0;
+    long totalCycles = 0;
+    for (long c : selfCycles.values()) {
+      totalCycles += c;
+    }
+    for (String functionName : candidates) {
+      if (size + extras.get(functionName) <= ROM_SIZE) {
+        size += extras.get(functionName);
+        fastFunctions.add(functionName);
+        fastCycles += selfCycles.getOrDefault(functionName, 0L);
+      }
+    }
+
+    System.out.println(String.format("Profile: %d of %d functions fast (%d%% of profiled cycles spent in their own code), about %d words of ROM",
+        fastFunctions.size(), localCounts.size(), totalCycles == 0 ? 0 : 100 * fastCycles / totalCycles, size));
+  }
+
+  /**
+   * Whether there is a function with some name in the VM files
+   * @param functionName The name of the function
+   */
+  public boolean isFunction(String functionName) {
+    return localCounts.containsKey(functionName);
+  }
+
+  /**
+   * Whether a function gets fast code
+   * @param functionName The name of the function
+   */
+  public boolean isFast(String functionName) {
+    return fastFunctions.contains(functionName);
+  }
+}
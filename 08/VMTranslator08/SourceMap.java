@@ -0,0 +1,174 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where each piece of some generated code came from: a source file, and a
+ * position in it. JackCompiler maps each VM command to the line of Jack code
+ * it was compiled from, and VMTranslator maps each Hack instruction to the VM
+ * command it was translated from (by its index in its file, counting from 0
+ * and leaving out comments and blank lines). Code that doesn't come from any
+ * source, like the bootstrap code, has none.
+ * <p>
+ * The same file is used by JackCompiler, VMTranslator and the emulators. A map
+ * file is written with DataOutputStream, and is made up of:
+ * <ul>
+ * <li>the bytes <code>SMAP</code></li>
+ * <li>the number of source files, followed by their names (in
+ * <code>writeUTF</code> form)</li>
+ * <li>the number of runs, followed by the runs. A run is a number of pieces of
+ * code in a row that come from the same place, given as the number of pieces,
+ * the index of the source file plus 1 (0 for none), and the position minus the
+ * position of the run before it</li>
+ * </ul>
+ * Every number but the first four bytes is a variable-length integer, 7 bits
+ * to a byte with the high bit set on all but the last byte, and the
+ * differences between positions are zigzag encoded so that small negative
+ * ones stay small. Since code mostly comes from the next line or command
+ * along, most runs take 3 bytes.
+ */
+public class SourceMap {
+  private static final int MAGIC = 0x534D4150; // "SMAP"
+
+  private List<String> sources = new ArrayList<String>();
+  private Map<String, Integer> sourceIndices = new HashMap<String, Integer>();
+
+  // The source (an index into sources, or -1) and position of each piece
+  private int[] itemSources = new int[256];
+  private int[] itemPositions = new int[256];
+  private int size = 0;
+
+  /**
+   * Adds the next piece of code
+   * @param source The name of the file it came from, or null for none
+   * @param position Where in the file it came from
+   */
+  public void add(String source, int position) {
+    int index = -1;
+    if (source != null) {
+      index = sourceIndices.computeIfAbsent(source, name -> {
+        sources.add(name);
+        return sources.size() - 1;
+      });
+    }
+    if (size == itemSources.length) {
+      itemSources = Arrays.copyOf(itemSources, size * 2);
+      itemPositions = Arrays.copyOf(itemPositions, size * 2);
+    }
+    itemSources[size] = index;
+    itemPositions[size] = source == null ? 0 : position;
+    size++;
+  }
+
+  /**
+   * Gets the number of pieces of code
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the file that a piece of code came from
+   * @return The name of the file, or null if it didn't come from one (or
+   *         is past the end of the map)
+   */
+  public String getSource(int item) {
+    return item < size && itemSources[item] != -1 ? sources.get(itemSources[item]) : null;
+  }
+
+  /**
+   * Gets where in its file a piece of code came from
+   */
+  public int getPosition(int item) {
+    return itemPositions[item];
+  }
+
+  private static void writeNumber(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte(value & 0x7F | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readNumber(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Writes the map to a file
+   */
+  public void write(Path file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      writeNumber(out, sources.size());
+      for (String source : sources) {
+        out.writeUTF(source);
+      }
+
+      List<int[]> runs = new ArrayList<int[]>(); // { length, source, position }
+      for (int i = 0; i < size; i++) {
+        int[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (run != null && run[1] == itemSources[i] && run[2] == itemPositions[i]) {
+          run[0]++;
+        } else {
+          runs.add(new int[] { 1, itemSources[i], itemPositions[i] });
+        }
+      }
+      writeNumber(out, runs.size());
+      int lastPosition = 0;
+      for (int[] run : runs) {
+        int delta = run[2] - lastPosition;
+        writeNumber(out, run[0]);
+        writeNumber(out, run[1] + 1);
+        writeNumber(out, delta << 1 ^ delta >> 31);
+        lastPosition = run[2];
+      }
+    }
+  }
+
+  /**
+   * Reads a map from a file
+   */
+  public static SourceMap read(Path file) throws IOException {
+    SourceMap map = new SourceMap();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " isn't a source map");
+      }
+      int sourceCount = readNumber(in);
+      String[] sources = new String[sourceCount];
+      for (int i = 0; i < sourceCount; i++) {
+        sources[i] = in.readUTF();
+      }
+      int runCount = readNumber(in);
+      int position = 0;
+      for (int i = 0; i < runCount; i++) {
+        int length = readNumber(in);
+        int source = readNumber(in) - 1;
+        int delta = readNumber(in);
+        position += delta >>> 1 ^ -(delta & 1);
+        for (int j = 0; j < length; j++) {
+          map.add(source == -1 ? null : sources[source], position);
+        }
+      }
+    }
+    return map;
+  }
+}
@@ -1,8 +1,10 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class VMTranslator {
@@ -64,37 +66,64 @@ public class VMTranslator {
   }
 
   private static void printIncorrectUsage() {
-    System.out.println("Usage:\n\n\tVMtranslator source\n\nWhere source is either a VM file or directory containing VM files\n");
+    System.out.println("Usage:\n\n\tVMtranslator [-registers] [-profile file] [-outline] [-map] source\n\nWhere source is either a VM file or directory containing VM files\n\nWith -registers, the most used locals and arguments of each function are kept in\nregisters (see RegisterAllocator)\n\nWith -profile, only the functions that the profile shows are worth it get fast\ncode, and the rest are kept compact (see ProfileGuide)\n\nWith -outline, instruction sequences that show up many times are moved into\nshared subroutines to save ROM (see Outliner)\n\nWith -map, a source map of the VM command each instruction comes from is written\nnext to the output file (see SourceMap)\n");
   }
 
   /**
-   * Generates the VM code
+   * Sets up a <code>Parser</code> for a VM file
    * @param sourceFile The path to the source file.
-   * @param codeWriter The <code>CodeWriter</code> to write the code with
+   * @return The parser, or <code>null</code> if the file couldn't be read
    */
-  public static void generateCode(Path sourceFile, CodeWriter codeWriter) {
-    codeWriter.setFileName(getFilename(sourceFile));
-
-    Parser parser;
-    // Set up Parser
+  private static Parser openParser(Path sourceFile) {
     try {
       String f = Files.readString(sourceFile);
       // Convert to LF endings
       f = f.replaceAll("\\r\\n?", "\n");
       Scanner s = new Scanner(f);
-      parser = new Parser(s);
+      return new Parser(s);
     } catch (IOException e) {
       System.out.println("Error with reading input file");
       e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Generates the VM code
+   * @param sourceFile The path to the source file.
+   * @param codeWriter The <code>CodeWriter</code> to write the code with
+   */
+  public static void generateCode(Path sourceFile, CodeWriter codeWriter) {
+    codeWriter.setFileName(getFilename(sourceFile));
+
+    // Set up Parser
+    Parser parser = openParser(sourceFile);
+    if (parser == null) {
       return;
     }
 
+    int commandIndex = -1;
     while (parser.hasMoreCommands()) {
       parser.advance();
+      commandIndex++;
+      codeWriter.writeSourceMarker(commandIndex);
       Parser.CommandType commandType = parser.commandType();
       switch (commandType) {
         case C_PUSH: case C_POP:
-          codeWriter.writePushPop(commandType, parser.arg1(), parser.arg2());
+          // "push constant n" followed by "neg" (which the Jack compiler
+          // writes for every "true") is folded into a push of -n
+          if (commandType == Parser.CommandType.C_PUSH && parser.arg1().equals("constant")
+              && parser.nextIs("neg")) {
+            int value = parser.arg2();
+            parser.advance();
+            commandIndex++;
+            codeWriter.writePushConstant(-value);
+          } else {
+            codeWriter.writePushPop(commandType, parser.arg1(), parser.arg2());
+          }
+          break;
+        case C_IN_PLACE:
+          codeWriter.writeInPlace(parser.command(), parser.arg1(), parser.arg2());
           break;
         case C_ARITHMETIC:
           codeWriter.writeArithmetic(parser.arg1());
@@ -108,12 +137,18 @@ public class VMTranslator {
         case C_IF:
           codeWriter.writeIf(parser.arg1());
           break;
+        case C_IF_COMPARE:
+          codeWriter.writeIfCompare(parser.comparison(), parser.arg1());
+          break;
         case C_CALL:
           codeWriter.writeCall(parser.arg1(), parser.arg2());
           break;
         case C_RETURN:
           codeWriter.writeReturn();
           break;
+        case C_RETURN_VOID:
+          codeWriter.writeReturnVoid();
+          break;
         case C_FUNCTION:
           codeWriter.writeFunction(parser.arg1(), parser.arg2());
           break;
@@ -124,14 +159,145 @@ public class VMTranslator {
     }
   }
 
+  /**
+   * Has a <code>RegisterAllocator</code> read through all of the VM files of
+   * a source, so that it knows about every function before any code is
+   * written
+   * @param source A VM file or a directory containing VM files
+   * @return The allocator
+   */
+  private static RegisterAllocator allocateRegisters(Path source) throws IOException {
+    RegisterAllocator registerAllocator = new RegisterAllocator();
+    Files.walk(source).forEach(file -> {
+      if (getFileExtension(file).equals(".vm")) {
+        Parser parser = openParser(file);
+        if (parser != null) {
+          registerAllocator.addFile(parser);
+        }
+      }
+    });
+    return registerAllocator;
+  }
+
+  /**
+   * Has a <code>ProfileGuide</code> plan which functions get fast code. To
+   * know how much ROM there is to spare, the whole source is translated once
+   * with every function compact, and the result thrown away
+   * @param source A VM file or a directory containing VM files
+   * @param profileFile The profile to plan by
+   * @return The guide, with its plan made
+   */
+  private static ProfileGuide guideByProfile(Path source, Path profileFile) throws IOException {
+    ProfileGuide profileGuide = new ProfileGuide(profileFile);
+    Files.walk(source).forEach(file -> {
+      if (getFileExtension(file).equals(".vm")) {
+        Parser parser = openParser(file);
+        if (parser != null) {
+          profileGuide.addFile(parser);
+        }
+      }
+    });
+
+    StringWriter compactCode = new StringWriter();
+    CodeWriter codeWriter = new CodeWriter(compactCode);
+    codeWriter.setProfileGuide(profileGuide);
+    if (Files.isDirectory(source)) {
+      codeWriter.writeBootstrapCode();
+      profileGuide.addCall("Sys.init");
+    }
+    Files.walk(source).forEach(file -> {
+      if (getFileExtension(file).equals(".vm")) {
+        generateCode(file, codeWriter);
+      }
+    });
+    codeWriter.close();
+
+    profileGuide.plan(codeWriter, CodeWriter.countInstructions(compactCode.toString()));
+    return profileGuide;
+  }
+
+  /**
+   * Outlines translated code
+   * @param code The translated code
+   * @param profileGuide The guide that picked the fast functions, or
+   *                     <code>null</code>
+   * @return The outlined code
+   */
+  private static String outline(String code, ProfileGuide profileGuide) {
+    Outliner outliner = new Outliner(code);
+    outliner.setProfileGuide(profileGuide);
+    String outlined = outliner.outline();
+    System.out.println(String.format(
+        "Outlining: %d sequences called from %d places, saving %d words of ROM for %d more cycles per call",
+        outliner.getOutlineCount(), outliner.getCallCount(), outliner.getWordsSaved(), Outliner.CYCLES_PER_CALL));
+    return outlined;
+  }
+
+  /**
+   * Writes translated code to the output file. If the code has source markers
+   * (see <code>CodeWriter.SOURCE_MARKER</code>), they are taken out, and the
+   * VM command each instruction comes from is written to a source map, which
+   * is the output file with <code>.map</code> on the end
+   * @param code The translated code
+   * @param outputFilename The file to write to
+   */
+  private static void writeOutput(String code, String outputFilename) {
+    StringBuilder output = new StringBuilder();
+    SourceMap sourceMap = new SourceMap();
+    boolean hasSourceMarkers = false;
+    String source = null;
+    int commandIndex = 0;
+    for (String line : code.split("\n")) {
+      if (line.startsWith(CodeWriter.SOURCE_MARKER)) {
+        hasSourceMarkers = true;
+        String[] markerChunks = line.split(" ");
+        source = markerChunks.length == 3 ? markerChunks[1] + ".vm" : null;
+        commandIndex = markerChunks.length == 3 ? Integer.parseInt(markerChunks[2]) : 0;
+        continue;
+      }
+      if (CodeWriter.countInstructions(line) > 0) {
+        sourceMap.add(source, commandIndex);
+      }
+      output.append(line).append('\n');
+    }
+
+    try (FileWriter fw = new FileWriter(outputFilename)) {
+      fw.write(output.toString());
+      if (hasSourceMarkers) {
+        sourceMap.write(Paths.get(outputFilename + ".map"));
+      }
+    } catch (IOException e) {
+      System.out.println("Error in writing output file");
+      e.printStackTrace();
+    }
+  }
+
   public static void main(String[] args) {
-    // Incorrect argument length
-    if (args.length != 1) {
+    String sourceName = null;
+    String profileName = null;
+    boolean useRegisters = false;
+    boolean outline = false;
+    boolean sourceMap = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-registers")) {
+        useRegisters = true;
+      } else if (args[i].equals("-outline")) {
+        outline = true;
+      } else if (args[i].equals("-map")) {
+        sourceMap = true;
+      } else if (args[i].equals("-profile") && i + 1 < args.length) {
+        profileName = args[++i];
+      } else {
+        sourceName = args[i];
+      }
+    }
+    // No source given
+    if (sourceName == null) {
       printIncorrectUsage();
       return;
     }
 
-    Path source = new File(args[0]).toPath();
+    Path source = new File(sourceName).toPath();
     // Check if source is actually a valid path
     if (!Files.exists(source)) {
       printIncorrectUsage();
@@ -139,14 +305,23 @@ public class VMTranslator {
     }
 
     // Source is a file
-    if (Files.isRegularFile(source) && getFileExtension(args[0]).equals(".vm")) {
+    if (Files.isRegularFile(source) && getFileExtension(sourceName).equals(".vm")) {
       CodeWriter codeWriter;
+      ProfileGuide profileGuide = null;
+      String outputFilename = source.getParent().toString() + "/" + getFilename(sourceName) + ".asm";
+      StringWriter code = new StringWriter();
 
       // Set up CodeWriter
       try {
-        String outputFilename = source.getParent().toString() + "/" + getFilename(args[0]) + ".asm";
-        FileWriter fw = new FileWriter(outputFilename);
-        codeWriter = new CodeWriter(fw);
+        codeWriter = new CodeWriter(outline || sourceMap ? code : new FileWriter(outputFilename));
+        codeWriter.setSourceMarkers(sourceMap);
+        if (useRegisters) {
+          codeWriter.setRegisterAllocator(allocateRegisters(source));
+        }
+        if (profileName != null) {
+          profileGuide = guideByProfile(source, Paths.get(profileName));
+          codeWriter.setProfileGuide(profileGuide);
+        }
       } catch (IOException e) {
         System.out.println("Error in creating output file");
         e.printStackTrace();
@@ -156,17 +331,29 @@ public class VMTranslator {
       // Write code
       generateCode(source, codeWriter);
       codeWriter.close();
+      if (outline || sourceMap) {
+        writeOutput(outline ? outline(code.toString(), profileGuide) : code.toString(), outputFilename);
+      }
     }
     
     // Source is a directory
     if (Files.isDirectory(source)) {
       CodeWriter codeWriter;
+      ProfileGuide profileGuide = null;
+      String outputFilename = source.toString() + "/" + getFilename(sourceName) + ".asm";
+      StringWriter code = new StringWriter();
 
       // Set up CodeWriter
       try {
-        String outputFilename = source.toString() + "/" + getFilename(args[0]) + ".asm";
-        FileWriter fw = new FileWriter(outputFilename);
-        codeWriter = new CodeWriter(fw);
+        codeWriter = new CodeWriter(outline || sourceMap ? code : new FileWriter(outputFilename));
+        codeWriter.setSourceMarkers(sourceMap);
+        if (useRegisters) {
+          codeWriter.setRegisterAllocator(allocateRegisters(source));
+        }
+        if (profileName != null) {
+          profileGuide = guideByProfile(source, Paths.get(profileName));
+          codeWriter.setProfileGuide(profileGuide);
+        }
       } catch (IOException e) {
         System.out.println("Error in creating output file");
         e.printStackTrace();
@@ -189,6 +376,9 @@ public class VMTranslator {
         return;
       }
       codeWriter.close();
+      if (outline || sourceMap) {
+        writeOutput(outline ? outline(code.toString(), profileGuide) : code.toString(), outputFilename);
+      }
     }
   }
 }
@@ -0,0 +1,11 @@
+// {0}
+@SP
+AM=M-1
+D=M
+@SP
+A=M-1
+A=D+M
+D=M
+@SP
+A=M-1
+M=D
@@ -0,0 +1,19 @@
+// {0}
+@SP
+AM=M-1
+D=M
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@SP
+AM=M-1
+D=D+M
+@R14
+M=D
+@R13
+D=M
+@R14
+A=M
+M=D
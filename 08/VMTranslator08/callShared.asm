@@ -0,0 +1,14 @@
+// call {0} {1} (shared)
+@{1}
+D=A
+@R13
+M=D
+@{0}
+D=A
+@R14
+M=D
+@retAddr.{2}
+D=A
+@$CALL
+0;JMP
+(retAddr.{2})
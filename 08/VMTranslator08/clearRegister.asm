@@ -0,0 +1,3 @@
+// {0} {1} -> R{2}
+@R{2}
+M=0
@@ -1,8 +1,7 @@
-// push constant {1}
+// push constant {0}
 @{1}
-D=A
-@R14
-M=D
-D=A
-@R13
+D={2}A
+@SP
+M=M+1
+A=M-1
 M=D
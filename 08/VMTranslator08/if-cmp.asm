@@ -0,0 +1,9 @@
+// {2} {1}
+@SP
+AM=M-1
+D=M
+@SP
+AM=M-1
+D=M-D
+@{0}${1}
+D;{3}
@@ -0,0 +1,2 @@
+// {0} {1} {2}
+{3}M={4}
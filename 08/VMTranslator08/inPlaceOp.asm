@@ -0,0 +1,5 @@
+// {0} {1} {2}
+@SP
+AM=M-1
+D=M
+{3}M={4}
@@ -0,0 +1,8 @@
+// {0} {1} -> R{2}
+@{3}
+D=M
+@{1}
+A=D+A
+D=M
+@R{2}
+M=D
@@ -0,0 +1,10 @@
+// {0} locals
+@{0}
+D=A
+({1}.localLoop)
+@SP
+AM=M+1
+A=A-1
+M=0
+@{1}.localLoop
+D=D-1;JGT
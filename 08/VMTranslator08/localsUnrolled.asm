@@ -0,0 +1,7 @@
+// {0} locals
+@SP
+A=M
+M=0
+{1}D=A+1
+@SP
+M=D
@@ -0,0 +1,6 @@
+// pop {0} {1} (R{2})
+@SP
+AM=M-1
+D=M
+@R{2}
+M=D
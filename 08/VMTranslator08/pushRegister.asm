@@ -0,0 +1,7 @@
+// push {0} {1} (R{2})
+@R{2}
+D=M
+@SP
+M=M+1
+A=M-1
+M=D
@@ -0,0 +1,31 @@
+// return-void
+@ARG
+D=M
+@SP
+M=D
+@LCL
+D=M
+@R13
+AM=D-1
+D=M
+@THAT
+M=D
+@R13
+AM=M-1
+D=M
+@THIS
+M=D
+@R13
+AM=M-1
+D=M
+@ARG
+M=D
+@R13
+AM=M-1
+D=M
+@LCL
+M=D
+@R13
+A=M-1
+A=M
+0;JMP
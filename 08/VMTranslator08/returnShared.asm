@@ -0,0 +1,3 @@
+// {0} (shared)
+@{1}
+0;JMP
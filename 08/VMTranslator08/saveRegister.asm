@@ -0,0 +1,12 @@
+// R{2} -> {0} {1}
+@{3}
+D=M
+@{1}
+D=D+A
+@R13
+M=D
+@R{2}
+D=M
+@R13
+A=M
+M=D
@@ -0,0 +1,5 @@
+// push constant {0}
+@SP
+M=M+1
+A=M-1
+M={0}
@@ -1,30 +1,14 @@
-import java.io.File;
 import java.io.FileWriter;
-import java.io.StringWriter;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
 public class CompilationEngine {
   private JackTokenizer tokenizer;
 
-  private FileWriter compilerOutput;
-
-  private Document jackDocument;
+  private XMLWriter xmlWriter;
 
   private static class SyntaxElements {
     public static Map<JackTokenizer.TokenType, String> typeTags = new HashMap<JackTokenizer.TokenType, String>();
@@ -49,76 +33,28 @@ public class CompilationEngine {
     tokenizer = new JackTokenizer(src);
 
     try {
-      // Create output stram
-      File f = new File(src.getParent().toString() + "/"
+      // Create output stream
+      FileWriter f = new FileWriter(src.getParent().toString() + "/"
           + src.getFileName().toString().replaceAll("\\.[^.]*?$", "") + ".xml");
-      f.createNewFile();
-      compilerOutput = new FileWriter(f);
-
-      // Create the entire XML document
-      jackDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-
-      // Create the root element of the XML document
-      jackDocument.appendChild(compileClass());
+      xmlWriter = new XMLWriter(f);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  public static String fixClosedTag(String rawXml) {
-    LinkedList<String[]> listTags = new LinkedList<String[]>();
-    String splittato[] = rawXml.split("<");
-
-    String prettyXML = "";
-
-    for (int x = 0; x < splittato.length; x++) {
-      String tmpStr = splittato[x];
-      int indexEnd = tmpStr.indexOf("/>");
-      if (indexEnd > -1) {
-        String nameTag = tmpStr.substring(0, (indexEnd));
-        String oldTag = "<" + nameTag + "/>";
-        String newTag = "<" + nameTag + ">\n</" + nameTag + ">";
-        String tag[] = new String[2];
-        tag[0] = oldTag;
-        tag[1] = newTag;
-        listTags.add(tag);
-      }
-    }
-    prettyXML = rawXml;
-
-    for (int y = 0; y < listTags.size(); y++) {
-      String el[] = listTags.get(y);
-
-      prettyXML = prettyXML.replaceAll(el[0], el[1]);
-    }
-
-    return prettyXML;
-  }
-
-  private Element newElement(String tagName) {
-    Element e = jackDocument.createElement(tagName);
-    return e;
-  }
-
-  private Node eat() {
-    Element tokenElement;
-
+  private void eat() {
     tokenizer.advance();
 
     String tagName = SyntaxElements.typeTags.get(tokenizer.tokenType());
     String value = tokenizer.value();
-    System.out.println(value);
     if (tokenizer.tokenType() == JackTokenizer.TokenType.STRING_CONST) {
       value = tokenizer.stringValue();
     }
 
-    tokenElement = newElement(tagName);
-    tokenElement.appendChild(jackDocument.createTextNode(value));
-
-    return tokenElement;
+    xmlWriter.writeElement(tagName, value);
   }
 
-  private Node compileType() {
+  private void compileType() {
     String tagName = "";
 
     tokenizer.advance();
@@ -135,315 +71,315 @@ public class CompilationEngine {
         break;
     }
 
-    Element typeElement = newElement(tagName);
-    typeElement.appendChild(jackDocument.createTextNode(token));
-    return typeElement;
+    xmlWriter.writeElement(tagName, token);
   }
 
   /**
    * Compiles a complete class
    */
-  public Node compileClass() {
-    Element classElement = newElement("class");
+  public void compileClass() {
+    xmlWriter.openElement("class");
 
-    classElement.appendChild(eat()); // "class"
-    classElement.appendChild(eat()); // className
-    classElement.appendChild(eat()); // "{"
+    eat(); // "class"
+    eat(); // className
+    eat(); // "{"
 
     String peek = tokenizer.peekNext();
     while (!peek.equals("}")) {
       switch (peek) {
         case "static":
         case "field":
-          classElement.appendChild(compileClassVarDec());
+          compileClassVarDec();
           break;
         case "constructor":
         case "function":
         case "method":
-          classElement.appendChild(compileSubroutine());
+          compileSubroutine();
       }
       peek = tokenizer.peekNext();
     }
 
-    classElement.appendChild(eat()); // "}"
+    eat(); // "}"
 
-    return classElement;
+    xmlWriter.closeElement("class");
   }
 
   /**
    * Compiles a static declaration or a field declaration
    */
-  public Node compileClassVarDec() {
-    Element varDecElement = newElement("classVarDec");
+  public void compileClassVarDec() {
+    xmlWriter.openElement("classVarDec");
 
-    varDecElement.appendChild(eat()); // "static" or "field"
-    varDecElement.appendChild(compileType());
-    varDecElement.appendChild(eat()); // varName
+    eat(); // "static" or "field"
+    compileType();
+    eat(); // varName
     while (!tokenizer.peekNext().equals(";")) {
-      varDecElement.appendChild(eat()); // ","
-      varDecElement.appendChild(eat()); // varName
+      eat(); // ","
+      eat(); // varName
     }
-    varDecElement.appendChild(eat()); // ";"
+    eat(); // ";"
 
-    return varDecElement;
+    xmlWriter.closeElement("classVarDec");
   }
 
   /**
    * Compiles a complete method, function, or constructor
    */
-  public Node compileSubroutine() {
-    Element subroutineElement = newElement("subroutineDec");
-
-    subroutineElement.appendChild(eat()); // "constructor" or "function" or "method"
-    subroutineElement.appendChild(eat()); // type or "void"
-    subroutineElement.appendChild(eat()); // subroutineName
-    subroutineElement.appendChild(eat()); // "("
-    subroutineElement.appendChild(compileParameterList());
-    subroutineElement.appendChild(eat()); // ")"
-
-    Element subroutineBodyElement = newElement("subroutineBody");
-    subroutineBodyElement.appendChild(eat()); // "{"
+  public void compileSubroutine() {
+    xmlWriter.openElement("subroutineDec");
+
+    eat(); // "constructor" or "function" or "method"
+    eat(); // type or "void"
+    eat(); // subroutineName
+    eat(); // "("
+    compileParameterList();
+    eat(); // ")"
+
+    xmlWriter.openElement("subroutineBody");
+    eat(); // "{"
     while (tokenizer.peekNext().equals("var")) {
-      subroutineBodyElement.appendChild(compileVarDec());
+      compileVarDec();
     }
-    subroutineBodyElement.appendChild(compileStatements());
-    subroutineBodyElement.appendChild(eat()); //
+    compileStatements();
+    eat(); //
 
-    subroutineElement.appendChild(subroutineBodyElement);
+    xmlWriter.closeElement("subroutineBody");
 
-    return subroutineElement;
+    xmlWriter.closeElement("subroutineDec");
   }
 
   /**
    * Compiles a (possibly empty) parameter list, not including the enclosing "()"
    */
-  public Node compileParameterList() {
-    Element parameterListElement = newElement("parameterList");
+  public void compileParameterList() {
+    xmlWriter.openElement("parameterList");
 
     if (tokenizer.peekNext().equals(")")) {
-      return parameterListElement;
+      xmlWriter.closeElement("parameterList");
+      return;
     }
 
     while (true) {
-      parameterListElement.appendChild(compileType());
-      parameterListElement.appendChild(eat()); // varName
+      compileType();
+      eat(); // varName
       if (!tokenizer.peekNext().equals(",")) {
-        return parameterListElement;
+        xmlWriter.closeElement("parameterList");
+        return;
       }
-      parameterListElement.appendChild(eat()); // ","
+      eat(); // ","
     }
   }
 
   /**
    * Compiles a var declaration
    */
-  public Node compileVarDec() {
-    Element varDecElement = newElement("varDec");
+  public void compileVarDec() {
+    xmlWriter.openElement("varDec");
 
-    varDecElement.appendChild(eat()); // "var"
-    varDecElement.appendChild(compileType());
-    varDecElement.appendChild(eat()); // varName
+    eat(); // "var"
+    compileType();
+    eat(); // varName
     while (!tokenizer.peekNext().equals(";")) {
-      varDecElement.appendChild(eat()); // ","
-      varDecElement.appendChild(eat()); // varName
+      eat(); // ","
+      eat(); // varName
     }
-    varDecElement.appendChild(eat()); // ";"
+    eat(); // ";"
 
-    return varDecElement;
+    xmlWriter.closeElement("varDec");
   }
 
   /**
    * Compiles a sequence of statements, not including the enclosing "{}"
    */
-  public Node compileStatements() {
-    Element statementsElement = newElement("statements");
+  public void compileStatements() {
+    xmlWriter.openElement("statements");
 
     while (!tokenizer.peekNext().equals("}")) {
       String statement = tokenizer.peekNext();
       switch (statement) {
         case "do":
-          statementsElement.appendChild(compileDo());
+          compileDo();
           break;
         case "let":
-          statementsElement.appendChild(compileLet());
+          compileLet();
           break;
         case "while":
-          statementsElement.appendChild(compileWhile());
+          compileWhile();
           break;
         case "return":
-          statementsElement.appendChild(compileReturn());
+          compileReturn();
           break;
         case "if":
-          statementsElement.appendChild(compileIf());
+          compileIf();
           break;
         default:
           break;
       }
     }
 
-    return statementsElement;
+    xmlWriter.closeElement("statements");
   }
 
   /**
    * Compiles a do statement
    */
-  public Node compileDo() {
-    Element doElement = newElement("doStatement");
+  public void compileDo() {
+    xmlWriter.openElement("doStatement");
 
-    doElement.appendChild(eat()); // "do"
-    doElement.appendChild(eat()); // subroutineName or className or varName
+    eat(); // "do"
+    eat(); // subroutineName or className or varName
     switch (tokenizer.peekNext()) {
       case "(":
-        doElement.appendChild(eat()); // "("
-        doElement.appendChild(compileExpressionList());
-        doElement.appendChild(eat()); // ")"
+        eat(); // "("
+        compileExpressionList();
+        eat(); // ")"
         break;
       case ".":
-        doElement.appendChild(eat()); // "."
-        doElement.appendChild(eat()); // subroutineName
-        doElement.appendChild(eat()); // "("
-        doElement.appendChild(compileExpressionList());
-        doElement.appendChild(eat()); // ")"
+        eat(); // "."
+        eat(); // subroutineName
+        eat(); // "("
+        compileExpressionList();
+        eat(); // ")"
         break;
       default:
         break;
     }
 
-    doElement.appendChild(eat()); // ";"
+    eat(); // ";"
 
-    return doElement;
+    xmlWriter.closeElement("doStatement");
   }
 
   /**
    * Compiles a let statement
    */
-  public Node compileLet() {
-    Element letElement = newElement("letStatement");
+  public void compileLet() {
+    xmlWriter.openElement("letStatement");
 
-    letElement.appendChild(eat()); // "let"
-    letElement.appendChild(eat()); // varName
+    eat(); // "let"
+    eat(); // varName
     if (tokenizer.peekNext().equals("[")) {
-      letElement.appendChild(eat()); // "["
-      letElement.appendChild(compileExpression());
-      letElement.appendChild(eat()); // "]"
+      eat(); // "["
+      compileExpression();
+      eat(); // "]"
     }
 
-    letElement.appendChild(eat()); // "="
-    letElement.appendChild(compileExpression());
-    letElement.appendChild(eat()); // ";"
+    eat(); // "="
+    compileExpression();
+    eat(); // ";"
 
-    return letElement;
+    xmlWriter.closeElement("letStatement");
   }
 
   /**
    * Compiles a while statement
    */
-  public Node compileWhile() {
-    Element whileElement = newElement("whileStatement");
-
-    whileElement.appendChild(eat()); // "while"
-    whileElement.appendChild(eat()); // "("
-    whileElement.appendChild(compileExpression());
-    whileElement.appendChild(eat()); // ")"
-    whileElement.appendChild(eat()); // "{"
-    whileElement.appendChild(compileStatements());
-    whileElement.appendChild(eat()); // "}"
-
-    return whileElement;
+  public void compileWhile() {
+    xmlWriter.openElement("whileStatement");
+
+    eat(); // "while"
+    eat(); // "("
+    compileExpression();
+    eat(); // ")"
+    eat(); // "{"
+    compileStatements();
+    eat(); // "}"
+
+    xmlWriter.closeElement("whileStatement");
   }
 
   /**
    * Compiles a return statemet
    */
-  public Node compileReturn() {
-    Element returnElement = newElement("returnStatement");
+  public void compileReturn() {
+    xmlWriter.openElement("returnStatement");
 
-    returnElement.appendChild(eat()); // "return"
+    eat(); // "return"
     if (!tokenizer.peekNext().equals(";")) {
-      returnElement.appendChild(compileExpression());
+      compileExpression();
     }
-    returnElement.appendChild(eat()); // ";"
+    eat(); // ";"
 
-    return returnElement;
+    xmlWriter.closeElement("returnStatement");
   }
 
   /**
    * Compiles an if statemnt, possibly with a trailing else clause
    */
-  public Node compileIf() {
-    Element ifElement = newElement("ifStatement");
+  public void compileIf() {
+    xmlWriter.openElement("ifStatement");
 
-    ifElement.appendChild(eat()); // "if"
-    ifElement.appendChild(eat()); // "("
-    ifElement.appendChild(compileExpression());
-    ifElement.appendChild(eat()); // ")"
-    ifElement.appendChild(eat()); // "{"
-    ifElement.appendChild(compileStatements());
-    ifElement.appendChild(eat()); // "}"
+    eat(); // "if"
+    eat(); // "("
+    compileExpression();
+    eat(); // ")"
+    eat(); // "{"
+    compileStatements();
+    eat(); // "}"
 
     if (tokenizer.peekNext().equals("else")) {
-      ifElement.appendChild(eat()); // "else"
-      ifElement.appendChild(eat()); // "{"
-      ifElement.appendChild(compileStatements());
-      ifElement.appendChild(eat()); // "}"
+      eat(); // "else"
+      eat(); // "{"
+      compileStatements();
+      eat(); // "}"
     }
 
-    return ifElement;
+    xmlWriter.closeElement("ifStatement");
   }
 
   /**
    * Compiles an expression
    */
-  public Node compileExpression() {
-    Element expressionElement = newElement("expression");
+  public void compileExpression() {
+    xmlWriter.openElement("expression");
 
-    expressionElement.appendChild(compileTerm());
+    compileTerm();
 
     while (SyntaxElements.op.contains(tokenizer.peekNext())) {
-      expressionElement.appendChild(eat()); // op
-      expressionElement.appendChild(compileTerm());
+      eat(); // op
+      compileTerm();
     }
 
-    return expressionElement;
+    xmlWriter.closeElement("expression");
   }
 
   /**
    * Compiles a term
    */
-  public Node compileTerm() {
-    Element termElement = newElement("term");
+  public void compileTerm() {
+    xmlWriter.openElement("term");
 
     // integerConstant or stringConstant or keywordConstant or varName or
     // subroutineName or
     // className or "(" or unaryOp
-    termElement.appendChild(eat());
+    eat();
     switch (tokenizer.tokenType()) {
       case SYMBOL:
         if (tokenizer.value().equals("(")) {
-          termElement.appendChild(compileExpression());
-          termElement.appendChild(eat()); // ")"
+          compileExpression();
+          eat(); // ")"
         } else {
-          termElement.appendChild(compileTerm());
+          compileTerm();
         }
         break;
       case IDENTIFIER:
         switch (tokenizer.peekNext()) {
           case "[":
-            termElement.appendChild(eat()); // "["
-            termElement.appendChild(compileExpression());
-            termElement.appendChild(eat()); // "]"
+            eat(); // "["
+            compileExpression();
+            eat(); // "]"
             break;
           case "(":
-            termElement.appendChild(eat()); // "("
-            termElement.appendChild(compileExpressionList());
-            termElement.appendChild(eat()); // ")"
+            eat(); // "("
+            compileExpressionList();
+            eat(); // ")"
             break;
           case ".":
-            termElement.appendChild(eat()); // "."
-            termElement.appendChild(eat()); // subroutineName
-            termElement.appendChild(eat()); // "("
-            termElement.appendChild(compileExpressionList());
-            termElement.appendChild(eat()); // ")"
+            eat(); // "."
+            eat(); // subroutineName
+            eat(); // "("
+            compileExpressionList();
+            eat(); // ")"
             break;
           default:
             break;
@@ -453,48 +389,33 @@ public class CompilationEngine {
         break;
     }
 
-    return termElement;
+    xmlWriter.closeElement("term");
   }
 
   /**
    * Compiles a (possibly empty) comma-separated list of expressions
    */
-  public Node compileExpressionList() {
-    Element listElement = newElement("expressionList");
+  public void compileExpressionList() {
+    xmlWriter.openElement("expressionList");
     if (tokenizer.peekNext().equals(")")) {
-      return listElement;
+      xmlWriter.closeElement("expressionList");
+      return;
     }
 
     while (true) {
-      listElement.appendChild(compileExpression());
+      compileExpression();
       if (!tokenizer.peekNext().equals(",")) {
-        return listElement;
+        xmlWriter.closeElement("expressionList");
+        return;
       }
-      listElement.appendChild(eat()); // ","
+      eat(); // ","
     }
   }
 
   /**
-   * Writes the XML output to the output file after all compilation is com plete
+   * Flushes and closes the output file
    */
-  public void writeOutput() {
-    try {
-      // Configure the transformer
-      Transformer jackTransformer = TransformerFactory.newInstance().newTransformer();
-      jackTransformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      jackTransformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-
-      DOMSource source = new DOMSource(jackDocument);
-      StringWriter sw = new StringWriter();
-      StreamResult output = new StreamResult(sw);
-      jackTransformer.transform(source, output);
-
-      String xmlString = sw.toString();
-      compilerOutput.write(fixClosedTag(xmlString));
-
-      compilerOutput.close();
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  public void close() {
+    xmlWriter.close();
   }
 }
@@ -1,6 +1,9 @@
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class JackAnalyzer {
 
@@ -16,7 +19,8 @@ public class JackAnalyzer {
     if (getFileExtension(src.toString()).equals(".jack")) {
       System.out.println(String.format("Compiling file: %s", src.getFileName()));
       CompilationEngine cEngine = new CompilationEngine(src);
-      cEngine.writeOutput();
+      cEngine.compileClass();
+      cEngine.close();
     }
   }
 
@@ -28,8 +32,10 @@ public class JackAnalyzer {
     }
 
     if (Files.isDirectory(p)) {
-      try {
-        Files.walk(p).forEach(file -> {
+      // Every file gets its own tokenizer and output, so they can all be analyzed at once
+      try (Stream<Path> files = Files.walk(p)) {
+        List<Path> sources = files.collect(Collectors.toList());
+        sources.parallelStream().forEach(file -> {
           analyzeFile(file);
         });
       } catch (Exception e) {
@@ -0,0 +1,115 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the XML markup of a Jack program as it is being parsed. Elements are
+ * written out as soon as they are opened or closed, so nothing but the current
+ * nesting depth has to be kept in memory.
+ */
+public class XMLWriter {
+  /**
+   * The output stream in which we write XML
+   */
+  private BufferedWriter output;
+
+  /**
+   * How deep we are in the element tree, for indentation
+   */
+  private int depth;
+
+  /**
+   * Creates an XML writer that writes to the given output
+   *
+   * @param output Where the XML will be written to
+   */
+  public XMLWriter(Writer output) {
+    this.output = new BufferedWriter(output);
+    depth = 0;
+  }
+
+  /**
+   * Escapes the characters that would otherwise be read as markup
+   */
+  private static String escape(String text) {
+    StringBuilder sb = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '"':
+          sb.append("&quot;");
+          break;
+        default:
+          sb.append(c);
+          break;
+      }
+    }
+    return sb.toString();
+  }
+
+  private void indent() throws IOException {
+    for (int i = 0; i < depth; i++) {
+      output.write("  ");
+    }
+  }
+
+  /**
+   * Opens a new element. Everything written afterwards goes inside of it, until
+   * closeElement() is called
+   */
+  public void openElement(String tagName) {
+    try {
+      indent();
+      output.write("<" + tagName + ">\n");
+      depth++;
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Closes an element opened by openElement(). Empty elements are still written
+   * with an opening and a closing tag, on separate lines
+   */
+  public void closeElement(String tagName) {
+    try {
+      depth--;
+      indent();
+      output.write("</" + tagName + ">\n");
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes an element that only holds text (i.e. a token), on one line
+   */
+  public void writeElement(String tagName, String text) {
+    try {
+      indent();
+      output.write("<" + tagName + "> " + escape(text) + " </" + tagName + ">\n");
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Flushes everything and closes the output
+   */
+  public void close() {
+    try {
+      output.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,221 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Knows the signature of every subroutine in the classes being compiled, so
+ * that a call site can find out about its callee before the callee's class is
+ * compiled. The index is built by a quick pass over the tokens of every file
+ * (the subroutine bodies are only skimmed), done in parallel.
+ * <p>
+ * A program is the Jack files of one directory, so a call is only ever looked
+ * up among the classes in the caller's own directory. That way a source with
+ * many programs in it (like the tests of 12/, which all have a Main) keeps
+ * their classes apart.
+ */
+public class ClassIndex {
+  /**
+   * What the index knows about one subroutine
+   */
+  public static class SubroutineInfo {
+    /**
+     * One of "constructor", "function", or "method"
+     */
+    public final String subroutineType;
+    public final String returnType;
+    public final int parameterCount;
+    /**
+     * The number of tokens between the "{}" of the body
+     */
+    public final int bodyTokenCount;
+    public final boolean hasLocals;
+    public final boolean makesCalls;
+
+    private SubroutineInfo(String subroutineType, String returnType, int parameterCount, int bodyTokenCount,
+        boolean hasLocals, boolean makesCalls) {
+      this.subroutineType = subroutineType;
+      this.returnType = returnType;
+      this.parameterCount = parameterCount;
+      this.bodyTokenCount = bodyTokenCount;
+      this.hasLocals = hasLocals;
+      this.makesCalls = makesCalls;
+    }
+
+    public boolean isVoid() {
+      return returnType.equals("void");
+    }
+
+    /**
+     * Whether the subroutine is small and simple enough to be worth inlining: a
+     * function or method with no locals that doesn't call anything, and whose
+     * body is only a handful of tokens (like a getter)
+     */
+    public boolean isInlineCandidate() {
+      return !subroutineType.equals("constructor") && !hasLocals && !makesCalls
+          && bodyTokenCount <= MAX_INLINE_TOKENS;
+    }
+  }
+
+  private static final int MAX_INLINE_TOKENS = 12;
+
+  /**
+   * The classes every program needs: the OS, and Main, which Sys.init calls
+   */
+  private static final Set<String> programClasses = Set.of("Array", "Keyboard", "Math", "Memory", "Output",
+      "Screen", "String", "Sys", "Main");
+
+  /**
+   * The subroutines of every class, by directory and then by full name
+   * ("Class.subroutine")
+   */
+  private Map<Path, Map<String, SubroutineInfo>> subroutines = new ConcurrentHashMap<>();
+
+  /**
+   * The classes in each directory
+   */
+  private Map<Path, Set<String>> classes = new ConcurrentHashMap<>();
+
+  /**
+   * Indexes every Jack file in a source, which is either a Jack file or a
+   * directory containing Jack files (the same as what JackCompiler takes)
+   */
+  public ClassIndex(Path source) {
+    List<Path> files = new ArrayList<>();
+    try {
+      files = Files.walk(source).filter(file -> file.toString().endsWith(".jack")).collect(Collectors.toList());
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    files.parallelStream().forEach(file -> {
+      Path directory = file.toAbsolutePath().getParent();
+      String fileName = file.getFileName().toString();
+      classes.computeIfAbsent(directory, key -> ConcurrentHashMap.newKeySet())
+          .add(fileName.substring(0, fileName.length() - ".jack".length()));
+      subroutines.computeIfAbsent(directory, key -> new ConcurrentHashMap<>()).putAll(scan(file));
+    });
+  }
+
+  private static Map<String, SubroutineInfo> scan(Path file) {
+    Map<String, SubroutineInfo> found = new ConcurrentHashMap<>();
+    JackTokenizer scanner = new JackTokenizer(file);
+    scanner.advance(); // class
+    scanner.advance();
+    String className = scanner.value();
+    scanner.advance(); // {
+
+    while (true) {
+      scanner.advance();
+      String value = scanner.value();
+      if (value.equals("}")) { // End of the class
+        return found;
+      }
+      if (!(value.equals("constructor") || value.equals("function") || value.equals("method"))) {
+        continue; // Part of a class variable declaration
+      }
+
+      String subroutineType = value;
+      scanner.advance();
+      String returnType = scanner.value();
+      scanner.advance();
+      String name = scanner.value();
+
+      // Parameters: one more than the amount of commas, unless there are none
+      scanner.advance(); // (
+      int parameterCount = 0;
+      scanner.advance();
+      while (!scanner.value().equals(")")) {
+        if (parameterCount == 0 || scanner.value().equals(",")) {
+          parameterCount++;
+        }
+        scanner.advance();
+      }
+
+      // Body
+      scanner.advance(); // {
+      int depth = 1;
+      int bodyTokenCount = 0;
+      boolean hasLocals = false;
+      boolean makesCalls = false;
+      boolean afterIdentifier = false;
+      while (true) {
+        scanner.advance();
+        value = scanner.value();
+        if (value.equals("{")) {
+          depth++;
+        } else if (value.equals("}") && --depth == 0) {
+          break;
+        }
+        bodyTokenCount++;
+        hasLocals |= value.equals("var");
+        // An identifier right before "(" is a subroutine name (if and while are keywords)
+        makesCalls |= afterIdentifier && value.equals("(");
+        afterIdentifier = scanner.tokenType() == JackTokenizer.TokenType.IDENTIFIER;
+      }
+
+      found.put(className + "." + name,
+          new SubroutineInfo(subroutineType, returnType, parameterCount, bodyTokenCount, hasLocals, makesCalls));
+    }
+  }
+
+  /**
+   * Finds a subroutine by its full name ("Class.subroutine")
+   *
+   * @param caller The Jack file the subroutine is called from
+   * @return What is known about the subroutine, or null if it isn't in any of
+   *         the classes in the caller's directory (e.g. an OS function that
+   *         isn't being compiled)
+   */
+  public SubroutineInfo find(Path caller, String name) {
+    return subroutines.getOrDefault(caller.toAbsolutePath().getParent(), Map.of()).get(name);
+  }
+
+  /**
+   * Whether a subroutine is known to be void. Subroutines outside of the index
+   * are assumed to return something
+   */
+  public boolean isVoid(Path caller, String name) {
+    SubroutineInfo info = find(caller, name);
+    return info != null && info.isVoid();
+  }
+
+  /**
+   * Gets the classes that a whole program needs (the OS and Main) but which
+   * aren't in one of the indexed directories
+   *
+   * @return The missing classes, as "directory/Class", or an empty list if
+   *         every directory holds a whole program
+   */
+  public List<String> getMissingProgramClasses() {
+    List<String> missing = new ArrayList<>();
+    for (Map.Entry<Path, Set<String>> directory : classes.entrySet()) {
+      for (String className : programClasses) {
+        if (!directory.getValue().contains(className)) {
+          missing.add(directory.getKey().resolve(className).toString());
+        }
+      }
+    }
+    missing.sort(null);
+    return missing;
+  }
+
+  /**
+   * Gets the full names of the subroutines that are worth inlining (see
+   * SubroutineInfo.isInlineCandidate())
+   */
+  public List<String> getInlineCandidates() {
+    boolean manyPrograms = subroutines.size() > 1;
+    List<String> candidates = new ArrayList<>();
+    subroutines.forEach((directory, found) -> found.forEach((name, info) -> {
+      if (info.isInlineCandidate()) {
+        candidates.add(manyPrograms ? directory.getFileName() + "/" + name : name);
+      }
+    }));
+    candidates.sort(null);
+    return candidates;
+  }
+}
@@ -0,0 +1,626 @@
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes VM code for a SyntaxTree. The code written is the same as what
+ * CompilationEngine writes while parsing, so any difference in the output
+ * comes from the optimizations done on the tree.
+ */
+public class CodeGenerator {
+  private VMWriter vmWriter;
+  private SymbolTable symbolTable;
+
+  private String className;
+
+  /**
+   * Whether string literals are pooled (see StringPool)
+   */
+  private boolean poolStrings = false;
+  private StringPool stringPool = null;
+
+  /**
+   * Whether VM extension commands may be written (see
+   * CompilationEngine.setVMExtensions())
+   */
+  private boolean vmExtensions = false;
+
+  /**
+   * Whether the classes being compiled make up a whole program (see
+   * CompilationEngine.setWholeProgram())
+   */
+  private boolean wholeProgram = false;
+
+  /**
+   * The subroutines of every class being compiled, or null if unknown, and the
+   * Jack file being generated, to look callers up by
+   */
+  private ClassIndex classIndex = null;
+  private Path src;
+
+  /**
+   * The full name of the subroutine being generated
+   */
+  private String currentSubroutine;
+
+  /**
+   * The subroutines that use string literals, when pooling strings
+   */
+  private Set<SyntaxTree.SubroutineDec> subroutinesWithStrings = new HashSet<>();
+
+  private int whileCount = 0;
+  private int ifCount = 0;
+
+  private static Map<String, String> opArithmetic = new HashMap<>();
+  static {
+    opArithmetic.put("+", "add");
+    opArithmetic.put("-", "sub");
+    opArithmetic.put("&", "and");
+    opArithmetic.put("|", "or");
+    opArithmetic.put("<", "lt");
+    opArithmetic.put(">", "gt");
+    opArithmetic.put("=", "eq");
+  }
+
+  private static Map<String, String> negatedComparison = new HashMap<>();
+  static {
+    negatedComparison.put("lt", "ge");
+    negatedComparison.put("gt", "le");
+    negatedComparison.put("eq", "ne");
+    negatedComparison.put("ge", "lt");
+    negatedComparison.put("le", "gt");
+    negatedComparison.put("ne", "eq");
+  }
+
+  private static Map<String, String> inPlaceOp = new HashMap<>();
+  static {
+    inPlaceOp.put("+", "add-to");
+    inPlaceOp.put("-", "sub-to");
+    inPlaceOp.put("&", "and-to");
+    inPlaceOp.put("|", "or-to");
+  }
+
+  private static Map<String, String> unaryOp = new HashMap<>();
+  static {
+    unaryOp.put("-", "neg");
+    unaryOp.put("~", "not");
+  }
+
+  /**
+   * Creates a code generator that writes with the given VMWriter
+   */
+  public CodeGenerator(VMWriter vmWriter) {
+    this.vmWriter = vmWriter;
+    symbolTable = new SymbolTable();
+  }
+
+  /**
+   * Makes every distinct string literal get built only once, and kept in a
+   * static variable. Should be called before generateClass()
+   */
+  public void setPoolStrings(boolean poolStrings) {
+    this.poolStrings = poolStrings;
+  }
+
+  /**
+   * Allows VM extension commands to be written. Should be called before
+   * generateClass()
+   */
+  public void setVMExtensions(boolean vmExtensions) {
+    this.vmExtensions = vmExtensions;
+  }
+
+  /**
+   * Lets the generator know that the classes being compiled make up a whole
+   * program, OS included. Should be called before generateClass()
+   */
+  public void setWholeProgram(boolean wholeProgram) {
+    this.wholeProgram = wholeProgram;
+  }
+
+  /**
+   * Lets the generator know about the other classes being compiled. Should be
+   * called before generateClass()
+   *
+   * @param src The Jack file the class being generated comes from
+   */
+  public void setClassIndex(ClassIndex classIndex, Path src) {
+    this.classIndex = classIndex;
+    this.src = src;
+  }
+
+  /**
+   * Whether a subroutine returns with return-void (see
+   * CompilationEngine.returnsNothing())
+   */
+  private boolean returnsNothing(String name) {
+    return vmExtensions && wholeProgram && classIndex != null && classIndex.isVoid(src, name);
+  }
+
+  /**
+   * Writes the code for a complete class
+   */
+  public void generateClass(SyntaxTree.ClassDec classDec) {
+    className = classDec.name;
+    for (SyntaxTree.VarDec varDec : classDec.classVarDecs) {
+      defineAll(varDec);
+    }
+
+    if (poolStrings) {
+      stringPool = new StringPool(className, symbolTable.getCount(SymbolTable.Kind.STATIC));
+      for (SyntaxTree.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+        if (findStrings(subroutineDec.statements)) {
+          subroutinesWithStrings.add(subroutineDec);
+        }
+      }
+    }
+
+    for (SyntaxTree.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+      generateSubroutine(subroutineDec);
+    }
+
+    if (stringPool != null && !stringPool.isEmpty()) {
+      stringPool.writeInit(vmWriter);
+    }
+  }
+
+  /**
+   * Adds the string literals in some statements to the pool
+   *
+   * @return Whether there were any
+   */
+  private boolean findStrings(List<SyntaxTree.Statement> statements) {
+    boolean found = false;
+    for (SyntaxTree.Statement statement : statements) {
+      if (statement instanceof SyntaxTree.LetStatement) {
+        SyntaxTree.LetStatement letStatement = (SyntaxTree.LetStatement) statement;
+        found |= findStrings(letStatement.index) | findStrings(letStatement.value);
+      } else if (statement instanceof SyntaxTree.IfStatement) {
+        SyntaxTree.IfStatement ifStatement = (SyntaxTree.IfStatement) statement;
+        found |= findStrings(ifStatement.condition) | findStrings(ifStatement.statements);
+        if (ifStatement.elseStatements != null) {
+          found |= findStrings(ifStatement.elseStatements);
+        }
+      } else if (statement instanceof SyntaxTree.WhileStatement) {
+        SyntaxTree.WhileStatement whileStatement = (SyntaxTree.WhileStatement) statement;
+        found |= findStrings(whileStatement.condition) | findStrings(whileStatement.statements);
+      } else if (statement instanceof SyntaxTree.DoStatement) {
+        found |= findStrings(((SyntaxTree.DoStatement) statement).call);
+      } else if (statement instanceof SyntaxTree.ReturnStatement) {
+        found |= findStrings(((SyntaxTree.ReturnStatement) statement).value);
+      }
+    }
+    return found;
+  }
+
+  private boolean findStrings(SyntaxTree.Expression expression) {
+    if (expression instanceof SyntaxTree.StringConstant) {
+      stringPool.indexOf(((SyntaxTree.StringConstant) expression).value);
+      return true;
+    }
+    if (expression instanceof SyntaxTree.ArrayExpression) {
+      return findStrings(((SyntaxTree.ArrayExpression) expression).index);
+    }
+    if (expression instanceof SyntaxTree.CallExpression) {
+      boolean found = false;
+      for (SyntaxTree.Expression argument : ((SyntaxTree.CallExpression) expression).arguments) {
+        found |= findStrings(argument);
+      }
+      return found;
+    }
+    if (expression instanceof SyntaxTree.UnaryExpression) {
+      return findStrings(((SyntaxTree.UnaryExpression) expression).term);
+    }
+    if (expression instanceof SyntaxTree.BinaryExpression) {
+      SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+      return findStrings(binary.left) | findStrings(binary.right);
+    }
+    return false;
+  }
+
+  private void defineAll(SyntaxTree.VarDec varDec) {
+    for (String name : varDec.names) {
+      symbolTable.define(name, varDec.type, varDec.kind);
+    }
+  }
+
+  /**
+   * Writes the code for a complete method, function, or constructor
+   */
+  public void generateSubroutine(SyntaxTree.SubroutineDec subroutineDec) {
+    symbolTable.startSubroutine();
+    int varCount = 0;
+
+    switch (subroutineDec.subroutineType) {
+      case "method":
+        symbolTable.define("this", className, "arg");
+        break;
+      case "constructor":
+        symbolTable.define("this", className, "var");
+        varCount++;
+    }
+    for (SyntaxTree.VarDec parameter : subroutineDec.parameters) {
+      defineAll(parameter);
+    }
+    for (SyntaxTree.VarDec varDec : subroutineDec.varDecs) {
+      defineAll(varDec);
+      varCount += varDec.names.size();
+    }
+
+    currentSubroutine = className + "." + subroutineDec.name;
+    vmWriter.setLine(subroutineDec.line);
+    vmWriter.writeFunction(currentSubroutine, varCount);
+    if (subroutinesWithStrings.contains(subroutineDec)) {
+      stringPool.writeCheck(vmWriter);
+    }
+    if (subroutineDec.subroutineType.equals("constructor")) {
+      vmWriter.writePushPop("push", "constant", symbolTable.getCount(SymbolTable.Kind.FIELD));
+      vmWriter.writeCall("Memory.alloc", 1);
+      vmWriter.writePushPop("pop", symbolTable.lookup("this"));
+    }
+
+    if (!subroutineDec.subroutineType.equals("function")) {
+      vmWriter.writePushPop("push", symbolTable.lookup("this"));
+      vmWriter.writePushPop("pop", "pointer", 0);
+    }
+
+    generateStatements(subroutineDec.statements);
+  }
+
+  public void generateStatements(List<SyntaxTree.Statement> statements) {
+    for (SyntaxTree.Statement statement : statements) {
+      vmWriter.setLine(statement.line);
+      if (statement instanceof SyntaxTree.DoStatement) {
+        vmWriter.writeArithmetic("// do");
+        generateDo((SyntaxTree.DoStatement) statement);
+      } else if (statement instanceof SyntaxTree.LetStatement) {
+        vmWriter.writeArithmetic("// let");
+        generateLet((SyntaxTree.LetStatement) statement);
+      } else if (statement instanceof SyntaxTree.WhileStatement) {
+        vmWriter.writeArithmetic("// while");
+        generateWhile((SyntaxTree.WhileStatement) statement);
+      } else if (statement instanceof SyntaxTree.ReturnStatement) {
+        vmWriter.writeArithmetic("// return");
+        generateReturn((SyntaxTree.ReturnStatement) statement);
+      } else if (statement instanceof SyntaxTree.IfStatement) {
+        vmWriter.writeArithmetic("// if");
+        generateIf((SyntaxTree.IfStatement) statement);
+      }
+    }
+  }
+
+  public void generateDo(SyntaxTree.DoStatement doStatement) {
+    if (!returnsNothing(generateCall(doStatement.call))) {
+      vmWriter.writePushPop("pop", "temp", 0); // Return values will end up clogging the stack
+    }
+  }
+
+  public void generateLet(SyntaxTree.LetStatement letStatement) {
+    String name = letStatement.name;
+    if (letStatement.index != null && vmExtensions) { // Array access, with indexed stores
+      SymbolTable.Symbol array = symbolTable.lookup(name);
+      if (isDirectAccess(array, letStatement.index)) {
+        generateExpression(letStatement.value);
+        vmWriter.writeThatBase(array);
+        vmWriter.writePushPop("pop", "that", ((SyntaxTree.IntConstant) letStatement.index).value);
+      } else {
+        vmWriter.writePushPop("push", array);
+        generateExpression(letStatement.index);
+        generateExpression(letStatement.value);
+        vmWriter.writeArrayStore();
+      }
+    } else if (letStatement.index != null) { // Array access
+      vmWriter.writePushPop("push", symbolTable.lookup(name));
+      generateExpression(letStatement.index);
+      vmWriter.writeArithmetic("add");
+
+      generateExpression(letStatement.value);
+      vmWriter.writePushPop("pop", "temp", 0);
+
+      vmWriter.writePushPop("pop", "pointer", 1);
+      vmWriter.writePushPop("push", "temp", 0);
+      vmWriter.writePushPop("pop", "that", 0);
+    } else if (!(vmExtensions && generateInPlace(letStatement))) {
+      generateExpression(letStatement.value);
+      vmWriter.writePushPop("pop", symbolTable.lookup(name));
+    }
+  }
+
+  /**
+   * Writes a let statement of the form x = x op y as an in-place update of x
+   * (see CompilationEngine.compileInPlace()). Adding or taking away a constant
+   * 1 or -1 becomes inc or dec.
+   *
+   * @return Whether the statement was written. If not, nothing was written
+   */
+  private boolean generateInPlace(SyntaxTree.LetStatement letStatement) {
+    if (!(letStatement.value instanceof SyntaxTree.BinaryExpression)) {
+      return false;
+    }
+    SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) letStatement.value;
+    SymbolTable.Symbol symbol = symbolTable.lookup(letStatement.name);
+    String command = inPlaceOp.get(binary.op);
+    if (command == null || !(binary.left instanceof SyntaxTree.VarExpression)
+        || !((SyntaxTree.VarExpression) binary.left).name.equals(letStatement.name)) {
+      return false;
+    }
+    if (!(symbol.kind == SymbolTable.Kind.VAR || symbol.kind == SymbolTable.Kind.ARG)
+        && !(binary.right instanceof SyntaxTree.IntConstant || binary.right instanceof SyntaxTree.VarExpression
+            || binary.right instanceof SyntaxTree.KeywordConstant)) {
+      return false;
+    }
+
+    if (binary.right instanceof SyntaxTree.IntConstant && (binary.op.equals("+") || binary.op.equals("-"))) {
+      int value = ((SyntaxTree.IntConstant) binary.right).value;
+      if (value == 1 || value == -1) {
+        vmWriter.writeInPlace(binary.op.equals("+") == (value == 1) ? "inc" : "dec", symbol);
+        return true;
+      }
+    }
+    generateExpression(binary.right);
+    vmWriter.writeInPlace(command, symbol);
+    return true;
+  }
+
+  /**
+   * Whether an array access can go straight through the that segment (see
+   * CompilationEngine.isDirectAccess()). Folding can turn an index into a
+   * negative constant, which the that segment can't take
+   */
+  private static boolean isDirectAccess(SymbolTable.Symbol array, SyntaxTree.Expression index) {
+    return (array.kind == SymbolTable.Kind.VAR || array.kind == SymbolTable.Kind.ARG)
+        && index instanceof SyntaxTree.IntConstant && ((SyntaxTree.IntConstant) index).value >= 0;
+  }
+
+  public void generateWhile(SyntaxTree.WhileStatement whileStatement) {
+    int currentCount = whileCount++;
+
+    vmWriter.writeLabel("LOOP" + currentCount);
+    if (whileStatement.condition != null) {
+      generateBranchIfFalse(whileStatement.condition, "LOOP-END" + currentCount);
+    }
+    generateStatements(whileStatement.statements);
+    vmWriter.setLine(whileStatement.line);
+    vmWriter.writeGoto("LOOP" + currentCount);
+    vmWriter.writeLabel("LOOP-END" + currentCount);
+  }
+
+  public void generateReturn(SyntaxTree.ReturnStatement returnStatement) {
+    if (returnStatement.value != null) {
+      generateExpression(returnStatement.value);
+    }
+    if (returnsNothing(currentSubroutine)) {
+      vmWriter.writeReturnVoid();
+    } else {
+      vmWriter.writeReturn();
+    }
+  }
+
+  public void generateIf(SyntaxTree.IfStatement ifStatement) {
+    int currentCount = ifCount++;
+    generateBranchIfFalse(ifStatement.condition, "IF" + currentCount + "-1");
+    generateStatements(ifStatement.statements);
+    vmWriter.setLine(ifStatement.line);
+    if (ifStatement.elseStatements != null) {
+      vmWriter.writeGoto("IF" + currentCount + "-2");
+      vmWriter.writeLabel("IF" + currentCount + "-1");
+      generateStatements(ifStatement.elseStatements);
+      vmWriter.writeLabel("IF" + currentCount + "-2");
+    } else {
+      vmWriter.writeLabel("IF" + currentCount + "-1");
+    }
+  }
+
+  /**
+   * Writes the code that jumps to the given label if a condition is false
+   */
+  private void generateBranchIfFalse(SyntaxTree.Expression condition, String label) {
+    String comparison = generateCondition(condition);
+    if (comparison == null) {
+      vmWriter.writeArithmetic("not");
+      vmWriter.writeIf(label);
+    } else {
+      vmWriter.writeIfCompare(negatedComparison.get(comparison), label);
+    }
+  }
+
+  /**
+   * Writes the code for a condition. If VM extensions are allowed and the
+   * condition is a comparison or a negated comparison, only its operands are
+   * pushed, and the comparison is returned (as "lt", "ge", etc.) so that it can
+   * be fused with the branch. Otherwise the condition is pushed like any other
+   * expression, and null is returned.
+   */
+  private String generateCondition(SyntaxTree.Expression condition) {
+    if (vmExtensions) {
+      if (condition instanceof SyntaxTree.UnaryExpression && ((SyntaxTree.UnaryExpression) condition).op.equals("~")) {
+        String comparison = generateComparisonOperands(((SyntaxTree.UnaryExpression) condition).term);
+        if (comparison != null) {
+          return negatedComparison.get(comparison);
+        }
+      } else {
+        String comparison = generateComparisonOperands(condition);
+        if (comparison != null) {
+          return comparison;
+        }
+      }
+    }
+    generateExpression(condition);
+    return null;
+  }
+
+  /**
+   * If an expression is a comparison, pushes both of its operands and returns
+   * the comparison. Otherwise nothing is written, and null is returned
+   */
+  private String generateComparisonOperands(SyntaxTree.Expression expression) {
+    if (!(expression instanceof SyntaxTree.BinaryExpression)) {
+      return null;
+    }
+    SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+    String command = opArithmetic.get(binary.op);
+    if (command == null || !negatedComparison.containsKey(command)) {
+      return null;
+    }
+    generateExpression(binary.left);
+    generateExpression(binary.right);
+    return command;
+  }
+
+  /**
+   * Writes the code that pushes the value of an expression onto the stack
+   */
+  public void generateExpression(SyntaxTree.Expression expression) {
+    if (expression instanceof SyntaxTree.IntConstant) {
+      generateConstant(((SyntaxTree.IntConstant) expression).value);
+    } else if (expression instanceof SyntaxTree.StringConstant) {
+      String value = ((SyntaxTree.StringConstant) expression).value;
+      if (stringPool != null) {
+        vmWriter.writePushPop("push", "static", stringPool.indexOf(value));
+      } else {
+        vmWriter.writeString(value);
+      }
+    } else if (expression instanceof SyntaxTree.KeywordConstant) {
+      switch (((SyntaxTree.KeywordConstant) expression).keyword) {
+        case "null":
+        case "false":
+          vmWriter.writePushPop("push", "constant", 0);
+          break;
+        case "true":
+          vmWriter.writePushPop("push", "constant", 1);
+          vmWriter.writeArithmetic("neg");
+          break;
+        case "this":
+          vmWriter.writePushPop("push", symbolTable.lookup("this"));
+          break;
+        default:
+          break;
+      }
+    } else if (expression instanceof SyntaxTree.VarExpression) {
+      String name = ((SyntaxTree.VarExpression) expression).name;
+      vmWriter.writePushPop("push", symbolTable.lookup(name));
+    } else if (expression instanceof SyntaxTree.ArrayExpression) {
+      SyntaxTree.ArrayExpression array = (SyntaxTree.ArrayExpression) expression;
+      SymbolTable.Symbol symbol = symbolTable.lookup(array.name);
+      if (vmExtensions && isDirectAccess(symbol, array.index)) {
+        vmWriter.writeThatBase(symbol);
+        vmWriter.writePushPop("push", "that", ((SyntaxTree.IntConstant) array.index).value);
+        return;
+      }
+      vmWriter.writePushPop("push", symbol);
+      generateExpression(array.index);
+      if (vmExtensions) {
+        vmWriter.writeArrayLoad();
+        return;
+      }
+      vmWriter.writeArithmetic("add");
+      vmWriter.writePushPop("pop", "pointer", 1);
+      vmWriter.writePushPop("push", "that", 0);
+    } else if (expression instanceof SyntaxTree.CallExpression) {
+      if (returnsNothing(generateCall((SyntaxTree.CallExpression) expression))) { // Keep the stack balanced
+        vmWriter.writePushPop("push", "constant", 0);
+      }
+    } else if (expression instanceof SyntaxTree.UnaryExpression) {
+      SyntaxTree.UnaryExpression unary = (SyntaxTree.UnaryExpression) expression;
+      generateExpression(unary.term);
+      vmWriter.writeArithmetic(unaryOp.get(unary.op));
+    } else if (expression instanceof SyntaxTree.BinaryExpression) {
+      SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+      if (binary.op.equals("*") || binary.op.equals("/")) {
+        if (generateConstantOperation(binary)) {
+          return;
+        }
+      }
+      generateExpression(binary.left);
+      generateExpression(binary.right);
+      if (opArithmetic.containsKey(binary.op)) {
+        vmWriter.writeArithmetic(opArithmetic.get(binary.op));
+      } else {
+        vmWriter.writeCall(binary.op.equals("*") ? "Math.multiply" : "Math.divide", 2);
+      }
+    }
+  }
+
+  /**
+   * Writes a multiplication or division by a constant without calling the OS,
+   * if possible. Multiplication is commutative, so the constant may be on either
+   * side of a "*"
+   *
+   * @return Whether the code was written
+   */
+  private boolean generateConstantOperation(SyntaxTree.BinaryExpression binary) {
+    SyntaxTree.Expression operand = binary.left;
+    SyntaxTree.Expression constant = binary.right;
+    if (binary.op.equals("*") && !(constant instanceof SyntaxTree.IntConstant)) {
+      operand = binary.right;
+      constant = binary.left;
+    }
+    if (!(constant instanceof SyntaxTree.IntConstant)) {
+      return false;
+    }
+
+    int value = ((SyntaxTree.IntConstant) constant).value;
+    VMWriter counter = new VMWriter();
+    boolean possible = binary.op.equals("*") ? counter.writeMultiplyByConstant(value)
+        : counter.writeDivideByConstant(value);
+    if (!possible) {
+      return false;
+    }
+
+    generateExpression(operand);
+    if (binary.op.equals("*")) {
+      vmWriter.writeMultiplyByConstant(value);
+    } else {
+      vmWriter.writeDivideByConstant(value);
+    }
+    return true;
+  }
+
+  /**
+   * Pushes an arbitrary 16-bit constant. The constant segment only holds
+   * non-negative values, so negative ones have to be built from those
+   */
+  private void generateConstant(int value) {
+    if (value >= 0) {
+      vmWriter.writePushPop("push", "constant", value);
+    } else if (value == -32768) {
+      vmWriter.writePushPop("push", "constant", 32767);
+      vmWriter.writeArithmetic("not");
+    } else {
+      vmWriter.writePushPop("push", "constant", -value);
+      vmWriter.writeArithmetic("neg");
+    }
+  }
+
+  /**
+   * Writes the code for a subroutine call
+   *
+   * @return The full name of the subroutine called
+   */
+  private String generateCall(SyntaxTree.CallExpression call) {
+    String nameClass = call.target;
+    int argCount = 0;
+    SymbolTable.Symbol symbol = call.target == null ? null : symbolTable.lookup(call.target);
+    if (call.target == null) { // Method in this class
+      vmWriter.writePushPop("push", symbolTable.lookup("this"));
+      nameClass = className;
+      argCount = 1;
+    } else if (symbol != null) { // Method of some object
+      vmWriter.writePushPop("push", symbol);
+      nameClass = symbolTable.typeName(symbol.typeId);
+      argCount = 1;
+    }
+
+    for (SyntaxTree.Expression argument : call.arguments) {
+      generateExpression(argument);
+    }
+    argCount += call.arguments.size();
+
+    String name = nameClass + "." + call.subroutineName;
+    vmWriter.writeCall(name, argCount);
+    return name;
+  }
+}
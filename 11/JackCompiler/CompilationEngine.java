@@ -1,8 +1,11 @@
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class CompilationEngine {
   private JackTokenizer tokenizer;
@@ -11,6 +14,47 @@ public class CompilationEngine {
 
   private String className;
 
+  /**
+   * The source file, kept around for looking ahead at the whole class
+   */
+  private Path src;
+
+  /**
+   * Whether string literals are pooled (see StringPool)
+   */
+  private boolean poolStrings = false;
+
+  /**
+   * The string literals of this class, in order, and the names of the
+   * subroutines that use them. Only used when pooling strings
+   */
+  private List<String> stringLiterals = new ArrayList<>();
+  private Set<String> subroutinesWithStrings = new HashSet<>();
+  private StringPool stringPool = null;
+
+  /**
+   * Whether the VM extension commands understood by VMTranslator08 (such as
+   * fused compare-and-branch) may be written
+   */
+  private boolean vmExtensions = false;
+
+  /**
+   * Whether the classes being compiled are known to make up a whole program,
+   * OS included, so that no subroutine is called from code compiled apart
+   * from it
+   */
+  private boolean wholeProgram = false;
+
+  /**
+   * The subroutines of every class being compiled, or null if unknown
+   */
+  private ClassIndex classIndex = null;
+
+  /**
+   * The full name of the subroutine being compiled
+   */
+  private String currentSubroutine;
+
   private int whileCount = 0;
   private int ifCount = 0;
 
@@ -37,11 +81,35 @@ public class CompilationEngine {
       opArithmetic.put("=", "eq");
     }
 
+    /**
+     * The opposite of each comparison, for fused compare-and-branch commands
+     */
+    public static Map<String, String> negatedComparison = new HashMap<>();
+    static {
+      negatedComparison.put("lt", "ge");
+      negatedComparison.put("gt", "le");
+      negatedComparison.put("eq", "ne");
+      negatedComparison.put("ge", "lt");
+      negatedComparison.put("le", "gt");
+      negatedComparison.put("ne", "eq");
+    }
+
     public static Map<String, String> unaryOp = new HashMap<>();
     static {
       unaryOp.put("-", "neg");
       unaryOp.put("~", "not");
     }
+
+    /**
+     * The in-place update commands for x = x op y
+     */
+    public static Map<String, String> inPlaceOp = new HashMap<>();
+    static {
+      inPlaceOp.put("+", "add-to");
+      inPlaceOp.put("-", "sub-to");
+      inPlaceOp.put("&", "and-to");
+      inPlaceOp.put("|", "or-to");
+    }
   }
 
   /**
@@ -51,6 +119,7 @@ public class CompilationEngine {
    * @param src The Jack source file in which we write code
    */
   public CompilationEngine(Path src) {
+    this.src = src;
     tokenizer = new JackTokenizer(src);
     vmWriter = new VMWriter(src);
     symbolTable = new SymbolTable();
@@ -61,6 +130,7 @@ public class CompilationEngine {
    */
   private String getNext() {
     tokenizer.advance();
+    vmWriter.setLine(tokenizer.lineNumber());
     return tokenizer.value();
   }
 
@@ -69,6 +139,7 @@ public class CompilationEngine {
    */
   private String getNext(String... token) {
     tokenizer.advance();
+    vmWriter.setLine(tokenizer.lineNumber());
     String value = tokenizer.value();
     if (!Arrays.asList(token).contains(value)) {
       if (token.length == 1) {
@@ -82,10 +153,95 @@ public class CompilationEngine {
     return value;
   }
 
+  /**
+   * Makes every distinct string literal get built only once, and kept in a
+   * static variable. Should be called before compileClass()
+   */
+  public void setPoolStrings(boolean poolStrings) {
+    this.poolStrings = poolStrings;
+  }
+
+  /**
+   * Allows VM extension commands to be written. Should be called before
+   * compileClass()
+   */
+  public void setVMExtensions(boolean vmExtensions) {
+    this.vmExtensions = vmExtensions;
+  }
+
+  /**
+   * Lets the engine know that the classes being compiled make up a whole
+   * program, OS included. Should be called before compileClass()
+   */
+  public void setWholeProgram(boolean wholeProgram) {
+    this.wholeProgram = wholeProgram;
+  }
+
+  /**
+   * Lets the engine know about the other classes being compiled. Should be
+   * called before compileClass()
+   */
+  public void setClassIndex(ClassIndex classIndex) {
+    this.classIndex = classIndex;
+  }
+
+  /**
+   * Makes the engine write a source map of the Jack line each VM command comes
+   * from, next to the VM file (see VMWriter.writeSourceMap())
+   */
+  public void writeSourceMap() {
+    vmWriter.writeSourceMap();
+  }
+
+  /**
+   * Whether a subroutine returns with return-void (a VM extension) instead of
+   * leaving a return value on the stack. A caller and its callee have to agree
+   * on this, and a caller compiled on its own (like a program compiled against
+   * an OS that was built by itself) would still pop a return value that isn't
+   * there. So it's only done for void subroutines of the program when the
+   * whole program, OS included, is being compiled together
+   */
+  private boolean returnsNothing(String name) {
+    return vmExtensions && wholeProgram && classIndex != null && classIndex.isVoid(src, name);
+  }
+
+  /**
+   * Runs through the tokens of the whole class, to find the string literals
+   * and which subroutines use them before any code is written
+   */
+  private void findStringLiterals() {
+    JackTokenizer scanner = new JackTokenizer(src);
+    String subroutineName = null;
+    int depth = 0;
+    while (true) {
+      scanner.advance();
+      String value = scanner.value();
+      if (scanner.tokenType() == JackTokenizer.TokenType.STRING_CONST) {
+        stringLiterals.add(scanner.stringValue());
+        subroutinesWithStrings.add(subroutineName);
+      } else if (depth == 1 && (value.equals("constructor") || value.equals("function") || value.equals("method"))) {
+        scanner.advance(); // returnType
+        scanner.advance();
+        subroutineName = scanner.value();
+      } else if (value.equals("{")) {
+        depth++;
+      } else if (value.equals("}")) {
+        depth--;
+        if (depth == 0) { // End of the class
+          return;
+        }
+      }
+    }
+  }
+
   /**
    * Compiles a complete class
    */
   public void compileClass() {
+    if (poolStrings) {
+      findStringLiterals();
+    }
+
     // Class declaration
     getNext("class");
     className = getNext(); // className
@@ -108,6 +264,10 @@ public class CompilationEngine {
     }
 
     getNext("}");
+
+    if (stringPool != null && !stringPool.isEmpty()) {
+      stringPool.writeInit(vmWriter);
+    }
   }
 
   /**
@@ -149,7 +309,9 @@ public class CompilationEngine {
         varCount++;
     }
     getNext(); // returnType
-    String name = className + "." + getNext();
+    String subroutineName = getNext();
+    String name = className + "." + subroutineName;
+    currentSubroutine = name;
     getNext("(");
     compileParameterList();
     getNext(")");
@@ -162,14 +324,25 @@ public class CompilationEngine {
       varCount += compileVarDec();
     }
     vmWriter.writeFunction(name, varCount);
+    if (poolStrings) {
+      if (stringPool == null) { // All the static variables have been declared by now
+        stringPool = new StringPool(className, symbolTable.getCount(SymbolTable.Kind.STATIC));
+        for (String literal : stringLiterals) {
+          stringPool.indexOf(literal);
+        }
+      }
+      if (subroutinesWithStrings.contains(subroutineName)) {
+        stringPool.writeCheck(vmWriter);
+      }
+    }
     if (subroutineType.equals("constructor")) {
-      vmWriter.writePushPop("push", "constant", symbolTable.getCount("this"));
+      vmWriter.writePushPop("push", "constant", symbolTable.getCount(SymbolTable.Kind.FIELD));
       vmWriter.writeCall("Memory.alloc", 1);
-      vmWriter.writePushPop("pop", symbolTable.kindOf("this"), symbolTable.indexOf("this"));
+      vmWriter.writePushPop("pop", symbolTable.lookup("this"));
     }
 
     if (!subroutineType.equals("function")) {
-      vmWriter.writePushPop("push", symbolTable.kindOf("this"), symbolTable.indexOf("this"));
+      vmWriter.writePushPop("push", symbolTable.lookup("this"));
       vmWriter.writePushPop("pop", "pointer", 0);
     }
 
@@ -235,16 +408,17 @@ public class CompilationEngine {
     int argCount = 0;
     switch (getNext()) {
       case "(": // Method in this class
-        vmWriter.writePushPop("push", symbolTable.kindOf("this"), symbolTable.indexOf("this")); // Push this to the top
+        vmWriter.writePushPop("push", symbolTable.lookup("this")); // Push this to the top
                                                                                                 // of the stack
         nameClass = className;
         argCount = compileExpressionList() + 1;
         break;
       case ".": // Any subroutine from some other class
         subroutineName = getNext(); // subroutineName
-        if (symbolTable.exists(name)) { // Check if name is a class or a variable
-          vmWriter.writePushPop("push", symbolTable.kindOf(name), symbolTable.indexOf(name));
-          nameClass = symbolTable.typeOf(name);
+        SymbolTable.Symbol symbol = symbolTable.lookup(name);
+        if (symbol != null) { // Check if name is a class or a variable
+          vmWriter.writePushPop("push", symbol);
+          nameClass = symbolTable.typeName(symbol.typeId);
           argCount = 1;
         }
         getNext("(");
@@ -255,7 +429,9 @@ public class CompilationEngine {
     }
 
     vmWriter.writeCall(nameClass + "." + subroutineName, argCount);
-    vmWriter.writePushPop("pop", "temp", 0); // Return values will end up clogging the stack
+    if (!returnsNothing(nameClass + "." + subroutineName)) {
+      vmWriter.writePushPop("pop", "temp", 0); // Return values will end up clogging the stack
+    }
     getNext(")");
     getNext(";");
   }
@@ -266,8 +442,27 @@ public class CompilationEngine {
   public void compileLet() {
     String name = getNext(); // varName
 
-    if (tokenizer.peekNext().equals("[")) { // Array access
-      vmWriter.writePushPop("push", symbolTable.kindOf(name), symbolTable.indexOf(name));
+    if (tokenizer.peekNext().equals("[") && vmExtensions) { // Array access, with indexed stores
+      SymbolTable.Symbol array = symbolTable.lookup(name);
+      if (isDirectAccess(array)) {
+        getNext("[");
+        int index = Integer.parseInt(getNext());
+        getNext("]");
+        getNext("=");
+        compileExpression();
+        vmWriter.writeThatBase(array);
+        vmWriter.writePushPop("pop", "that", index);
+      } else {
+        vmWriter.writePushPop("push", array);
+        getNext("[");
+        compileExpression();
+        getNext("]");
+        getNext("=");
+        compileExpression();
+        vmWriter.writeArrayStore();
+      }
+    } else if (tokenizer.peekNext().equals("[")) { // Array access
+      vmWriter.writePushPop("push", symbolTable.lookup(name));
       getNext("[");
       compileExpression();
       getNext("]");
@@ -280,14 +475,109 @@ public class CompilationEngine {
       vmWriter.writePushPop("pop", "pointer", 1);
       vmWriter.writePushPop("push", "temp", 0);
       vmWriter.writePushPop("pop", "that", 0);
-    } else {
+    } else if (!(vmExtensions && compileInPlace(name))) {
       getNext("=");
       compileExpression();
-      vmWriter.writePushPop("pop", symbolTable.kindOf(name), symbolTable.indexOf(name));
+      vmWriter.writePushPop("pop", symbolTable.lookup(name));
     }
     getNext(";");
   }
 
+  /**
+   * Compiles the rest of a let statement of the form x = x op y (where op is
+   * +, -, &, or |, and y is a single term) as an in-place update of x. x = x + 1
+   * and x = x - 1 become inc and dec.
+   *
+   * If x is a field or static, y has to be a constant or a variable, since
+   * evaluating y before x would give a different result if y called something
+   * that changed x.
+   *
+   * @param name The variable being assigned to, which should be the current
+   *             token
+   * @return Whether the statement was compiled. If not, nothing was read
+   */
+  private boolean compileInPlace(String name) {
+    // The tokens coming up are "=", name, op, and then the term
+    String op = tokenizer.peekNext(3);
+    SymbolTable.Symbol symbol = symbolTable.lookup(name);
+    if (symbol == null || !tokenizer.peekNext(2).equals(name) || !SyntaxElements.inPlaceOp.containsKey(op)) {
+      return false;
+    }
+    int termLength = termLength(4);
+    String term = tokenizer.peekNext(4);
+    if (termLength == -1 || !(symbol.kind == SymbolTable.Kind.VAR || symbol.kind == SymbolTable.Kind.ARG)
+        && (termLength != 1 || term.startsWith("\""))) {
+      return false;
+    }
+
+    getNext("=");
+    getNext(name);
+    getNext(op);
+    if (termLength == 1 && term.equals("1") && (op.equals("+") || op.equals("-"))) {
+      getNext("1");
+      vmWriter.writeInPlace(op.equals("+") ? "inc" : "dec", symbol);
+    } else {
+      compileTerm();
+      vmWriter.writeInPlace(SyntaxElements.inPlaceOp.get(op), symbol);
+    }
+    return true;
+  }
+
+  /**
+   * Finds how many tokens the term some distance ahead takes up, without
+   * reading anything
+   *
+   * @return The amount of tokens, or -1 if the term isn't the last thing before
+   *         a ";"
+   */
+  private int termLength(int distance) {
+    int end = distance;
+    while (SyntaxElements.unaryOp.containsKey(tokenizer.peekNext(end))) {
+      end++;
+    }
+    if (tokenizer.peekNext(end).equals("(")) {
+      end = skipBrackets(end);
+    } else {
+      end++;
+      if (tokenizer.peekNext(end).equals(".")) { // Subroutine of some other class
+        end += 2;
+      }
+      if (tokenizer.peekNext(end).equals("(") || tokenizer.peekNext(end).equals("[")) {
+        end = skipBrackets(end);
+      }
+    }
+    return tokenizer.peekNext(end).equals(";") ? end - distance : -1;
+  }
+
+  /**
+   * Given the distance to a "(" or "[", finds the distance to the token right
+   * after the matching ")" or "]"
+   */
+  private int skipBrackets(int distance) {
+    int depth = 0;
+    do {
+      String token = tokenizer.peekNext(distance++);
+      if (token.equals("(") || token.equals("[")) {
+        depth++;
+      } else if (token.equals(")") || token.equals("]")) {
+        depth--;
+      }
+    } while (depth > 0);
+    return distance;
+  }
+
+  /**
+   * Whether the array access coming up (the next token being the "[") can go
+   * straight through the that segment. The index has to be a constant, and
+   * the array has to be a local or argument. Since nothing else can change
+   * those, the value of pointer 1 can be reused across accesses, and the
+   * array doesn't need to be pushed before the value of a store is evaluated.
+   */
+  private boolean isDirectAccess(SymbolTable.Symbol array) {
+    return (array.kind == SymbolTable.Kind.VAR || array.kind == SymbolTable.Kind.ARG)
+        && tokenizer.peekNext(2).matches("\\d+") && tokenizer.peekNext(3).equals("]");
+  }
+
   /**
    * Compiles a while statement
    */
@@ -296,9 +586,7 @@ public class CompilationEngine {
 
     vmWriter.writeLabel("LOOP" + currentCount);
     getNext("(");
-    compileExpression();
-    vmWriter.writeArithmetic("not");
-    vmWriter.writeIf("LOOP-END" + currentCount);
+    compileBranchIfFalse("LOOP-END" + currentCount);
     getNext(")");
     getNext("{");
     compileStatements();
@@ -314,7 +602,11 @@ public class CompilationEngine {
     if (!tokenizer.peekNext().equals(";")) {
       compileExpression();
     }
-    vmWriter.writeReturn();
+    if (returnsNothing(currentSubroutine)) {
+      vmWriter.writeReturnVoid();
+    } else {
+      vmWriter.writeReturn();
+    }
     getNext(";");
   }
 
@@ -324,9 +616,7 @@ public class CompilationEngine {
   public void compileIf() {
     int currentCount = ifCount++;
     getNext("(");
-    compileExpression();
-    vmWriter.writeArithmetic("not");
-    vmWriter.writeIf("IF" + currentCount + "-1");
+    compileBranchIfFalse("IF" + currentCount + "-1");
     getNext(")");
     getNext("{");
     compileStatements();
@@ -344,17 +634,97 @@ public class CompilationEngine {
     }
   }
 
+  /**
+   * Compiles the condition of an if or while statement, and jumps to the given
+   * label if it is false
+   */
+  private void compileBranchIfFalse(String label) {
+    String comparison = compileCondition();
+    if (comparison == null) {
+      vmWriter.writeArithmetic("not");
+      vmWriter.writeIf(label);
+    } else {
+      vmWriter.writeIfCompare(SyntaxElements.negatedComparison.get(comparison), label);
+    }
+  }
+
+  /**
+   * Compiles a condition. If VM extensions are allowed and the condition is a
+   * comparison (or a negated comparison, like ~(x = y)), the comparison itself
+   * isn't written. It is returned instead (as "lt", "ge", etc.), so that it can
+   * be fused with the branch. Otherwise, the condition is pushed onto the stack
+   * like any other expression, and null is returned.
+   */
+  private String compileCondition() {
+    if (!vmExtensions) {
+      compileExpression();
+      return null;
+    }
+
+    if (!tokenizer.peekNext().equals("~")) {
+      compileTerm();
+      return compileOperations(true);
+    }
+
+    getNext("~");
+    if (!tokenizer.peekNext().equals("(")) {
+      compileTerm();
+      vmWriter.writeArithmetic("not");
+      return compileOperations(true);
+    }
+
+    getNext("(");
+    compileTerm();
+    String comparison = compileOperations(true);
+    getNext(")");
+    if (comparison != null) {
+      if (!SyntaxElements.op.contains(tokenizer.peekNext())) { // The whole condition is ~(x op y)
+        return SyntaxElements.negatedComparison.get(comparison);
+      }
+      vmWriter.writeArithmetic(comparison);
+    }
+    vmWriter.writeArithmetic("not");
+    return compileOperations(true);
+  }
+
   /**
    * Compiles an expression and pushes it onto the stack
    */
   public void compileExpression() {
     compileTerm();
+    compileOperations(false);
+  }
 
+  /**
+   * Compiles the operations of an expression that come after its first term
+   * (which should already be on the stack)
+   *
+   * @param isCondition If true, and the last operation is a comparison, the
+   *                    comparison isn't written, and is returned instead
+   * @return The unwritten comparison, or null if everything was written
+   */
+  private String compileOperations(boolean isCondition) {
     while (SyntaxElements.op.contains(tokenizer.peekNext())) {
       String op = getNext(); // op
+      if ((op.equals("*") || op.equals("/")) && tokenizer.peekNext().matches("\\d+")) {
+        // Multiplying or dividing by a constant can often be done without a call
+        int constant = Integer.parseInt(getNext());
+        boolean written = op.equals("*") ? vmWriter.writeMultiplyByConstant(constant)
+            : vmWriter.writeDivideByConstant(constant);
+        if (!written) {
+          vmWriter.writePushPop("push", "constant", constant);
+          vmWriter.writeCall(op.equals("*") ? "Math.multiply" : "Math.divide", 2);
+        }
+        continue;
+      }
       compileTerm();
       if (SyntaxElements.opArithmetic.containsKey(op)) {
-        vmWriter.writeArithmetic(SyntaxElements.opArithmetic.get(op));
+        String command = SyntaxElements.opArithmetic.get(op);
+        if (isCondition && SyntaxElements.negatedComparison.containsKey(command)
+            && !SyntaxElements.op.contains(tokenizer.peekNext())) {
+          return command;
+        }
+        vmWriter.writeArithmetic(command);
       } else {
         String function = "";
         switch (op) {
@@ -371,6 +741,7 @@ public class CompilationEngine {
         vmWriter.writeCall("Math." + function, 2);
       }
     }
+    return null;
   }
 
   /**
@@ -394,10 +765,23 @@ public class CompilationEngine {
       case IDENTIFIER:
         switch (tokenizer.peekNext()) {
           case "[": // Array access
-            vmWriter.writePushPop("push", symbolTable.kindOf(value), symbolTable.indexOf(value));
+            SymbolTable.Symbol array = symbolTable.lookup(value);
+            if (vmExtensions && isDirectAccess(array)) {
+              getNext("[");
+              int index = Integer.parseInt(getNext());
+              getNext("]");
+              vmWriter.writeThatBase(array);
+              vmWriter.writePushPop("push", "that", index);
+              break;
+            }
+            vmWriter.writePushPop("push", array);
             getNext("[");
             compileExpression();
             getNext("]");
+            if (vmExtensions) {
+              vmWriter.writeArrayLoad();
+              break;
+            }
             vmWriter.writeArithmetic("add");
             vmWriter.writePushPop("pop", "pointer", 1);
             vmWriter.writePushPop("push", "that", 0);
@@ -409,7 +793,7 @@ public class CompilationEngine {
             int argCount = 0;
             switch (getNext()) {
               case "(": // Method in this class
-                vmWriter.writePushPop("push", symbolTable.kindOf("this"), symbolTable.indexOf("this")); // Push this to
+                vmWriter.writePushPop("push", symbolTable.lookup("this")); // Push this to
                                                                                                         // the top of
                                                                                                         // the stack
                 nameClass = className;
@@ -417,9 +801,10 @@ public class CompilationEngine {
                 break;
               case ".": // Any subroutine from some other class
                 subroutineName = getNext(); // subroutineName
-                if (symbolTable.exists(value)) { // Check if name is a class or a variable
-                  vmWriter.writePushPop("push", symbolTable.kindOf(value), symbolTable.indexOf(value));
-                  nameClass = symbolTable.typeOf(value);
+                SymbolTable.Symbol symbol = symbolTable.lookup(value);
+                if (symbol != null) { // Check if name is a class or a variable
+                  vmWriter.writePushPop("push", symbol);
+                  nameClass = symbolTable.typeName(symbol.typeId);
                   argCount = 1;
                 }
                 getNext("(");
@@ -430,10 +815,13 @@ public class CompilationEngine {
             }
 
             vmWriter.writeCall(nameClass + "." + subroutineName, argCount);
+            if (returnsNothing(nameClass + "." + subroutineName)) { // Keep the stack balanced
+              vmWriter.writePushPop("push", "constant", 0);
+            }
             getNext(")");
             break;
           default: // Variable
-            vmWriter.writePushPop("push", symbolTable.kindOf(value), symbolTable.indexOf(value));
+            vmWriter.writePushPop("push", symbolTable.lookup(value));
             break;
         }
         break;
@@ -442,11 +830,10 @@ public class CompilationEngine {
         break;
       case STRING_CONST:
         value = tokenizer.stringValue();
-        vmWriter.writePushPop("push", "constant", value.length());
-        vmWriter.writeCall("String.new", 1);
-        for (char c : value.toCharArray()) {
-          vmWriter.writePushPop("push", "constant", (int) c);
-          vmWriter.writeCall("String.appendChar", 2);
+        if (stringPool != null) {
+          vmWriter.writePushPop("push", "static", stringPool.indexOf(value));
+        } else {
+          vmWriter.writeString(value);
         }
         break;
       case KEYWORD:
@@ -460,7 +847,7 @@ public class CompilationEngine {
             vmWriter.writeArithmetic("neg");
             break;
           case "this":
-            vmWriter.writePushPop("push", symbolTable.kindOf("this"), symbolTable.indexOf("this"));
+            vmWriter.writePushPop("push", symbolTable.lookup("this"));
             break;
           default:
             break;
@@ -5,8 +5,39 @@ import java.nio.file.Paths;
 /**
  * If given a directory, compiles all Jack source files inside of it. If given
  * an individual file, only compiles the stuff in the file.
+ *
+ * With the -O switch, each class is parsed into a syntax tree and optimized
+ * before any VM code is written, and statistics on the optimizations are
+ * printed at the end. With -pool-strings, each distinct string literal of a
+ * class is only built once (see StringPool). With -vm-extensions, the compiler
+ * may write the extra VM commands that VMTranslator08 understands, such as
+ * if-lt, which compares and branches in one go. With -map, a source map of the
+ * line of Jack code each VM command comes from is written next to each VM file
+ * (see SourceMap), for the emulators' profilers.
+ *
+ * Before anything is compiled, the subroutines of every class are indexed (see
+ * ClassIndex), so that call sites know about their callees. With
+ * -whole-program as well as -vm-extensions, void subroutines return with
+ * return-void and calls to them don't pop a return value. Every caller has to
+ * be compiled that way, so each directory compiled has to hold the whole
+ * program, OS and all.
  */
 public class JackCompiler {
+  /**
+   * The optimizer to use, or null if we're not optimizing
+   */
+  private static Optimizer optimizer = null;
+
+  private static boolean poolStrings = false;
+
+  private static boolean vmExtensions = false;
+
+  private static boolean sourceMap = false;
+
+  private static boolean wholeProgram = false;
+
+  private static ClassIndex classIndex;
+
   private static String getFileExtension(String s) {
     int extensionIndex = s.lastIndexOf(".");
     if (extensionIndex == -1) {
@@ -17,14 +48,68 @@ public class JackCompiler {
 
   private static void compileFile(Path src) {
     if (getFileExtension(src.toString()).equals(".jack")) {
-      CompilationEngine cEngine = new CompilationEngine(src);
-      cEngine.compileClass();
-      cEngine.close();
+      if (optimizer != null) {
+        SyntaxTree.ClassDec classDec = new SyntaxTreeBuilder(src).parseClass();
+        optimizer.optimize(classDec);
+        VMWriter vmWriter = new VMWriter(src);
+        if (sourceMap) {
+          vmWriter.writeSourceMap();
+        }
+        CodeGenerator codeGenerator = new CodeGenerator(vmWriter);
+        codeGenerator.setPoolStrings(poolStrings);
+        codeGenerator.setVMExtensions(vmExtensions);
+        codeGenerator.setWholeProgram(wholeProgram);
+        codeGenerator.setClassIndex(classIndex, src);
+        codeGenerator.generateClass(classDec);
+        vmWriter.close();
+      } else {
+        CompilationEngine cEngine = new CompilationEngine(src);
+        cEngine.setPoolStrings(poolStrings);
+        cEngine.setVMExtensions(vmExtensions);
+        cEngine.setWholeProgram(wholeProgram);
+        cEngine.setClassIndex(classIndex);
+        if (sourceMap) {
+          cEngine.writeSourceMap();
+        }
+        cEngine.compileClass();
+        cEngine.close();
+      }
     }
   }
 
+  private static void printIncorrectUsage() {
+    System.out.println("Usage:\n\n\tJackCompiler [-O] [-pool-strings] [-vm-extensions] [-whole-program] [-map] source\n\nWhere source is either a Jack file or directory containing Jack files\n");
+  }
+
   public static void main(String[] args) {
-    Path p = Paths.get(args[0]);
+    String source = null;
+    for (String arg : args) {
+      if (arg.equals("-O")) {
+        optimizer = new Optimizer();
+      } else if (arg.equals("-pool-strings")) {
+        poolStrings = true;
+      } else if (arg.equals("-vm-extensions")) {
+        vmExtensions = true;
+      } else if (arg.equals("-whole-program")) {
+        wholeProgram = true;
+      } else if (arg.equals("-map")) {
+        sourceMap = true;
+      } else {
+        source = arg;
+      }
+    }
+    if (source == null) {
+      printIncorrectUsage();
+      return;
+    }
+
+    Path p = Paths.get(source);
+    classIndex = new ClassIndex(p);
+    if (wholeProgram && !classIndex.getMissingProgramClasses().isEmpty()) {
+      System.out.println("-whole-program needs the OS and Main in each directory, but these are missing: "
+          + String.join(", ", classIndex.getMissingProgramClasses()));
+      return;
+    }
 
     if (Files.isRegularFile(p)) {
       compileFile(p);
@@ -39,5 +124,10 @@ public class JackCompiler {
         e.printStackTrace();
       }
     }
+
+    if (optimizer != null) {
+      optimizer.printStatistics();
+      System.out.println("inline candidates: " + String.join(", ", classIndex.getInlineCandidates()));
+    }
   }
 }
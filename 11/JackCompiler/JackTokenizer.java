@@ -73,6 +73,11 @@ public class JackTokenizer {
    */
   private String token;
 
+  /**
+   * Where in jackProgram each line of the file starts
+   */
+  private int[] lineStarts;
+
   /**
    * Creates a JackTokenizer and sets it up for use.
    *
@@ -90,14 +95,24 @@ public class JackTokenizer {
     // Get rid of comments
     fContents = fContents.replaceAll(JackSyntax.commentPattern, "");
 
-    // Get rid of multiline comments
-    fContents = fContents.replaceAll(JackSyntax.multilineCommentPattern, "");
+    // Get rid of multiline comments, but keep the lines they took up so that
+    // tokens can still be found by their line
+    fContents = Pattern.compile(JackSyntax.multilineCommentPattern).matcher(fContents)
+        .replaceAll(comment -> comment.group().replaceAll(".", ""));
 
-    // Condense all whitespace into spaces
-    fContents = fContents.replaceAll("\\s+", " ");
+    // Condense all whitespace but newlines into spaces
+    fContents = fContents.replaceAll("[^\\S\n]+", " ");
 
     // Strip leading spaces
-    fContents = fContents.replaceAll("(?m)^\\s|\\s$", "");
+    fContents = fContents.replaceAll("(?m)^[^\\S\n]|[^\\S\n]$", "");
+
+    // Find where each line starts
+    lineStarts = new int[1 + (int) fContents.chars().filter(c -> c == '\n').count()];
+    for (int i = 0, line = 1; i < fContents.length(); i++) {
+      if (fContents.charAt(i) == '\n') {
+        lineStarts[line++] = i + 1;
+      }
+    }
 
     // Create Matcher from input
     jackProgram = JackSyntax.tokenPattern.matcher(fContents);
@@ -118,6 +133,14 @@ public class JackTokenizer {
     token = jackProgram.group();
   }
 
+  /**
+   * Finds the line of the file the current token is on, counting from 1
+   */
+  public int lineNumber() {
+    int line = Arrays.binarySearch(lineStarts, jackProgram.start());
+    return line >= 0 ? line + 1 : -line - 1;
+  }
+
   /**
    * Finds the token type of the current token
    */
@@ -160,6 +183,20 @@ public class JackTokenizer {
     return result;
   }
 
+  /**
+   * Peeks at the token some distance ahead, so peekNext(1) is the same as
+   * peekNext(). Does not advance the tokenizer
+   */
+  public String peekNext(int distance) {
+    int currentIndex = jackProgram.start();
+    for (int i = 0; i < distance; i++) {
+      jackProgram.find();
+    }
+    String result = jackProgram.group();
+    jackProgram.find(currentIndex);
+    return result;
+  }
+
   /**
    * Returns the integer value of the current token. Should be called only when
    * tokenType() is INT_CONST
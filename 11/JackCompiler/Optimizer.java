@@ -0,0 +1,528 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs optimization passes over the syntax tree of a class before any VM code
+ * is written, and keeps track of how many VM commands each pass got rid of.
+ */
+public class Optimizer {
+  /**
+   * Walks through a syntax tree, letting a pass replace statements and
+   * expressions along the way. A statement can be replaced with any number of
+   * statements (including none at all)
+   */
+  private static abstract class Pass {
+    /**
+     * Whether this pass changed anything during the last run
+     */
+    protected boolean changed;
+
+    /**
+     * The subroutine being rewritten
+     */
+    protected SyntaxTree.SubroutineDec subroutineDec;
+
+    public abstract String getName();
+
+    public boolean run(SyntaxTree.ClassDec classDec) {
+      changed = false;
+      for (SyntaxTree.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+        this.subroutineDec = subroutineDec;
+        subroutineDec.statements = rewriteStatements(subroutineDec.statements);
+      }
+      return changed;
+    }
+
+    protected List<SyntaxTree.Statement> rewriteStatements(List<SyntaxTree.Statement> statements) {
+      List<SyntaxTree.Statement> result = new ArrayList<>();
+      for (SyntaxTree.Statement statement : statements) {
+        result.addAll(rewriteStatement(statement));
+      }
+      return result;
+    }
+
+    protected List<SyntaxTree.Statement> rewriteStatement(SyntaxTree.Statement statement) {
+      if (statement instanceof SyntaxTree.LetStatement) {
+        SyntaxTree.LetStatement letStatement = (SyntaxTree.LetStatement) statement;
+        if (letStatement.index != null) {
+          letStatement.index = rewriteExpression(letStatement.index);
+        }
+        letStatement.value = rewriteExpression(letStatement.value);
+      } else if (statement instanceof SyntaxTree.IfStatement) {
+        SyntaxTree.IfStatement ifStatement = (SyntaxTree.IfStatement) statement;
+        ifStatement.condition = rewriteExpression(ifStatement.condition);
+        ifStatement.statements = rewriteStatements(ifStatement.statements);
+        if (ifStatement.elseStatements != null) {
+          ifStatement.elseStatements = rewriteStatements(ifStatement.elseStatements);
+        }
+      } else if (statement instanceof SyntaxTree.WhileStatement) {
+        SyntaxTree.WhileStatement whileStatement = (SyntaxTree.WhileStatement) statement;
+        if (whileStatement.condition != null) {
+          whileStatement.condition = rewriteExpression(whileStatement.condition);
+        }
+        whileStatement.statements = rewriteStatements(whileStatement.statements);
+      } else if (statement instanceof SyntaxTree.DoStatement) {
+        rewriteExpression(((SyntaxTree.DoStatement) statement).call);
+      } else if (statement instanceof SyntaxTree.ReturnStatement) {
+        SyntaxTree.ReturnStatement returnStatement = (SyntaxTree.ReturnStatement) statement;
+        if (returnStatement.value != null) {
+          returnStatement.value = rewriteExpression(returnStatement.value);
+        }
+      }
+      return List.of(statement);
+    }
+
+    protected SyntaxTree.Expression rewriteExpression(SyntaxTree.Expression expression) {
+      if (expression instanceof SyntaxTree.ArrayExpression) {
+        SyntaxTree.ArrayExpression array = (SyntaxTree.ArrayExpression) expression;
+        array.index = rewriteExpression(array.index);
+      } else if (expression instanceof SyntaxTree.CallExpression) {
+        List<SyntaxTree.Expression> arguments = ((SyntaxTree.CallExpression) expression).arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+          arguments.set(i, rewriteExpression(arguments.get(i)));
+        }
+      } else if (expression instanceof SyntaxTree.UnaryExpression) {
+        SyntaxTree.UnaryExpression unary = (SyntaxTree.UnaryExpression) expression;
+        unary.term = rewriteExpression(unary.term);
+      } else if (expression instanceof SyntaxTree.BinaryExpression) {
+        SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+        binary.left = rewriteExpression(binary.left);
+        binary.right = rewriteExpression(binary.right);
+      }
+      return expression;
+    }
+  }
+
+  /**
+   * Gets the value of an expression if it is a constant, or null if it isn't
+   */
+  private static Integer constantValue(SyntaxTree.Expression expression) {
+    if (expression instanceof SyntaxTree.IntConstant) {
+      return ((SyntaxTree.IntConstant) expression).value;
+    }
+    if (expression instanceof SyntaxTree.KeywordConstant) {
+      switch (((SyntaxTree.KeywordConstant) expression).keyword) {
+        case "true":
+          return -1;
+        case "false":
+        case "null":
+          return 0;
+        default:
+          break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Computes operations on int and boolean constants at compile time. All
+   * arithmetic wraps around at 16 bits, like it does on the Hack computer
+   */
+  private static class ConstantFolding extends Pass {
+    public String getName() {
+      return "constant folding";
+    }
+
+    protected SyntaxTree.Expression rewriteExpression(SyntaxTree.Expression expression) {
+      expression = super.rewriteExpression(expression);
+
+      if (expression instanceof SyntaxTree.UnaryExpression) {
+        SyntaxTree.UnaryExpression unary = (SyntaxTree.UnaryExpression) expression;
+        Integer value = constantValue(unary.term);
+        if (value != null) {
+          changed = true;
+          return new SyntaxTree.IntConstant((short) (unary.op.equals("-") ? -value : ~value));
+        }
+      } else if (expression instanceof SyntaxTree.BinaryExpression) {
+        SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+        Integer left = constantValue(binary.left);
+        Integer right = constantValue(binary.right);
+        if (left != null && right != null) {
+          Integer value = fold(binary.op, left, right);
+          if (value != null) {
+            changed = true;
+            return new SyntaxTree.IntConstant(value);
+          }
+        }
+      }
+      return expression;
+    }
+
+    private static Integer fold(String op, int x, int y) {
+      switch (op) {
+        case "+":
+          return (int) (short) (x + y);
+        case "-":
+          return (int) (short) (x - y);
+        case "*":
+        case "/":
+          // Math.abs() can't handle -32768, so leave that for the OS to deal with
+          if (x == -32768 || y == -32768) {
+            return null;
+          }
+          if (op.equals("*")) {
+            return (int) (short) (x * y);
+          }
+          if (y == 0) { // Leave the division error for run time
+            return null;
+          }
+          return (int) (short) (x / y);
+        case "&":
+          return x & y;
+        case "|":
+          return x | y;
+        // lt and gt look at the sign of x - y, which wraps around like
+        // everything else, so 20000 < -20000 is true at run time
+        case "<":
+          return (short) (x - y) < 0 ? -1 : 0;
+        case ">":
+          return (short) (x - y) > 0 ? -1 : 0;
+        case "=":
+          return x == y ? -1 : 0;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Gets rid of if and while statements whose conditions are true or false.
+   * Loops that always run have their condition test removed instead. Other
+   * constants are left alone, since the condition is tested with not and
+   * if-goto, which makes only -1 true
+   */
+  private static class DeadBranchElimination extends Pass {
+    public String getName() {
+      return "dead branch removal";
+    }
+
+    protected List<SyntaxTree.Statement> rewriteStatement(SyntaxTree.Statement statement) {
+      super.rewriteStatement(statement);
+
+      if (statement instanceof SyntaxTree.IfStatement) {
+        SyntaxTree.IfStatement ifStatement = (SyntaxTree.IfStatement) statement;
+        Integer value = constantValue(ifStatement.condition);
+        if (value != null && (value == -1 || value == 0)) {
+          changed = true;
+          if (value == -1) {
+            return ifStatement.statements;
+          }
+          return ifStatement.elseStatements == null ? List.of() : ifStatement.elseStatements;
+        }
+      } else if (statement instanceof SyntaxTree.WhileStatement) {
+        SyntaxTree.WhileStatement whileStatement = (SyntaxTree.WhileStatement) statement;
+        Integer value = constantValue(whileStatement.condition);
+        if (value != null && (value == -1 || value == 0)) {
+          changed = true;
+          if (value == 0) {
+            return List.of();
+          }
+          whileStatement.condition = null;
+        }
+      }
+      return List.of(statement);
+    }
+  }
+
+  /**
+   * Gets rid of statements that can never be reached, because they come after a
+   * statement that never finishes (a return, an endless loop, or an if
+   * statement where both branches never finish)
+   */
+  private static class UnreachableCodeElimination extends Pass {
+    public String getName() {
+      return "unreachable code removal";
+    }
+
+    protected List<SyntaxTree.Statement> rewriteStatements(List<SyntaxTree.Statement> statements) {
+      statements = super.rewriteStatements(statements);
+      for (int i = 0; i < statements.size() - 1; i++) {
+        if (neverFinishes(statements.get(i))) {
+          changed = true;
+          return new ArrayList<>(statements.subList(0, i + 1));
+        }
+      }
+      return statements;
+    }
+
+    private static boolean neverFinishes(SyntaxTree.Statement statement) {
+      if (statement instanceof SyntaxTree.ReturnStatement) {
+        return true;
+      }
+      if (statement instanceof SyntaxTree.WhileStatement) {
+        // Jack has no break statement, so the only way out of an endless loop is a return
+        return ((SyntaxTree.WhileStatement) statement).condition == null;
+      }
+      if (statement instanceof SyntaxTree.IfStatement) {
+        SyntaxTree.IfStatement ifStatement = (SyntaxTree.IfStatement) statement;
+        return ifStatement.elseStatements != null && neverFinishes(ifStatement.statements)
+            && neverFinishes(ifStatement.elseStatements);
+      }
+      return false;
+    }
+
+    private static boolean neverFinishes(List<SyntaxTree.Statement> statements) {
+      for (SyntaxTree.Statement statement : statements) {
+        if (neverFinishes(statement)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Moves expressions whose value can't change during a while loop out of the
+   * loop, into locals made up by the compiler (which are named with a "$", so
+   * they can't clash with anything in the source). Only expressions built out
+   * of constants and variables qualify, since calls, array elements, and
+   * strings could all give something different each time around. Division is
+   * only moved if the divisor is a nonzero constant, since the moved code runs
+   * even if the loop doesn't.
+   *
+   * This makes the code slightly longer (the moved expressions still have to
+   * be worked out once), but the loop itself runs faster. Loops often only run
+   * a couple of times, so an expression is only moved if it's expensive enough
+   * to make up for the extra local: a multiplication or division, or at least
+   * two operations.
+   */
+  private static class LoopInvariantCodeMotion extends Pass {
+    private int localCount = 0;
+
+    public String getName() {
+      return "loop-invariant code motion";
+    }
+
+    /**
+     * What a loop does to the variables around it
+     */
+    private static class LoopEffects {
+      Set<String> assigned = new HashSet<>();
+      /**
+       * Whether the loop calls or stores into arrays, either of which could
+       * change any field or static variable
+       */
+      boolean changesMemory = false;
+
+      void scan(List<SyntaxTree.Statement> statements) {
+        new Pass() {
+          public String getName() {
+            return "";
+          }
+
+          protected List<SyntaxTree.Statement> rewriteStatement(SyntaxTree.Statement statement) {
+            if (statement instanceof SyntaxTree.LetStatement) {
+              SyntaxTree.LetStatement letStatement = (SyntaxTree.LetStatement) statement;
+              if (letStatement.index == null) {
+                assigned.add(letStatement.name);
+              } else {
+                changesMemory = true;
+              }
+            } else if (statement instanceof SyntaxTree.DoStatement) {
+              changesMemory = true;
+            }
+            return super.rewriteStatement(statement);
+          }
+
+          protected SyntaxTree.Expression rewriteExpression(SyntaxTree.Expression expression) {
+            if (expression instanceof SyntaxTree.CallExpression) {
+              changesMemory = true;
+            }
+            return super.rewriteExpression(expression);
+          }
+        }.rewriteStatements(statements);
+      }
+    }
+
+    protected List<SyntaxTree.Statement> rewriteStatement(SyntaxTree.Statement statement) {
+      super.rewriteStatement(statement); // Inner loops go first
+      if (!(statement instanceof SyntaxTree.WhileStatement)) {
+        return List.of(statement);
+      }
+
+      SyntaxTree.WhileStatement whileStatement = (SyntaxTree.WhileStatement) statement;
+      LoopEffects effects = new LoopEffects();
+      effects.scan(List.of(whileStatement));
+
+      Set<String> locals = new HashSet<>();
+      for (SyntaxTree.VarDec varDec : subroutineDec.parameters) {
+        locals.addAll(varDec.names);
+      }
+      for (SyntaxTree.VarDec varDec : subroutineDec.varDecs) {
+        locals.addAll(varDec.names);
+      }
+
+      // The moved expressions by what they look like, so that repeats share a local
+      Map<String, String> hoisted = new LinkedHashMap<>();
+      List<SyntaxTree.VarDec> varDecs = subroutineDec.varDecs;
+      List<SyntaxTree.Statement> result = new ArrayList<>();
+      Pass hoister = new Pass() {
+        public String getName() {
+          return "";
+        }
+
+        protected SyntaxTree.Expression rewriteExpression(SyntaxTree.Expression expression) {
+          boolean isOperation = expression instanceof SyntaxTree.UnaryExpression
+              || expression instanceof SyntaxTree.BinaryExpression;
+          if (!isOperation || operationCost(expression) < MIN_COST || !isInvariant(expression, effects, locals)) {
+            return super.rewriteExpression(expression);
+          }
+
+          String key = describe(expression);
+          String local = hoisted.get(key);
+          if (local == null) {
+            local = "$inv" + localCount++;
+            hoisted.put(key, local);
+            SyntaxTree.VarDec varDec = new SyntaxTree.VarDec("var", "int");
+            varDec.names.add(local);
+            varDecs.add(varDec);
+            SyntaxTree.LetStatement letStatement = new SyntaxTree.LetStatement();
+            letStatement.name = local;
+            letStatement.value = expression;
+            letStatement.line = whileStatement.line;
+            result.add(letStatement);
+          }
+          return new SyntaxTree.VarExpression(local);
+        }
+      };
+      if (whileStatement.condition != null) {
+        whileStatement.condition = hoister.rewriteExpression(whileStatement.condition);
+      }
+      whileStatement.statements = hoister.rewriteStatements(whileStatement.statements);
+
+      if (!result.isEmpty()) {
+        changed = true;
+      }
+      result.add(whileStatement);
+      return result;
+    }
+
+    private static final int MIN_COST = 2;
+
+    /**
+     * Roughly how expensive an expression is: each operation counts as 1,
+     * except multiplication and division, which count as 2
+     */
+    private static int operationCost(SyntaxTree.Expression expression) {
+      if (expression instanceof SyntaxTree.UnaryExpression) {
+        return 1 + operationCost(((SyntaxTree.UnaryExpression) expression).term);
+      }
+      if (expression instanceof SyntaxTree.BinaryExpression) {
+        SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+        int cost = binary.op.equals("*") || binary.op.equals("/") ? 2 : 1;
+        return cost + operationCost(binary.left) + operationCost(binary.right);
+      }
+      return 0;
+    }
+
+    private static boolean isInvariant(SyntaxTree.Expression expression, LoopEffects effects, Set<String> locals) {
+      if (expression instanceof SyntaxTree.IntConstant || expression instanceof SyntaxTree.KeywordConstant) {
+        return true;
+      }
+      if (expression instanceof SyntaxTree.VarExpression) {
+        String name = ((SyntaxTree.VarExpression) expression).name;
+        return !effects.assigned.contains(name) && (locals.contains(name) || !effects.changesMemory);
+      }
+      if (expression instanceof SyntaxTree.UnaryExpression) {
+        return isInvariant(((SyntaxTree.UnaryExpression) expression).term, effects, locals);
+      }
+      if (expression instanceof SyntaxTree.BinaryExpression) {
+        SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+        if (binary.op.equals("/")) {
+          Integer divisor = constantValue(binary.right);
+          if (divisor == null || divisor == 0) {
+            return false;
+          }
+        }
+        return isInvariant(binary.left, effects, locals) && isInvariant(binary.right, effects, locals);
+      }
+      return false; // Calls, array elements, and strings
+    }
+
+    /**
+     * Writes out an invariant expression, so that equal expressions can be told
+     * apart from different ones
+     */
+    private static String describe(SyntaxTree.Expression expression) {
+      if (expression instanceof SyntaxTree.IntConstant) {
+        return Integer.toString(((SyntaxTree.IntConstant) expression).value);
+      }
+      if (expression instanceof SyntaxTree.KeywordConstant) {
+        return ((SyntaxTree.KeywordConstant) expression).keyword;
+      }
+      if (expression instanceof SyntaxTree.VarExpression) {
+        return ((SyntaxTree.VarExpression) expression).name;
+      }
+      if (expression instanceof SyntaxTree.UnaryExpression) {
+        SyntaxTree.UnaryExpression unary = (SyntaxTree.UnaryExpression) expression;
+        return unary.op + describe(unary.term);
+      }
+      SyntaxTree.BinaryExpression binary = (SyntaxTree.BinaryExpression) expression;
+      return "(" + describe(binary.left) + binary.op + describe(binary.right) + ")";
+    }
+  }
+
+  private List<Pass> passes = new ArrayList<>();
+
+  /**
+   * The amount of VM commands removed by each pass, over all classes optimized
+   * so far
+   */
+  private Map<String, Integer> removedCommands = new LinkedHashMap<>();
+
+  public Optimizer() {
+    passes.add(new ConstantFolding());
+    passes.add(new DeadBranchElimination());
+    passes.add(new UnreachableCodeElimination());
+    passes.add(new LoopInvariantCodeMotion());
+    for (Pass pass : passes) {
+      removedCommands.put(pass.getName(), 0);
+    }
+  }
+
+  /**
+   * Counts how many VM commands a class compiles to
+   */
+  public static int countCommands(SyntaxTree.ClassDec classDec) {
+    VMWriter counter = new VMWriter();
+    new CodeGenerator(counter).generateClass(classDec);
+    return counter.getCommandCount();
+  }
+
+  /**
+   * Optimizes a class in place. The passes are run over and over again, since
+   * one pass can make room for another (e.g. folding a condition into a constant
+   * lets its branch be removed), until none of them change anything.
+   */
+  public void optimize(SyntaxTree.ClassDec classDec) {
+    int commandCount = countCommands(classDec);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Pass pass : passes) {
+        if (pass.run(classDec)) {
+          changed = true;
+          int newCount = countCommands(classDec);
+          removedCommands.merge(pass.getName(), commandCount - newCount, Integer::sum);
+          commandCount = newCount;
+        }
+      }
+    }
+  }
+
+  /**
+   * Prints how many VM commands each pass has removed so far
+   */
+  public void printStatistics() {
+    int total = 0;
+    for (Map.Entry<String, Integer> entry : removedCommands.entrySet()) {
+      System.out.println(String.format("%-28s %6d VM commands removed", entry.getKey() + ":", entry.getValue()));
+      total += entry.getValue();
+    }
+    System.out.println(String.format("%-28s %6d VM commands removed", "total:", total));
+  }
+}
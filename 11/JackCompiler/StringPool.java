@@ -0,0 +1,86 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the string literals of a class in static variables, so that each
+ * distinct literal is only built once instead of every time it is evaluated.
+ *
+ * The pool takes up the static variables after the ones the class declares.
+ * The first of them is a flag telling whether the pool has been built; the
+ * rest hold one literal each. The pool is built by a generated function,
+ * ClassName.$strings, which subroutines that use literals call on entry if the
+ * flag isn't set yet.
+ *
+ * Since pooled strings are shared, a program that changes or disposes of a
+ * string literal won't work the same way, which is why pooling is optional.
+ */
+public class StringPool {
+  private String className;
+
+  /**
+   * The index of the static variable holding the "pool is built" flag
+   */
+  private int readyIndex;
+
+  /**
+   * The static variable index of every literal in the pool
+   */
+  private Map<String, Integer> indices = new LinkedHashMap<>();
+
+  /**
+   * Creates an empty pool
+   *
+   * @param className   The name of the class the pool belongs to
+   * @param staticCount The number of static variables the class declares
+   */
+  public StringPool(String className, int staticCount) {
+    this.className = className;
+    readyIndex = staticCount;
+  }
+
+  /**
+   * Gets the static variable index of a literal, adding it to the pool if it
+   * isn't there yet
+   */
+  public int indexOf(String literal) {
+    Integer index = indices.get(literal);
+    if (index == null) {
+      index = readyIndex + 1 + indices.size();
+      indices.put(literal, index);
+    }
+    return index;
+  }
+
+  public boolean isEmpty() {
+    return indices.isEmpty();
+  }
+
+  /**
+   * Writes the check that builds the pool if it hasn't been built yet. Goes at
+   * the start of every subroutine that uses a literal
+   */
+  public void writeCheck(VMWriter vmWriter) {
+    vmWriter.writePushPop("push", "static", readyIndex);
+    vmWriter.writeIf("STRINGS-READY");
+    vmWriter.writeCall(className + ".$strings", 0);
+    vmWriter.writePushPop("pop", "temp", 0);
+    vmWriter.writeLabel("STRINGS-READY");
+  }
+
+  /**
+   * Writes the function that builds every literal in the pool. The flag is set
+   * first, in case building a string itself uses a literal of this class
+   */
+  public void writeInit(VMWriter vmWriter) {
+    vmWriter.writeFunction(className + ".$strings", 0);
+    vmWriter.writePushPop("push", "constant", 1);
+    vmWriter.writeArithmetic("neg");
+    vmWriter.writePushPop("pop", "static", readyIndex);
+    for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+      vmWriter.writeString(entry.getKey());
+      vmWriter.writePushPop("pop", "static", entry.getValue());
+    }
+    vmWriter.writePushPop("push", "constant", 0);
+    vmWriter.writeReturn();
+  }
+}
@@ -1,73 +1,107 @@
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Represents a Symbol Table for the compilation of a Jack class.
  */
 public class SymbolTable {
-  // A class that deals with individual symbol tables
-  private class Table {
-    private HashMap<String, String> type = new HashMap<>();
-    private HashMap<String, String> kind = new HashMap<>();
-    private HashMap<String, Integer> index = new HashMap<>();
-
-    public void addEntry(String name, String type, String kind, int index) {
-      this.type.put(name, type);
-      this.kind.put(name, kind);
-      this.index.put(name, index);
-    }
+  /**
+   * The kinds of variables, along with the VM segment that each kind lives in
+   */
+  public enum Kind {
+    STATIC("static"),
+    FIELD("this"),
+    ARG("argument"),
+    VAR("local");
+
+    public final String segment;
 
-    public boolean contains(String name) {
-      return this.type.keySet().contains(name);
+    private Kind(String segment) {
+      this.segment = segment;
     }
 
-    public String typeOf(String name) {
-      return this.type.get(name);
+    /**
+     * Gets the kind for a declaration keyword ("static", "field", "var") or
+     * "arg" for parameters
+     */
+    public static Kind fromKeyword(String keyword) {
+      switch (keyword) {
+        case "static":
+          return STATIC;
+        case "field":
+          return FIELD;
+        case "var":
+          return VAR;
+        case "arg":
+          return ARG;
+        default:
+          throw new RuntimeException("Unknown variable kind \"" + keyword + "\"");
+      }
     }
+  }
 
-    public String kindOf(String name) {
-      return this.kind.get(name);
+  /**
+   * Everything there is to know about one variable, so that a single lookup is
+   * enough to write code for it
+   */
+  public static class Symbol {
+    public final Kind kind;
+    public final int index;
+    /**
+     * The type of the variable, as an id given out by the table (see typeName())
+     */
+    public final int typeId;
+
+    private Symbol(Kind kind, int index, int typeId) {
+      this.kind = kind;
+      this.index = index;
+      this.typeId = typeId;
     }
 
-    public Integer indexOf(String name) {
-      return this.index.get(name);
+    public String segment() {
+      return kind.segment;
     }
   }
 
-  // The symbol tables for classes and subroutines, respectively
-  private Table classTable;
-  private Table subroutineTable;
+  // The symbols of the class and of the current subroutine, respectively
+  private HashMap<String, Symbol> classTable = new HashMap<>();
+  private HashMap<String, Symbol> subroutineTable = new HashMap<>();
 
-  private HashMap<String, Integer> varCounts = new HashMap<>();
+  /**
+   * The number of variables defined so far of each kind, indexed by ordinal
+   */
+  private int[] varCounts = new int[Kind.values().length];
 
-  private static HashMap<String, String> kindTable = new HashMap<>();
-  static {
-    kindTable.put("static", "static");
-    kindTable.put("field", "this");
-    kindTable.put("var", "local");
-    kindTable.put("arg", "argument");
-  }
-
-  public SymbolTable() {
-    classTable = new Table();
-    varCounts.put("static", 0);
-    varCounts.put("this", 0);
-    // No need to deal with data for subroutines - startSubroutine() deals with that
-    // hassle
-  }
+  // Every type name seen so far, so that each one is only stored once
+  private HashMap<String, Integer> typeIds = new HashMap<>();
+  private List<String> typeNames = new ArrayList<>();
 
   /**
-   * Notifies the Symbol Table that the compilation of a new subroutine has begun
+   * Notifies the Symbol Table that the compilation of a new subroutine has begun.
+   * The subroutine scope is emptied rather than thrown away
    */
   public void startSubroutine() {
-    subroutineTable = new Table();
-    varCounts.put("argument", 0);
-    varCounts.put("local", 0);
+    subroutineTable.clear();
+    varCounts[Kind.ARG.ordinal()] = 0;
+    varCounts[Kind.VAR.ordinal()] = 0;
+  }
+
+  private int typeIdOf(String type) {
+    Integer id = typeIds.get(type);
+    if (id == null) {
+      id = typeNames.size();
+      typeIds.put(type, id);
+      typeNames.add(type);
+    }
+    return id;
   }
 
-  private int nextIndex(String kind) {
-    int index = varCounts.get(kind);
-    varCounts.put(kind, index + 1);
-    return index;
+  /**
+   * Gets the name of a type from its id
+   */
+  public String typeName(int typeId) {
+    return typeNames.get(typeId);
   }
 
   /**
@@ -77,23 +111,33 @@ public class SymbolTable {
    * @param name The name of this variable. Follows the naming rules of Jack
    *             variables
    * @param type The type of the variable - int, char, boolean, or a class name
-   * @param kind Either "static," "this," "argument," or "local." basically the
-   *             name of the segment it belongs to.
+   * @param kind Either "static," "field," "var," or "arg."
    */
   public void define(String name, String type, String kind) {
-    kind = kindTable.get(kind);
-    switch (kind) {
-      case "static":
-      case "this":
-        classTable.addEntry(name, type, kind, nextIndex(kind));
-        break;
-      case "argument":
-      case "local":
-        subroutineTable.addEntry(name, type, kind, nextIndex(kind));
-        break;
+    Kind k = Kind.fromKeyword(kind);
+    Symbol symbol = new Symbol(k, varCounts[k.ordinal()]++, typeIdOf(type));
+    if (k == Kind.STATIC || k == Kind.FIELD) {
+      classTable.put(name, symbol);
+    } else {
+      subroutineTable.put(name, symbol);
     }
   }
 
+  /**
+   * Finds a variable. The subroutine table will be searched first, and if the
+   * variable could not be found, the class table would be searched
+   *
+   * @param name The name of the variable
+   * @return The variable, or null if there is no variable with name name
+   */
+  public Symbol lookup(String name) {
+    Symbol symbol = subroutineTable.get(name);
+    if (symbol == null) {
+      symbol = classTable.get(name);
+    }
+    return symbol;
+  }
+
   /**
    * Checks whether a variable exists
    *
@@ -101,63 +145,43 @@ public class SymbolTable {
    * @return Whether the variable exists
    */
   public boolean exists(String name) {
-    if (!subroutineTable.contains(name)) {
-      if (!classTable.contains(name)) {
-        return false;
-      }
-    }
-    return true;
+    return lookup(name) != null;
   }
 
   /**
-   * Gets the type of a variable. The subroutine table will be searched first, and
-   * if the variable could not be found, the class tably would be searched
+   * Gets the type of a variable
    *
    * @param name The name of the variable
    * @return The type of the variable with name name
    */
   public String typeOf(String name) {
-    String type = subroutineTable.typeOf(name);
-    if (type == null) {
-      type = classTable.typeOf(name);
-    }
-    return type;
+    return typeName(lookup(name).typeId);
   }
 
   /**
-   * Gets the kind of a variable. The subroutine table will be searched first, and
-   * if the variable could not be found, the class tably would be searched
+   * Gets the segment of a variable
    *
    * @param name The name of the variable
-   * @return The kind of the variable with name name
+   * @return The segment of the variable with name name
    */
   public String kindOf(String name) {
-    String kind = subroutineTable.kindOf(name);
-    if (kind == null) {
-      kind = classTable.kindOf(name);
-    }
-    return kind;
+    return lookup(name).segment();
   }
 
   /**
-   * Gets the index of a variable. The subroutine table will be searched first,
-   * and if the variable could not be found, the class tably would be searched
+   * Gets the index of a variable
    *
    * @param name The name of the variable
    * @return The index of the variable with name name
    */
   public int indexOf(String name) {
-    Integer index = subroutineTable.indexOf(name);
-    if (index == null) {
-      index = classTable.indexOf(name);
-    }
-    return index;
+    return lookup(name).index;
   }
 
   /**
    * Gets the number of occurences of a certain kind of variable so far
    */
-  public int getCount(String kind) {
-    return varCounts.get(kind);
+  public int getCount(Kind kind) {
+    return varCounts[kind.ordinal()];
   }
 }
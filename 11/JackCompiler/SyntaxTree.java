@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nodes of the syntax tree of a Jack class. The tree is only built when
+ * optimizing, so that the whole program can be looked at (and rewritten) before
+ * any VM code is written.
+ */
+public class SyntaxTree {
+  /**
+   * A complete class
+   */
+  public static class ClassDec {
+    public String name;
+    public List<VarDec> classVarDecs = new ArrayList<>();
+    public List<SubroutineDec> subroutineDecs = new ArrayList<>();
+  }
+
+  /**
+   * One declaration statement of one or more variables of the same kind and type.
+   * The kind is one of "static", "field", "var" or "arg", as taken by
+   * SymbolTable.define()
+   */
+  public static class VarDec {
+    public String kind;
+    public String type;
+    public List<String> names = new ArrayList<>();
+
+    public VarDec(String kind, String type) {
+      this.kind = kind;
+      this.type = type;
+    }
+  }
+
+  /**
+   * A method, function, or constructor
+   */
+  public static class SubroutineDec {
+    /**
+     * The line of the source file the declaration starts on
+     */
+    public int line;
+    public String subroutineType;
+    public String returnType;
+    public String name;
+    public List<VarDec> parameters = new ArrayList<>();
+    public List<VarDec> varDecs = new ArrayList<>();
+    public List<Statement> statements = new ArrayList<>();
+  }
+
+  public static abstract class Statement {
+    /**
+     * The line of the source file the statement starts on
+     */
+    public int line;
+  }
+
+  public static class LetStatement extends Statement {
+    public String name;
+    /**
+     * The array index, or null if this is a plain assignment
+     */
+    public Expression index;
+    public Expression value;
+  }
+
+  public static class IfStatement extends Statement {
+    public Expression condition;
+    public List<Statement> statements = new ArrayList<>();
+    /**
+     * The statements of the else clause, or null if there is none
+     */
+    public List<Statement> elseStatements;
+  }
+
+  public static class WhileStatement extends Statement {
+    /**
+     * The loop condition. Null means that the condition is always true, so it
+     * doesn't need to be tested at all
+     */
+    public Expression condition;
+    public List<Statement> statements = new ArrayList<>();
+  }
+
+  public static class DoStatement extends Statement {
+    public CallExpression call;
+  }
+
+  public static class ReturnStatement extends Statement {
+    /**
+     * The returned value, or null for a void return
+     */
+    public Expression value;
+  }
+
+  public static abstract class Expression {
+  }
+
+  /**
+   * An integer constant. Unlike in the source, this may hold any 16-bit value
+   * (including negative ones), since folding can produce those
+   */
+  public static class IntConstant extends Expression {
+    public int value;
+
+    public IntConstant(int value) {
+      this.value = value;
+    }
+  }
+
+  public static class StringConstant extends Expression {
+    public String value;
+
+    public StringConstant(String value) {
+      this.value = value;
+    }
+  }
+
+  /**
+   * One of "true", "false", "null" or "this"
+   */
+  public static class KeywordConstant extends Expression {
+    public String keyword;
+
+    public KeywordConstant(String keyword) {
+      this.keyword = keyword;
+    }
+  }
+
+  public static class VarExpression extends Expression {
+    public String name;
+
+    public VarExpression(String name) {
+      this.name = name;
+    }
+  }
+
+  public static class ArrayExpression extends Expression {
+    public String name;
+    public Expression index;
+
+    public ArrayExpression(String name, Expression index) {
+      this.name = name;
+      this.index = index;
+    }
+  }
+
+  /**
+   * A subroutine call. target is the class or variable name before the ".", or
+   * null for a method of this class
+   */
+  public static class CallExpression extends Expression {
+    public String target;
+    public String subroutineName;
+    public List<Expression> arguments = new ArrayList<>();
+  }
+
+  public static class UnaryExpression extends Expression {
+    public String op;
+    public Expression term;
+
+    public UnaryExpression(String op, Expression term) {
+      this.op = op;
+      this.term = term;
+    }
+  }
+
+  /**
+   * A binary operation. Jack has no operator precedence, so a chain of
+   * operations is stored left-associatively
+   */
+  public static class BinaryExpression extends Expression {
+    public String op;
+    public Expression left;
+    public Expression right;
+
+    public BinaryExpression(String op, Expression left, Expression right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses a Jack source file into a SyntaxTree. Follows the same grammar as
+ * CompilationEngine, but builds nodes instead of writing VM code.
+ */
+public class SyntaxTreeBuilder {
+  private JackTokenizer tokenizer;
+
+  private static List<String> op = Arrays.asList("+", "-", "*", "/", "&", "|", "<", ">", "=");
+
+  /**
+   * Creates a tree builder for the given input file. The next routine called
+   * should be parseClass()
+   *
+   * @param src The Jack source file to parse
+   */
+  public SyntaxTreeBuilder(Path src) {
+    tokenizer = new JackTokenizer(src);
+  }
+
+  /**
+   * Advances the tokenizer and returns the current token
+   */
+  private String getNext() {
+    tokenizer.advance();
+    return tokenizer.value();
+  }
+
+  /**
+   * Advances the tokenizer. If the current token is not one of the specified
+   * tokens, an exception is thrown
+   */
+  private String getNext(String... token) {
+    tokenizer.advance();
+    String value = tokenizer.value();
+    if (!Arrays.asList(token).contains(value)) {
+      throw new RuntimeException(
+          "Expected one of \"" + String.join("\", \"", token) + "\", got \"" + value + "\" instead.");
+    }
+
+    return value;
+  }
+
+  /**
+   * Parses a complete class
+   */
+  public SyntaxTree.ClassDec parseClass() {
+    SyntaxTree.ClassDec classDec = new SyntaxTree.ClassDec();
+
+    getNext("class");
+    classDec.name = getNext(); // className
+
+    getNext("{");
+    String peek = tokenizer.peekNext();
+    while (!peek.equals("}")) {
+      switch (peek) {
+        case "static":
+        case "field":
+          classDec.classVarDecs.add(parseVarDec());
+          break;
+        case "constructor":
+        case "function":
+        case "method":
+          classDec.subroutineDecs.add(parseSubroutine());
+          break;
+        default:
+          throw new RuntimeException("Unexpected token \"" + peek + "\" in class body");
+      }
+      peek = tokenizer.peekNext();
+    }
+    getNext("}");
+
+    return classDec;
+  }
+
+  /**
+   * Parses a class variable or local variable declaration
+   */
+  public SyntaxTree.VarDec parseVarDec() {
+    SyntaxTree.VarDec varDec = new SyntaxTree.VarDec(getNext(), getNext());
+    varDec.names.add(getNext());
+    while (!tokenizer.peekNext().equals(";")) {
+      getNext(",");
+      varDec.names.add(getNext());
+    }
+    getNext(";");
+    return varDec;
+  }
+
+  /**
+   * Parses a complete method, function, or constructor
+   */
+  public SyntaxTree.SubroutineDec parseSubroutine() {
+    SyntaxTree.SubroutineDec subroutineDec = new SyntaxTree.SubroutineDec();
+
+    subroutineDec.subroutineType = getNext();
+    subroutineDec.line = tokenizer.lineNumber();
+    subroutineDec.returnType = getNext();
+    subroutineDec.name = getNext();
+    getNext("(");
+    if (!tokenizer.peekNext().equals(")")) {
+      while (true) {
+        SyntaxTree.VarDec parameter = new SyntaxTree.VarDec("arg", getNext());
+        parameter.names.add(getNext());
+        subroutineDec.parameters.add(parameter);
+        if (!tokenizer.peekNext().equals(",")) {
+          break;
+        }
+        getNext(",");
+      }
+    }
+    getNext(")");
+
+    getNext("{");
+    while (tokenizer.peekNext().equals("var")) {
+      subroutineDec.varDecs.add(parseVarDec());
+    }
+    subroutineDec.statements = parseStatements();
+    getNext("}");
+
+    return subroutineDec;
+  }
+
+  /**
+   * Parses a sequence of statements, not including the enclosing "{}"
+   */
+  public List<SyntaxTree.Statement> parseStatements() {
+    List<SyntaxTree.Statement> statements = new ArrayList<>();
+    while (!tokenizer.peekNext().equals("}")) {
+      String keyword = getNext("do", "let", "while", "return", "if");
+      int line = tokenizer.lineNumber();
+      switch (keyword) {
+        case "do":
+          statements.add(parseDo());
+          break;
+        case "let":
+          statements.add(parseLet());
+          break;
+        case "while":
+          statements.add(parseWhile());
+          break;
+        case "return":
+          statements.add(parseReturn());
+          break;
+        case "if":
+          statements.add(parseIf());
+          break;
+        default:
+          break;
+      }
+      statements.get(statements.size() - 1).line = line;
+    }
+    return statements;
+  }
+
+  public SyntaxTree.DoStatement parseDo() {
+    SyntaxTree.DoStatement doStatement = new SyntaxTree.DoStatement();
+    doStatement.call = parseCall(getNext());
+    getNext(";");
+    return doStatement;
+  }
+
+  public SyntaxTree.LetStatement parseLet() {
+    SyntaxTree.LetStatement letStatement = new SyntaxTree.LetStatement();
+    letStatement.name = getNext();
+    if (tokenizer.peekNext().equals("[")) {
+      getNext("[");
+      letStatement.index = parseExpression();
+      getNext("]");
+    }
+    getNext("=");
+    letStatement.value = parseExpression();
+    getNext(";");
+    return letStatement;
+  }
+
+  public SyntaxTree.WhileStatement parseWhile() {
+    SyntaxTree.WhileStatement whileStatement = new SyntaxTree.WhileStatement();
+    getNext("(");
+    whileStatement.condition = parseExpression();
+    getNext(")");
+    getNext("{");
+    whileStatement.statements = parseStatements();
+    getNext("}");
+    return whileStatement;
+  }
+
+  public SyntaxTree.ReturnStatement parseReturn() {
+    SyntaxTree.ReturnStatement returnStatement = new SyntaxTree.ReturnStatement();
+    if (!tokenizer.peekNext().equals(";")) {
+      returnStatement.value = parseExpression();
+    }
+    getNext(";");
+    return returnStatement;
+  }
+
+  public SyntaxTree.IfStatement parseIf() {
+    SyntaxTree.IfStatement ifStatement = new SyntaxTree.IfStatement();
+    getNext("(");
+    ifStatement.condition = parseExpression();
+    getNext(")");
+    getNext("{");
+    ifStatement.statements = parseStatements();
+    getNext("}");
+    if (tokenizer.peekNext().equals("else")) {
+      getNext("else");
+      getNext("{");
+      ifStatement.elseStatements = parseStatements();
+      getNext("}");
+    }
+    return ifStatement;
+  }
+
+  /**
+   * Parses an expression. Operations are grouped from left to right
+   */
+  public SyntaxTree.Expression parseExpression() {
+    SyntaxTree.Expression expression = parseTerm();
+    while (op.contains(tokenizer.peekNext())) {
+      String operator = getNext();
+      expression = new SyntaxTree.BinaryExpression(operator, expression, parseTerm());
+    }
+    return expression;
+  }
+
+  /**
+   * Parses a term
+   */
+  public SyntaxTree.Expression parseTerm() {
+    String value = getNext();
+    switch (tokenizer.tokenType()) {
+      case SYMBOL:
+        if (value.equals("(")) { // Parenthesized expression
+          SyntaxTree.Expression expression = parseExpression();
+          getNext(")");
+          return expression;
+        }
+        return new SyntaxTree.UnaryExpression(value, parseTerm());
+      case IDENTIFIER:
+        switch (tokenizer.peekNext()) {
+          case "[": // Array access
+            getNext("[");
+            SyntaxTree.Expression index = parseExpression();
+            getNext("]");
+            return new SyntaxTree.ArrayExpression(value, index);
+          case ".":
+          case "(": // Function call
+            return parseCall(value);
+          default: // Variable
+            return new SyntaxTree.VarExpression(value);
+        }
+      case INT_CONST:
+        return new SyntaxTree.IntConstant(Integer.parseInt(value));
+      case STRING_CONST:
+        return new SyntaxTree.StringConstant(tokenizer.stringValue());
+      case KEYWORD:
+        return new SyntaxTree.KeywordConstant(value);
+      default:
+        throw new RuntimeException("Unexpected token \"" + value + "\" in expression");
+    }
+  }
+
+  /**
+   * Parses a subroutine call, given the name that comes before the "(" or "."
+   */
+  private SyntaxTree.CallExpression parseCall(String name) {
+    SyntaxTree.CallExpression call = new SyntaxTree.CallExpression();
+    if (getNext("(", ".").equals(".")) {
+      call.target = name;
+      call.subroutineName = getNext();
+      getNext("(");
+    } else {
+      call.subroutineName = name;
+    }
+
+    if (!tokenizer.peekNext().equals(")")) {
+      while (true) {
+        call.arguments.add(parseExpression());
+        if (!tokenizer.peekNext().equals(",")) {
+          break;
+        }
+        getNext(",");
+      }
+    }
+    getNext(")");
+    return call;
+  }
+}
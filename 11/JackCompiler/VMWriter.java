@@ -1,11 +1,40 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
 // Deals with the details of output file handling and all that stuff
 public class VMWriter {
   private FileWriter output;
 
+  /**
+   * The Jack file being compiled, and the VM file being written
+   */
+  private String sourceName;
+  private String outputName;
+
+  /**
+   * The line of Jack code that the commands being written come from
+   */
+  private int line = 0;
+
+  /**
+   * The line each command so far comes from, or null if there's to be no
+   * source map
+   */
+  private SourceMap sourceMap = null;
+
+  /**
+   * The number of VM commands written so far, not counting comments
+   */
+  private int commandCount = 0;
+
+  /**
+   * The variable that pointer 1 is known to hold, or null if unknown. Only
+   * locals and arguments are tracked, since nothing but a pop can change them
+   */
+  private SymbolTable.Symbol thatBase = null;
+
   /**
    * Creates a file and prepares it for the writing of everything.
    */
@@ -13,6 +42,8 @@ public class VMWriter {
     try {
       File f = new File(
           src.getParent().toString() + "/" + src.getFileName().toString().replaceAll("\\.[^.]*?$", "") + ".vm");
+      sourceName = src.getFileName().toString();
+      outputName = f.getPath();
       f.createNewFile();
       output = new FileWriter(f);
     } catch (Exception e) {
@@ -20,11 +51,50 @@ public class VMWriter {
     }
   }
 
+  /**
+   * Creates a writer that doesn't write anywhere, and only counts the commands
+   * it is given. Used to measure how much code a compilation produces
+   */
+  public VMWriter() {
+    output = null;
+  }
+
   private void write(Object... s) {
     String[] str = new String[s.length];
     for (int i = 0; i < s.length; i++) {
       str[i] = s[i].toString();
     }
+    if (!str[0].startsWith("//")) {
+      commandCount++;
+      if (sourceMap != null) {
+        sourceMap.add(sourceName, line);
+      }
+    }
+    if (thatBase != null) {
+      switch (str[0]) {
+        case "label": // Code can be jumped to from anywhere
+        case "function":
+          thatBase = null;
+          break;
+        case "pop":
+        case "inc":
+        case "dec":
+        case "add-to":
+        case "sub-to":
+        case "and-to":
+        case "or-to":
+          if (str[1].equals("pointer") && str[2].equals("1")
+              || str[1].equals(thatBase.segment()) && str[2].equals(Integer.toString(thatBase.index))) {
+            thatBase = null;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (output == null) {
+      return;
+    }
     try {
       output.write(String.join(" ", str) + "\n");
       System.out.println(String.join(" ", str));
@@ -33,11 +103,36 @@ public class VMWriter {
     }
   }
 
+  /**
+   * Makes the writer keep track of the Jack line each command comes from, and
+   * write it to a source map (the VM file's name with .map on the end) when it
+   * is closed. The VM commands of a file are numbered from 0, leaving out
+   * comments, and VMTranslator does the same when it maps Hack instructions to
+   * them
+   */
+  public void writeSourceMap() {
+    sourceMap = new SourceMap();
+  }
+
+  /**
+   * Sets the line of Jack code that the commands written next come from
+   */
+  public void setLine(int line) {
+    this.line = line;
+  }
+
   // The methods below write stuff to the file
   public void writePushPop(String pushPop, String segment, int index) {
     write(pushPop, segment, index);
   }
 
+  /**
+   * Pushes or pops a variable, given its symbol
+   */
+  public void writePushPop(String pushPop, SymbolTable.Symbol symbol) {
+    write(pushPop, symbol.segment(), symbol.index);
+  }
+
   public void writeArithmetic(String command) {
     write(command);
   }
@@ -54,6 +149,54 @@ public class VMWriter {
     write("if-goto", label);
   }
 
+  /**
+   * Points the that segment at an array held in a local or argument. Nothing
+   * is written if it already points there, e.g. for a[0] right after a[1]
+   */
+  public void writeThatBase(SymbolTable.Symbol array) {
+    if (array == thatBase) {
+      return;
+    }
+    writePushPop("push", array);
+    writePushPop("pop", "pointer", 1);
+    thatBase = array;
+  }
+
+  /**
+   * Writes an in-place update of a variable (a VM extension). "inc" and "dec"
+   * add or take 1 from the variable, and "add-to", "sub-to", "and-to", and
+   * "or-to" pop a value and combine it into the variable
+   */
+  public void writeInPlace(String command, SymbolTable.Symbol symbol) {
+    write(command, symbol.segment(), symbol.index);
+  }
+
+  /**
+   * Writes an indexed load (a VM extension), which pops an index and then an
+   * array, and pushes the element
+   */
+  public void writeArrayLoad() {
+    write("aload");
+  }
+
+  /**
+   * Writes an indexed store (a VM extension), which pops a value, an index,
+   * and then an array, and stores the value into the element
+   */
+  public void writeArrayStore() {
+    write("astore");
+  }
+
+  /**
+   * Writes a fused compare-and-branch command (a VM extension), which pops two
+   * values and jumps if the comparison holds between them
+   *
+   * @param comparison One of "lt", "gt", "eq", "ge", "le", or "ne"
+   */
+  public void writeIfCompare(String comparison, String label) {
+    write("if-" + comparison, label);
+  }
+
   public void writeCall(String name, int nArgs) {
     write("call", name, nArgs);
   }
@@ -66,13 +209,187 @@ public class VMWriter {
     write("return");
   }
 
+  /**
+   * Writes a return that leaves nothing on the caller's stack (a VM extension).
+   * The caller shouldn't pop anything after the call
+   */
+  public void writeReturnVoid() {
+    write("return-void");
+  }
+
+  /**
+   * Writes code that builds a new String object holding the given text, and
+   * pushes it onto the stack
+   */
+  public void writeString(String value) {
+    writePushPop("push", "constant", value.length());
+    writeCall("String.new", 1);
+    for (char c : value.toCharArray()) {
+      writePushPop("push", "constant", (int) c);
+      writeCall("String.appendChar", 2);
+    }
+  }
+
+  /**
+   * Multiplications by a constant that would take more VM commands than this
+   * are left to Math.multiply, so that the code doesn't blow up in size
+   */
+  private static final int MAX_MULTIPLY_COMMANDS = 24;
+
+  /**
+   * Writes code that multiplies the value on top of the stack by a constant,
+   * using additions instead of Math.multiply. The value is doubled for every bit
+   * of the constant, and added back in for every bit that is set (temp 1 holds
+   * the value, temp 2 the running product).
+   *
+   * @return Whether the code was written. If not, nothing was written, and the
+   *         caller should call Math.multiply instead
+   */
+  public boolean writeMultiplyByConstant(int constant) {
+    if (constant == -32768) {
+      return false;
+    }
+    int multiplier = Math.abs(constant);
+    if (multiplier == 0) { // The value still has to be taken off the stack
+      writePushPop("pop", "temp", 1);
+      writePushPop("push", "constant", 0);
+      return true;
+    }
+
+    int bitLength = 32 - Integer.numberOfLeadingZeros(multiplier);
+    int bitCount = Integer.bitCount(multiplier);
+    int commands = (bitCount > 1 ? 2 : 0) + 4 * (bitLength - 1) + 2 * (bitCount - 1) + (constant < 0 ? 1 : 0);
+    if (commands > MAX_MULTIPLY_COMMANDS) {
+      return false;
+    }
+
+    if (bitCount > 1) {
+      writePushPop("pop", "temp", 1);
+      writePushPop("push", "temp", 1);
+    }
+    for (int bit = bitLength - 2; bit >= 0; bit--) {
+      if (bitCount > 1 && bit == bitLength - 2) { // The product is still the value itself
+        writePushPop("push", "temp", 1);
+      } else {
+        writePushPop("pop", "temp", 2);
+        writePushPop("push", "temp", 2);
+        writePushPop("push", "temp", 2);
+      }
+      writeArithmetic("add");
+      if ((multiplier & (1 << bit)) != 0) {
+        writePushPop("push", "temp", 1);
+        writeArithmetic("add");
+      }
+    }
+    if (constant < 0) {
+      writeArithmetic("neg");
+    }
+    return true;
+  }
+
+  /**
+   * The amount of divisions written by writeDivideByConstant(), for labels
+   */
+  private int divideCount = 0;
+
+  /**
+   * Writes code that divides the value on top of the stack by a constant, for
+   * the constants where this can be done without Math.divide. Dividing by 1 or
+   * -1 is trivial. The Hack computer can't shift right, so a division by 2^k
+   * is done by copying bits k to 15 of the absolute value down one at a time,
+   * which is still much cheaper than the recursion in Math.divide. The result is
+   * rounded toward zero like Math.divide does.
+   *
+   * @return Whether the code was written. If not, nothing was written, and the
+   *         caller should call Math.divide instead
+   */
+  public boolean writeDivideByConstant(int constant) {
+    if (constant == 1) {
+      return true;
+    }
+    if (constant == -1) {
+      writeArithmetic("neg");
+      return true;
+    }
+    if (constant < 2 || Integer.bitCount(constant) != 1) {
+      return false;
+    }
+
+    String label = "DIV" + divideCount++;
+    // temp 1: |x|, temp 2: quotient, temp 3: quotient bit, temp 4: bit of |x|, temp 5: x < 0
+    writePushPop("pop", "temp", 1);
+    writePushPop("push", "temp", 1);
+    writePushPop("push", "constant", 0);
+    writeArithmetic("lt");
+    writePushPop("pop", "temp", 5);
+    writePushPop("push", "temp", 5);
+    writeArithmetic("not");
+    writeIf(label + "-POS");
+    writePushPop("push", "temp", 1);
+    writeArithmetic("neg");
+    writePushPop("pop", "temp", 1);
+    writeLabel(label + "-POS");
+    writePushPop("push", "constant", 0);
+    writePushPop("pop", "temp", 2);
+    writePushPop("push", "constant", 1);
+    writePushPop("pop", "temp", 3);
+    writePushPop("push", "constant", constant);
+    writePushPop("pop", "temp", 4);
+
+    // The bit of |x| overflows to 0 after bit 15
+    writeLabel(label + "-LOOP");
+    writePushPop("push", "temp", 4);
+    writePushPop("push", "constant", 0);
+    writeArithmetic("eq");
+    writeIf(label + "-END");
+    writePushPop("push", "temp", 1);
+    writePushPop("push", "temp", 4);
+    writeArithmetic("and");
+    writePushPop("push", "constant", 0);
+    writeArithmetic("eq");
+    writeIf(label + "-SKIP");
+    writePushPop("push", "temp", 2);
+    writePushPop("push", "temp", 3);
+    writeArithmetic("or");
+    writePushPop("pop", "temp", 2);
+    writeLabel(label + "-SKIP");
+    writePushPop("push", "temp", 3);
+    writePushPop("push", "temp", 3);
+    writeArithmetic("add");
+    writePushPop("pop", "temp", 3);
+    writePushPop("push", "temp", 4);
+    writePushPop("push", "temp", 4);
+    writeArithmetic("add");
+    writePushPop("pop", "temp", 4);
+    writeGoto(label + "-LOOP");
+    writeLabel(label + "-END");
+
+    writePushPop("push", "temp", 2);
+    writePushPop("push", "temp", 5);
+    writeArithmetic("not");
+    writeIf(label + "-DONE");
+    writeArithmetic("neg");
+    writeLabel(label + "-DONE");
+    return true;
+  }
+
+  public int getCommandCount() {
+    return commandCount;
+  }
+
   /**
    * Closes the output file so that nothing terrible happens (because bad things
    * happen when you don't close the output file)
    */
   public void close() {
+    if (output == null) {
+      return;
+    }
     try {
       output.close();
+      if (sourceMap != null) {
+        sourceMap.write(Paths.get(outputName + ".map"));
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
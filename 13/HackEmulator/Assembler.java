@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns Hack assembly into machine code, so that the emulator can run
+ * <code>.asm</code> files straight out of VMTranslator. This is the same job
+ * as the assembler of project 6, but the labels are kept around afterwards,
+ * since they're the only way to tell where things are in the machine code.
+ */
+public class Assembler {
+  private static final Map<String, Integer> COMPS = new HashMap<String, Integer>();
+  private static final Map<String, Integer> JUMPS = new HashMap<String, Integer>();
+
+  static {
+    // The comp field, a-bit included
+    String[][] comps = {
+      { "0", "0101010" }, { "1", "0111111" }, { "-1", "0111010" },
+      { "D", "0001100" }, { "A", "0110000" }, { "M", "1110000" },
+      { "!D", "0001101" }, { "!A", "0110001" }, { "!M", "1110001" },
+      { "-D", "0001111" }, { "-A", "0110011" }, { "-M", "1110011" },
+      { "D+1", "0011111" }, { "A+1", "0110111" }, { "M+1", "1110111" },
+      { "D-1", "0001110" }, { "A-1", "0110010" }, { "M-1", "1110010" },
+      { "D+A", "0000010" }, { "D+M", "1000010" },
+      { "D-A", "0010011" }, { "D-M", "1010011" },
+      { "A-D", "0000111" }, { "M-D", "1000111" },
+      { "D&A", "0000000" }, { "D&M", "1000000" },
+      { "D|A", "0010101" }, { "D|M", "1010101" },
+      // The same operations, written the other way around
+      { "A+D", "0000010" }, { "M+D", "1000010" },
+      { "A&D", "0000000" }, { "M&D", "1000000" },
+      { "A|D", "0010101" }, { "M|D", "1010101" }
+    };
+    for (String[] comp : comps) {
+      COMPS.put(comp[0], Integer.parseInt(comp[1], 2));
+    }
+
+    String[] jumps = { "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+    for (int i = 0; i < jumps.length; i++) {
+      JUMPS.put(jumps[i], i);
+    }
+  }
+
+  /**
+   * Every symbol, both predefined and from the program
+   */
+  private Map<String, Integer> symbols = new HashMap<String, Integer>();
+
+  /**
+   * The labels of the program, i.e. the symbols that are ROM addresses
+   */
+  private Map<String, Integer> labels = new HashMap<String, Integer>();
+
+  /**
+   * For each instruction, the line of the source that it came from (counting
+   * from 1)
+   */
+  private List<Integer> sourceLines = new ArrayList<Integer>();
+
+  private int[] program;
+
+  /**
+   * Assembles a program
+   * @param source The lines of the program
+   */
+  public Assembler(List<String> source) {
+    for (int i = 0; i < 16; i++) {
+      symbols.put("R" + i, i);
+    }
+    symbols.put("SP", 0);
+    symbols.put("LCL", 1);
+    symbols.put("ARG", 2);
+    symbols.put("THIS", 3);
+    symbols.put("THAT", 4);
+    symbols.put("SCREEN", HackComputer.SCREEN);
+    symbols.put("KBD", HackComputer.KBD);
+
+    // First pass: find the labels
+    List<String> instructions = new ArrayList<String>();
+    for (int line = 0; line < source.size(); line++) {
+      String instruction = source.get(line).replaceAll("//.*", "").replaceAll("\\s", "");
+      if (instruction.isEmpty()) {
+        continue;
+      }
+      if (instruction.startsWith("(")) {
+        String label = instruction.substring(1, instruction.length() - 1);
+        symbols.put(label, instructions.size());
+        labels.put(label, instructions.size());
+      } else {
+        instructions.add(instruction);
+        sourceLines.add(line + 1);
+      }
+    }
+
+    // Second pass: write the code, giving variables addresses as they show up
+    int nextVariable = 16;
+    program = new int[instructions.size()];
+    for (int i = 0; i < program.length; i++) {
+      String instruction = instructions.get(i);
+      if (instruction.startsWith("@")) {
+        String value = instruction.substring(1);
+        if (Character.isDigit(value.charAt(0))) {
+          program[i] = Integer.parseInt(value) & 0x7FFF;
+        } else {
+          Integer address = symbols.get(value);
+          if (address == null) {
+            address = nextVariable++;
+            symbols.put(value, address);
+          }
+          program[i] = address;
+        }
+        continue;
+      }
+
+      String dest = "";
+      String comp = instruction;
+      String jump = "";
+      int equals = comp.indexOf('=');
+      if (equals != -1) {
+        dest = comp.substring(0, equals);
+        comp = comp.substring(equals + 1);
+      }
+      int semicolon = comp.indexOf(';');
+      if (semicolon != -1) {
+        jump = comp.substring(semicolon + 1);
+        comp = comp.substring(0, semicolon);
+      }
+      if (!COMPS.containsKey(comp) || !JUMPS.containsKey(jump) || !dest.matches("[AMD]*")) {
+        throw new IllegalArgumentException(String.format("Line %d: Bad instruction \"%s\"", sourceLines.get(i), instruction));
+      }
+      int destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+      program[i] = 0b111 << 13 | COMPS.get(comp) << 6 | destBits << 3 | JUMPS.get(jump);
+    }
+  }
+
+  /**
+   * Assembles a file
+   * @param file The <code>.asm</code> file
+   */
+  public Assembler(Path file) throws IOException {
+    this(Files.readAllLines(file));
+  }
+
+  /**
+   * Gets the machine code of the program, one instruction per element
+   */
+  public int[] getProgram() {
+    return program;
+  }
+
+  /**
+   * Gets every symbol of the program, including the predefined ones and
+   * variables
+   */
+  public Map<String, Integer> getSymbols() {
+    return symbols;
+  }
+
+  /**
+   * Gets the labels of the program, i.e. the symbols that are ROM addresses
+   */
+  public Map<String, Integer> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Gets the line of the source that an instruction came from
+   * @param address The ROM address of the instruction
+   * @return The line number, counting from 1
+   */
+  public int getSourceLine(int address) {
+    return sourceLines.get(address);
+  }
+
+  /**
+   * Reads a <code>.hack</code> file, which has one instruction per line
+   * written in binary
+   * @param file The file to read
+   * @return The machine code
+   */
+  public static int[] readHack(Path file) throws IOException {
+    List<Integer> program = new ArrayList<Integer>();
+    for (String line : Files.readAllLines(file)) {
+      line = line.trim();
+      if (!line.isEmpty()) {
+        program.add(Integer.parseInt(line, 2));
+      }
+    }
+    return program.stream().mapToInt(Integer::intValue).toArray();
+  }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Runs the scripts written for the CPU emulator of the course, which load a
+ * <code>.asm</code> or <code>.hack</code> file and step it with
+ * <code>ticktock</code>.
+ */
+public class CPUSimulator implements Simulator {
+  private HackComputer computer = new HackComputer(new int[0]);
+
+  @Override
+  public void load(Path source) throws IOException {
+    int[] program;
+    if (source.toString().endsWith(".hack")) {
+      program = Assembler.readHack(source);
+    } else {
+      program = new Assembler(source).getProgram();
+    }
+    computer = new HackComputer(program);
+  }
+
+  /**
+   * Gets the address of a <code>RAM[n]</code> variable
+   */
+  private static int ramAddress(String variable) {
+    if (!variable.startsWith("RAM[") || !variable.endsWith("]")) {
+      throw new IllegalArgumentException("Unknown variable " + variable);
+    }
+    return Integer.parseInt(variable.substring(4, variable.length() - 1)) & HackComputer.ADDRESS_MASK;
+  }
+
+  @Override
+  public void set(String variable, int value) {
+    switch (variable) {
+      case "A":
+        computer.a = (short) value;
+        break;
+      case "D":
+        computer.d = (short) value;
+        break;
+      case "PC":
+        computer.pc = value & HackComputer.ADDRESS_MASK;
+        break;
+      default:
+        computer.ram[ramAddress(variable)] = (short) value;
+        break;
+    }
+  }
+
+  @Override
+  public int get(String variable) {
+    switch (variable) {
+      case "A":
+        return computer.a;
+      case "D":
+        return computer.d;
+      case "PC":
+        return computer.pc;
+      default:
+        return computer.ram[ramAddress(variable)];
+    }
+  }
+
+  @Override
+  public boolean step(String command, long times) {
+    switch (command) {
+      case "ticktock": case "tock":
+        // Once a program halts it just loops, which doesn't change anything
+        computer.run(times);
+        return true;
+      case "tick":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public void save(Path file) throws IOException {
+    Snapshot.save(computer, file);
+  }
+
+  @Override
+  public void restore(Path file) throws IOException {
+    Snapshot.restore(computer, file);
+  }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs one Hack program many times over, each time with input of its own
+ * (words of RAM set before it starts, and keys pressed as it goes), for
+ * fuzzing a program or checking it against a lot of inputs at once.
+ * <p>
+ * The program is decoded once, and every run gets a HackComputer that shares
+ * the decoded ROM (see HackComputer(HackComputer)), so a run only costs its
+ * own RAM. Runs are handed out to a work-stealing pool of threads, and a
+ * run's computer is only made once a thread gets to it and is thrown away as
+ * soon as it's done, keeping only the part of RAM asked for. However many
+ * runs there are, only as many computers as there are threads are ever around
+ * at once. The JIT is left out, since every run would compile the same code
+ * all over again.
+ * <p>
+ * Each run stops when the program halts or has run its own number of
+ * instructions. Idle loops are skipped through (see IdleLoops), so a run of a
+ * program that ends in Sys.halt stops there instead of running out its
+ * instructions. The instructions run by all the runs are counted up as they
+ * go, for the throughput of the whole batch.
+ * <p>
+ * From the command line, each run's input is a file of lines like
+ * <code>set 0 256</code> (put 256 in RAM[0]) or <code>key 1000 65</code>
+ * (press A from instruction 1000 on, with key 0 letting go), with
+ * <code>//</code> comments. A directory stands for all the files in it.
+ */
+public class HackBatch {
+  /**
+   * The input of one run of the program
+   */
+  public static class Run {
+    private final String name;
+    private final long maxCycles;
+    private final List<int[]> ram = new ArrayList<int[]>(); // { address, value }
+    private final List<long[]> keys = new ArrayList<long[]>(); // { cycle, key }
+
+    /**
+     * @param name What to call the run in its result
+     * @param maxCycles The most instructions it may run
+     */
+    public Run(String name, long maxCycles) {
+      this.name = name;
+      this.maxCycles = maxCycles;
+    }
+
+    /**
+     * Sets a word of RAM before the program starts
+     */
+    public Run set(int address, int value) {
+      ram.add(new int[] { address & HackComputer.ADDRESS_MASK, value });
+      return this;
+    }
+
+    /**
+     * Presses a key once the program has run some number of instructions,
+     * until the next key. Key 0 lets go
+     */
+    public Run press(long cycle, int key) {
+      keys.add(new long[] { cycle, key });
+      return this;
+    }
+  }
+
+  /**
+   * How a run went
+   */
+  public static class Result {
+    public final String name;
+    public final long cycles;
+    public final boolean halted;
+
+    /**
+     * The part of RAM that was asked for, as it was when the run stopped
+     */
+    public final short[] ram;
+
+    Result(String name, long cycles, boolean halted, short[] ram) {
+      this.name = name;
+      this.cycles = cycles;
+      this.halted = halted;
+      this.ram = ram;
+    }
+  }
+
+  private final HackComputer program;
+  private final int outputFrom;
+  private final int outputTo;
+
+  private final LongAdder cycles = new LongAdder();
+  private final LongAdder runs = new LongAdder();
+  private long time = 0;
+
+  /**
+   * @param program The machine code, one instruction per element
+   * @param outputFrom The first word of RAM to keep from each run
+   * @param outputTo The last word of RAM to keep, or outputFrom - 1 for none
+   */
+  public HackBatch(int[] program, int outputFrom, int outputTo) {
+    this.program = new HackComputer(program);
+    this.outputFrom = outputFrom;
+    this.outputTo = outputTo;
+  }
+
+  /**
+   * Runs the program once for each input, on a pool of threads
+   * @param threads How many runs to have going at once
+   * @return The results, in the same order as the inputs
+   */
+  public List<Result> run(List<Run> inputs, int threads) {
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<ForkJoinTask<Result>> tasks = new ArrayList<ForkJoinTask<Result>>();
+      for (Run input : inputs) {
+        tasks.add(pool.submit(() -> run(input)));
+      }
+      List<Result> results = new ArrayList<Result>();
+      for (ForkJoinTask<Result> task : tasks) {
+        results.add(task.join());
+      }
+      return results;
+    } finally {
+      pool.shutdown();
+      time += System.nanoTime() - start;
+    }
+  }
+
+  private Result run(Run input) {
+    HackComputer computer = new HackComputer(program);
+    computer.setIdleLoops(true);
+    for (int[] word : input.ram) {
+      computer.ram[word[0]] = (short) word[1];
+    }
+    List<long[]> keys = new ArrayList<long[]>(input.keys);
+    keys.sort(Comparator.comparingLong(key -> key[0]));
+    // Running stops for each key, so that an idle loop waiting for one only
+    // gets skipped up to when it's pressed
+    for (long[] key : keys) {
+      long until = Math.min(key[0], input.maxCycles);
+      if (computer.cycles < until) {
+        computer.run(until - computer.cycles);
+      }
+      if (computer.isHalted() || computer.cycles >= input.maxCycles) {
+        break;
+      }
+      computer.ram[HackComputer.KBD] = (short) key[1];
+    }
+    if (!computer.isHalted() && computer.cycles < input.maxCycles) {
+      computer.run(input.maxCycles - computer.cycles);
+    }
+
+    cycles.add(computer.cycles);
+    runs.increment();
+    short[] ram = new short[Math.max(outputTo - outputFrom + 1, 0)];
+    System.arraycopy(computer.ram, outputFrom, ram, 0, ram.length);
+    return new Result(input.name, computer.cycles, computer.isHalted(), ram);
+  }
+
+  /**
+   * Gets the number of instructions run by all the runs so far
+   */
+  public long getCycles() {
+    return cycles.sum();
+  }
+
+  /**
+   * Gets the number of runs that have finished so far
+   */
+  public long getRunCount() {
+    return runs.sum();
+  }
+
+  /**
+   * Gets the time spent in run(), in nanoseconds
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Reads the input of a run from a file
+   */
+  public static Run readRun(Path file, long maxCycles) throws IOException {
+    Run run = new Run(file.toString(), maxCycles);
+    List<String> lines = Files.readAllLines(file);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).replaceAll("//.*", "").trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] words = line.split("\\s+");
+      try {
+        if (words.length == 3 && words[0].equals("set")) {
+          run.set(Integer.parseInt(words[1]), Integer.parseInt(words[2]));
+          continue;
+        }
+        if (words.length == 3 && words[0].equals("key")) {
+          run.press(Long.parseLong(words[1]), Integer.parseInt(words[2]));
+          continue;
+        }
+      } catch (NumberFormatException e) {
+        // Falls through to the error below
+      }
+      throw new IllegalArgumentException(String.format("%s, line %d: Bad input \"%s\"", file, i + 1, line));
+    }
+    return run;
+  }
+
+  private static void printIncorrectUsage() {
+    System.out.println("Usage:\n\n\tHackBatch [-threads n] [-cycles n] [-ram from[-to]] program input...\n\nWhere program is either a .asm or a .hack file, and each input is a file with the input of a run, or a directory of them\n");
+  }
+
+  public static void main(String[] args) {
+    String source = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long maxCycles = 100000000;
+    int from = 0;
+    int to = -1;
+    List<Path> inputFiles = new ArrayList<Path>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-cycles") && i + 1 < args.length) {
+        maxCycles = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-ram") && i + 1 < args.length) {
+        String[] range = args[++i].split("-");
+        from = Integer.parseInt(range[0]);
+        to = range.length > 1 ? Integer.parseInt(range[1]) : from;
+      } else if (source == null) {
+        source = args[i];
+      } else {
+        Path input = Paths.get(args[i]);
+        try (Stream<Path> files = Files.walk(input)) {
+          inputFiles.addAll(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+        } catch (IOException e) {
+          System.out.println("Error while reading " + input);
+          e.printStackTrace();
+          return;
+        }
+      }
+    }
+    if (source == null || inputFiles.isEmpty()) {
+      printIncorrectUsage();
+      return;
+    }
+
+    HackBatch batch;
+    List<Run> inputs = new ArrayList<Run>();
+    try {
+      Path file = Paths.get(source);
+      batch = new HackBatch(source.endsWith(".hack") ? Assembler.readHack(file) : new Assembler(file).getProgram(),
+          from, to);
+      for (Path input : inputFiles) {
+        inputs.add(readRun(input, maxCycles));
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error in loading program");
+      e.printStackTrace();
+      return;
+    }
+
+    List<Result> results = batch.run(inputs, threads);
+    for (Result result : results) {
+      StringBuilder values = new StringBuilder();
+      for (short value : result.ram) {
+        values.append(' ').append(value);
+      }
+      System.out.println(String.format("%s: ran %d%s%s", result.name, result.cycles, result.halted ? ", halted" : "",
+          result.ram.length == 0 ? "" : String.format(", RAM[%d-%d]:%s", from, to, values)));
+    }
+    long time = Math.max(batch.getTime(), 1);
+    System.out.println(String.format("\n%d runs on %d threads, %d instructions in %d ms (%.0f million per second, %.0f runs per second)",
+        batch.getRunCount(), threads, batch.getCycles(), time / 1000000, batch.getCycles() * 1000.0 / time,
+        batch.getRunCount() * 1e9 / time));
+  }
+}
@@ -0,0 +1,411 @@
+import java.util.Arrays;
+
+/**
+ * The Hack computer: a CPU, 32K words of ROM, and RAM with the screen and
+ * keyboard mapped into it. Nothing is drawn, and the keyboard is just a word
+ * of RAM that can be set from outside.
+ * <p>
+ * When a program is loaded, every instruction is split up into its fields
+ * ahead of time, so that running an instruction is a few array reads and one
+ * <code>switch</code>.
+ */
+public class HackComputer {
+  public static final int SCREEN = 16384;
+  public static final int KBD = 24576;
+
+  /**
+   * Both the RAM and the ROM are 32K words, so addresses are 15 bits
+   */
+  public static final int ADDRESS_MASK = 0x7FFF;
+
+  /**
+   * What <code>comp</code> holds for an A-instruction
+   */
+  static final int A_INSTRUCTION = -1;
+
+  /**
+   * What <code>comp</code> holds past the end of the program. The field
+   * arrays are always the size of the whole ROM, so that running off the end
+   * of the program doesn't need checking for on every instruction
+   */
+  static final int END = -2;
+
+  /**
+   * A bit set in <code>jump</code> on top of the jump bits for jumps that look
+   * like the end of a loop: jumps back to a label set just before the jump.
+   * Only those are worth looking at for idle loops (returns, which jump back
+   * to an address from RAM, aren't), and marking them ahead of time keeps the
+   * check for them out of the way of every other jump
+   */
+  private static final int LOOP_JUMP = 0b1000;
+
+  // The fields of each instruction in ROM, which computers running the same
+  // program share
+  private final int[] comp;
+  private final int[] dest;
+  private final int[] jump;
+  private final int[] value;
+  private final int programSize;
+  private final int programHash;
+
+  public final short[] ram = new short[ADDRESS_MASK + 1];
+  public int a;
+  public int d;
+  public int pc;
+
+  /**
+   * The number of instructions run since the last reset
+   */
+  public long cycles;
+
+  /**
+   * Whether the program has stopped, either by running off the end of ROM, by
+   * jumping to the instruction before the jump, which sets A to its own
+   * address (<code>(END) &#64;END 0;JMP</code>), or by getting into any other
+   * loop that never ends (see IdleLoops)
+   */
+  private boolean halted;
+
+  /**
+   * If not -1, running stops as soon as the PC gets here
+   */
+  private int breakpoint = -1;
+
+  /**
+   * The JIT tier, if turned on
+   */
+  private HackJit jit;
+
+  /**
+   * The profiler, if any
+   */
+  private Profiler profiler;
+
+  /**
+   * Finds the loops to skip through, or null to run every instruction
+   */
+  private IdleLoops idleLoops;
+
+  /**
+   * Sets up a computer with a program in its ROM
+   * @param program The machine code, one instruction per element
+   */
+  public HackComputer(int[] program) {
+    if (program.length > ADDRESS_MASK + 1) {
+      throw new IllegalArgumentException(String.format("The program is %d words long, which doesn't fit in ROM",
+          program.length));
+    }
+    comp = new int[ADDRESS_MASK + 1];
+    dest = new int[ADDRESS_MASK + 1];
+    jump = new int[ADDRESS_MASK + 1];
+    value = new int[ADDRESS_MASK + 1];
+    programSize = program.length;
+    programHash = Arrays.hashCode(program);
+    Arrays.fill(comp, program.length, comp.length, END);
+    for (int i = 0; i < program.length; i++) {
+      int instruction = program[i];
+      if ((instruction & 0x8000) == 0) {
+        comp[i] = A_INSTRUCTION;
+        value[i] = instruction;
+      } else {
+        comp[i] = instruction >> 6 & 0x7F;
+        dest[i] = instruction >> 3 & 0b111;
+        jump[i] = instruction & 0b111;
+        if (jump[i] != 0 && i > 0 && comp[i - 1] == A_INSTRUCTION && value[i - 1] < i) {
+          jump[i] |= LOOP_JUMP;
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes a computer that runs the same program as another one, sharing the
+   * decoded ROM, so that many computers can run one program without a copy
+   * of it each (see HackBatch). Its RAM is all zeros and its PC is 0
+   */
+  HackComputer(HackComputer program) {
+    comp = program.comp;
+    dest = program.dest;
+    jump = program.jump;
+    value = program.value;
+    programSize = program.programSize;
+    programHash = program.programHash;
+  }
+
+  /**
+   * Gets the number of instructions in ROM
+   */
+  public int getProgramSize() {
+    return programSize;
+  }
+
+  /**
+   * Gets a hash of the program, to tell programs apart by (see Snapshot)
+   */
+  int getProgramHash() {
+    return programHash;
+  }
+
+  /**
+   * Puts the CPU back at the start of the program. RAM is left as it is
+   */
+  public void reset() {
+    pc = 0;
+    a = 0;
+    d = 0;
+    cycles = 0;
+    halted = false;
+  }
+
+  /**
+   * Turns the JIT tier (see HackJit) on or off. It's only worth it for
+   * programs that run for at least a few hundred million instructions, since
+   * compiling takes a while
+   */
+  public void setJit(boolean on) {
+    jit = on ? new HackJit(this) : null;
+  }
+
+  HackJit getJit() {
+    return jit;
+  }
+
+  /**
+   * Turns skipping through idle loops (see IdleLoops) on or off. It doesn't
+   * change what a program does, or how many instructions it takes, but
+   * watching for loops makes the interpreter slower on the jumps of programs
+   * that never wait, so it's off unless turned on
+   */
+  public void setIdleLoops(boolean on) {
+    idleLoops = on ? new IdleLoops.Hack(this) : null;
+  }
+
+  public IdleLoops getIdleLoops() {
+    return idleLoops;
+  }
+
+  /**
+   * Skips ahead through the loop that starts at the PC, if it's an idle loop
+   * @param maxCycles The most instructions to skip
+   * @return The number of instructions skipped. If the loop never ends, the
+   *         computer is halted instead
+   */
+  long skipIdleLoop(long maxCycles) {
+    // A profiler has to see every instruction, so only halts are looked for
+    long skipped = idleLoops.fastForward(pc, profiler == null ? maxCycles : 0, breakpoint);
+    if (skipped == IdleLoops.HALT) {
+      halted = true;
+      return 0;
+    }
+    return skipped;
+  }
+
+  /**
+   * Sets a profiler to tell about every jump to a function or back from one.
+   * The JIT tier is left out while profiling
+   * @param profiler The profiler, or null for none
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+    if (profiler != null) {
+      profiler.arrive(pc, ram, cycles);
+    }
+  }
+
+  public boolean isHalted() {
+    return halted;
+  }
+
+  /**
+   * Makes running stop when the PC gets to some address
+   * @param address The ROM address, or -1 for none
+   */
+  public void setBreakpoint(int address) {
+    breakpoint = address;
+  }
+
+  /**
+   * Works out a comp field the way the ALU does, for the comp fields that
+   * aren't in the Hack assembly language
+   */
+  static int alu(int comp, int x, int y) {
+    if ((comp & 0b100000) != 0) x = 0;
+    if ((comp & 0b010000) != 0) x = ~x;
+    if ((comp & 0b001000) != 0) y = 0;
+    if ((comp & 0b000100) != 0) y = ~y;
+    int out = (comp & 0b000010) != 0 ? x + y : x & y;
+    if ((comp & 0b000001) != 0) out = ~out;
+    return out;
+  }
+
+  /**
+   * Runs the program until it halts, hits the breakpoint, or has run some
+   * number of instructions
+   * @param maxCycles The most instructions to run
+   * @return The number of instructions run
+   */
+  public long run(long maxCycles) {
+    halted = false;
+    if (jit != null && breakpoint == -1 && profiler == null) {
+      return jit.run(maxCycles);
+    }
+    return interpret(maxCycles, false);
+  }
+
+  /**
+   * Runs instructions one at a time, skipping through idle loops as it gets
+   * to them
+   * @param maxCycles The most instructions to run
+   * @param oneBlock Whether to stop after the first jump instruction, whether
+   *                 it jumps or not
+   * @return The number of instructions run
+   */
+  long interpret(long maxCycles, boolean oneBlock) {
+    final int[] comp = this.comp;
+    final int[] dest = this.dest;
+    final int[] jump = this.jump;
+    final int[] value = this.value;
+    final short[] ram = this.ram;
+    final int breakpoint = this.breakpoint;
+    final boolean[] watched = profiler == null ? null : profiler.watched;
+    final boolean countLines = profiler != null && profiler.countsLines();
+    final IdleLoops idleLoops = this.idleLoops;
+    int a = this.a;
+    int d = this.d;
+    int pc = this.pc;
+    long count = 0;
+
+    while (count < maxCycles) {
+      if (pc == breakpoint && count > 0) {
+        break;
+      }
+      int op = comp[pc];
+      if (countLines && op != END) {
+        profiler.countLine(pc);
+      }
+      if (op == A_INSTRUCTION) {
+        count++;
+        a = value[pc++];
+        continue;
+      }
+      if (op == END) {
+        halted = true;
+        break;
+      }
+      count++;
+
+      int out;
+      switch (op) {
+        case 0b0101010: out = 0; break;
+        case 0b0111111: out = 1; break;
+        case 0b0111010: out = -1; break;
+        case 0b0001100: out = d; break;
+        case 0b0110000: out = a; break;
+        case 0b1110000: out = ram[a & ADDRESS_MASK]; break;
+        case 0b0001101: out = ~d; break;
+        case 0b0110001: out = ~a; break;
+        case 0b1110001: out = ~ram[a & ADDRESS_MASK]; break;
+        case 0b0001111: out = -d; break;
+        case 0b0110011: out = -a; break;
+        case 0b1110011: out = -ram[a & ADDRESS_MASK]; break;
+        case 0b0011111: out = d + 1; break;
+        case 0b0110111: out = a + 1; break;
+        case 0b1110111: out = ram[a & ADDRESS_MASK] + 1; break;
+        case 0b0001110: out = d - 1; break;
+        case 0b0110010: out = a - 1; break;
+        case 0b1110010: out = ram[a & ADDRESS_MASK] - 1; break;
+        case 0b0000010: out = d + a; break;
+        case 0b1000010: out = d + ram[a & ADDRESS_MASK]; break;
+        case 0b0010011: out = d - a; break;
+        case 0b1010011: out = d - ram[a & ADDRESS_MASK]; break;
+        case 0b0000111: out = a - d; break;
+        case 0b1000111: out = ram[a & ADDRESS_MASK] - d; break;
+        case 0b0000000: out = d & a; break;
+        case 0b1000000: out = d & ram[a & ADDRESS_MASK]; break;
+        case 0b0010101: out = d | a; break;
+        case 0b1010101: out = d | ram[a & ADDRESS_MASK]; break;
+        default:
+          out = alu(op, d, (op & 0x40) != 0 ? ram[a & ADDRESS_MASK] : a);
+          break;
+      }
+      out = (short) out;
+
+      // The M write and the jump both use A from before this instruction
+      int oldA = a;
+      int destBits = dest[pc];
+      if (destBits != 0) {
+        if ((destBits & 0b001) != 0) ram[oldA & ADDRESS_MASK] = (short) out;
+        if ((destBits & 0b010) != 0) d = out;
+        if ((destBits & 0b100) != 0) a = out;
+      }
+      int jumpBits = jump[pc];
+      if (jumpBits != 0 && (out < 0 ? (jumpBits & 0b100) != 0
+          : out == 0 ? (jumpBits & 0b010) != 0 : (jumpBits & 0b001) != 0)) {
+        int target = oldA & ADDRESS_MASK;
+        if (target == pc - 1 && (jumpBits & 0b111) == 0b111 && comp[target] == A_INSTRUCTION) {
+          halted = true;
+          pc = target;
+          break;
+        }
+        pc = target;
+        if (watched != null && watched[target]) {
+          profiler.arrive(target, ram, cycles + count);
+        }
+        if (idleLoops != null && (jumpBits & LOOP_JUMP) != 0 && idleLoops.arrive(target)) {
+          this.a = a;
+          this.d = d;
+          this.pc = target;
+          count += skipIdleLoop(maxCycles - count);
+          a = this.a;
+          d = this.d;
+          if (halted) {
+            break;
+          }
+        }
+      } else {
+        pc++;
+      }
+      if (jumpBits != 0 && oneBlock) {
+        break;
+      }
+    }
+
+    this.a = a;
+    this.d = d;
+    this.pc = pc;
+    cycles += count;
+    return count;
+  }
+
+  /**
+   * Runs a single instruction
+   */
+  public void step() {
+    halted = false;
+    int breakpoint = this.breakpoint;
+    this.breakpoint = -1;
+    interpret(1, false);
+    this.breakpoint = breakpoint;
+  }
+
+  /**
+   * Gets what kind of instruction is at an address in ROM: -1 for an
+   * A-instruction, -2 for past the end of the program, or else the 7-bit comp
+   * field
+   */
+  int getComp(int address) {
+    return comp[address];
+  }
+
+  int getDest(int address) {
+    return dest[address];
+  }
+
+  int getJump(int address) {
+    return jump[address] & 0b111;
+  }
+
+  int getValue(int address) {
+    return value[address];
+  }
+}
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a Hack program (a <code>.asm</code> or <code>.hack</code> file) with no
+ * screen, and prints how long it took along with whatever parts of RAM were
+ * asked for.
+ *
+ * The program runs until it halts (see HackComputer), until it has run
+ * -cycles instructions, or with -until, until it gets to a label (e.g.
+ * Sys.halt for programs that use the Jack OS, which halts with a loop of its
+ * own). With -jit, the parts of the program that run the most are compiled
+ * (see HackJit), which pays off for programs that run for more than a second
+ * or so. With -idle, loops that only wait, like the ones in Sys.wait and
+ * Sys.halt, are skipped through (see IdleLoops), so a program that ends in
+ * Sys.halt halts.
+ *
+ * -restore starts the program from a snapshot instead of from the start, and
+ * -save writes a snapshot of where it stopped (see Snapshot). Running a
+ * program -until Main.main with -save, for one, gets the OS set up once for
+ * any number of runs with -restore.
+ *
+ * -profile and -flamegraph profile a program translated by VMTranslator (from
+ * its .asm file, which has the functions' labels) and print the functions it
+ * spent the most time in. -profile also writes a profile that VMTranslator
+ * -profile can read, and -flamegraph writes collapsed stacks for a flame graph
+ * (see Profiler). The JIT is left out while profiling. If VMTranslator -map
+ * wrote a source map next to the .asm file, the lines of code that took the
+ * most time are printed too (lines of Jack code, for VM files compiled with
+ * JackCompiler -map).
+ */
+public class HackEmulator {
+  private static void printIncorrectUsage() {
+    System.out.println("Usage:\n\n\tHackEmulator [-cycles n] [-until label] [-ram from[-to]]... [-jit] [-idle] [-restore file] [-save file] [-profile file] [-flamegraph file] program\n\nWhere program is either a .asm or a .hack file\n");
+  }
+
+  public static void main(String[] args) {
+    String source = null;
+    long maxCycles = Long.MAX_VALUE;
+    String until = null;
+    boolean jit = false;
+    boolean idleLoops = false;
+    List<int[]> ramRanges = new ArrayList<int[]>();
+    String profileFile = null;
+    String flameGraphFile = null;
+    String restoreFile = null;
+    String saveFile = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-cycles") && i + 1 < args.length) {
+        maxCycles = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-until") && i + 1 < args.length) {
+        until = args[++i];
+      } else if (args[i].equals("-profile") && i + 1 < args.length) {
+        profileFile = args[++i];
+      } else if (args[i].equals("-flamegraph") && i + 1 < args.length) {
+        flameGraphFile = args[++i];
+      } else if (args[i].equals("-restore") && i + 1 < args.length) {
+        restoreFile = args[++i];
+      } else if (args[i].equals("-save") && i + 1 < args.length) {
+        saveFile = args[++i];
+      } else if (args[i].equals("-ram") && i + 1 < args.length) {
+        String[] range = args[++i].split("-");
+        int from = Integer.parseInt(range[0]);
+        ramRanges.add(new int[] { from, range.length > 1 ? Integer.parseInt(range[1]) : from });
+      } else if (args[i].equals("-jit")) {
+        jit = true;
+      } else if (args[i].equals("-idle")) {
+        idleLoops = true;
+      } else {
+        source = args[i];
+      }
+    }
+    if (source == null) {
+      printIncorrectUsage();
+      return;
+    }
+
+    int[] program;
+    Assembler assembler = null;
+    try {
+      Path file = Paths.get(source);
+      if (source.endsWith(".hack")) {
+        program = Assembler.readHack(file);
+      } else {
+        assembler = new Assembler(file);
+        program = assembler.getProgram();
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error in loading program");
+      e.printStackTrace();
+      return;
+    }
+
+    HackComputer computer = new HackComputer(program);
+    computer.setJit(jit);
+    computer.setIdleLoops(idleLoops);
+    if (restoreFile != null) {
+      try {
+        Snapshot.restore(computer, Paths.get(restoreFile));
+      } catch (IOException e) {
+        System.out.println("Error in restoring the snapshot: " + e.getMessage());
+        return;
+      }
+    }
+    if (until != null) {
+      Integer address = assembler == null ? null : assembler.getLabels().get(until);
+      if (address == null) {
+        System.out.println(String.format("No label \"%s\" in the program", until));
+        return;
+      }
+      computer.setBreakpoint(address);
+    }
+
+    Profiler profiler = null;
+    if (profileFile != null || flameGraphFile != null) {
+      if (assembler == null) {
+        System.out.println("Profiling needs the .asm file, for the labels of the functions");
+        return;
+      }
+      profiler = Profiler.forHack(assembler.getLabels());
+      try {
+        String[] sourceLines = Profiler.hackSourceLines(Paths.get(source));
+        if (sourceLines != null) {
+          profiler.setSourceLines(sourceLines);
+        }
+      } catch (IOException e) {
+        System.out.println("Error in reading the source maps");
+        e.printStackTrace();
+        return;
+      }
+      computer.setProfiler(profiler);
+    }
+
+    long start = System.nanoTime();
+    long ran = computer.run(maxCycles);
+    long time = System.nanoTime() - start;
+
+    System.out.println(String.format("%d instructions in ROM, ran %d in %d ms (%.0f million per second)%s",
+        computer.getProgramSize(), ran, time / 1000000, ran * 1000.0 / Math.max(time, 1),
+        computer.isHalted() ? ", halted" : ""));
+    if (saveFile != null) {
+      try {
+        Snapshot.save(computer, Paths.get(saveFile));
+      } catch (IOException e) {
+        System.out.println("Error in saving the snapshot");
+        e.printStackTrace();
+      }
+    }
+    if (computer.getJit() != null) {
+      System.out.println(String.format("%d blocks compiled", computer.getJit().getBlockCount()));
+    }
+    if (computer.getIdleLoops() != null && computer.getIdleLoops().getFastForwards() > 0) {
+      System.out.println(String.format("%d idle loops skipped through, %d instructions skipped",
+          computer.getIdleLoops().getFastForwards(), computer.getIdleLoops().getSkipped()));
+    }
+    if (profiler != null) {
+      profiler.stop(computer.cycles);
+      profiler.printReport(System.out, 20);
+      try {
+        if (profileFile != null) {
+          profiler.writeProfile(Paths.get(profileFile));
+        }
+        if (flameGraphFile != null) {
+          profiler.writeCollapsedStacks(Paths.get(flameGraphFile));
+        }
+      } catch (IOException e) {
+        System.out.println("Error in writing the profile");
+        e.printStackTrace();
+      }
+    }
+    for (int[] range : ramRanges) {
+      StringBuilder values = new StringBuilder();
+      for (int address = range[0]; address <= range[1]; address++) {
+        values.append(' ').append(computer.ram[address]);
+      }
+      System.out.println(String.format("RAM[%d-%d]:%s", range[0], range[1], values));
+    }
+  }
+}
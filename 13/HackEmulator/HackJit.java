@@ -0,0 +1,484 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Makes a HackComputer run faster by turning the parts of its program that
+ * run the most into Java code, which the JVM then compiles to machine code.
+ * <p>
+ * The program is split up into basic blocks: runs of instructions that start
+ * wherever a jump lands and end with a jump instruction. Blocks are run by
+ * the interpreter at first, which counts how many times each one starts. Once
+ * a block has started HOT_COUNT times, it gets compiled, along with the
+ * blocks right after it (where its jump goes, if that's known, and where it
+ * falls through to). Compiling is done with <code>javax.tools</code> on a
+ * thread of its own, a batch of blocks at a time, so the program goes on in
+ * the interpreter in the meantime. Blocks are compiled into a class with a
+ * method per block, and a loop that goes from block to block for as long as
+ * they are in the class, which is how the blocks are chained.
+ * <p>
+ * Since the program is in ROM, it can't change, so compiled code never has to
+ * be thrown away. Compiled code runs exactly the same instructions as the
+ * interpreter would, and stops short of running more instructions than it was
+ * asked to, so the results and cycle counts are always the same as without
+ * it.
+ */
+public class HackJit {
+  /**
+   * What each class of compiled blocks implements
+   */
+  public interface Code {
+    /**
+     * Runs compiled blocks, starting at the computer's PC, for as long as the
+     * next block is in this class and the longest block in it would still fit
+     * in what's left to run
+     * @return The number of instructions run, which may be 0
+     */
+    long run(HackComputer computer, long maxCycles);
+  }
+
+  /**
+   * The number of times a block has to start before it gets compiled
+   */
+  private static final int HOT_COUNT = 1000;
+
+  /**
+   * The most blocks in a class. Past that, blocks go in a new class. This
+   * keeps each class's loop small enough for the JVM to compile it (it won't
+   * compile methods over 8000 bytes of bytecode)
+   */
+  private static final int MAX_CLASS = 500;
+
+  /**
+   * Hot blocks are sent off to be compiled once there are MIN_BATCH of them,
+   * or once MAX_WAIT more blocks have been interpreted since the first one,
+   * since compiling takes a while however few blocks there are
+   */
+  private static final int MIN_BATCH = 50;
+  private static final int MAX_WAIT = 1000000;
+
+  /**
+   * The most instructions in a block. Longer runs of instructions with no
+   * jumps are split up
+   */
+  private static final int MAX_BLOCK = 100;
+
+  private static final String MASK = Integer.toString(HackComputer.ADDRESS_MASK);
+
+  /**
+   * Java expressions for the comp fields of the Hack assembly language
+   */
+  private static final Map<Integer, String> COMPS = new HashMap<Integer, String>();
+
+  static {
+    String m = "ram[a & " + MASK + "]";
+    COMPS.put(0b0101010, "0");
+    COMPS.put(0b0111111, "1");
+    COMPS.put(0b0111010, "-1");
+    COMPS.put(0b0001100, "d");
+    COMPS.put(0b0110000, "a");
+    COMPS.put(0b1110000, m);
+    COMPS.put(0b0001101, "~d");
+    COMPS.put(0b0110001, "~a");
+    COMPS.put(0b1110001, "~" + m);
+    COMPS.put(0b0001111, "-d");
+    COMPS.put(0b0110011, "-a");
+    COMPS.put(0b1110011, "-" + m);
+    COMPS.put(0b0011111, "d + 1");
+    COMPS.put(0b0110111, "a + 1");
+    COMPS.put(0b1110111, m + " + 1");
+    COMPS.put(0b0001110, "d - 1");
+    COMPS.put(0b0110010, "a - 1");
+    COMPS.put(0b1110010, m + " - 1");
+    COMPS.put(0b0000010, "d + a");
+    COMPS.put(0b1000010, "d + " + m);
+    COMPS.put(0b0010011, "d - a");
+    COMPS.put(0b1010011, "d - " + m);
+    COMPS.put(0b0000111, "a - d");
+    COMPS.put(0b1000111, m + " - d");
+    COMPS.put(0b0000000, "d & a");
+    COMPS.put(0b1000000, "d & " + m);
+    COMPS.put(0b0010101, "d | a");
+    COMPS.put(0b1010101, "d | " + m);
+  }
+
+  /**
+   * Java conditions for the jump fields, with the ALU output in
+   * <code>out</code>
+   */
+  private static final String[] JUMPS = { "false", "out > 0", "out == 0", "out >= 0", "out < 0", "out != 0",
+      "out <= 0", "true" };
+
+  private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+  private static final AtomicInteger classCount = new AtomicInteger();
+
+  private HackComputer computer;
+
+  /**
+   * The class that each block is in, by the block's address. A new array is
+   * made whenever a class is done, so this can be read from the program's
+   * thread while the compiler's thread is at work
+   */
+  private volatile Code[] compiled = new Code[HackComputer.ADDRESS_MASK + 1];
+
+  /**
+   * The number of times each block has started in the interpreter
+   */
+  private int[] starts = new int[HackComputer.ADDRESS_MASK + 1];
+
+  /**
+   * Blocks that are hot but haven't been sent off to be compiled yet
+   */
+  private ArrayDeque<Integer> hot = new ArrayDeque<Integer>();
+
+  /**
+   * Blocks that have been sent off to be compiled
+   */
+  private boolean[] queued = new boolean[HackComputer.ADDRESS_MASK + 1];
+
+  /**
+   * The blocks in the newest class. When there are a lot more blocks to
+   * compile, they go in a new class along with these, so that the program can
+   * go from any one of them to any other without leaving the class
+   */
+  private List<Integer> newest = new ArrayList<Integer>();
+
+  private int waited = 0;
+  private ExecutorService compilerThread;
+  private Future<?> compiling;
+  private volatile boolean failed = COMPILER == null;
+  private volatile int blockCount = 0;
+
+  HackJit(HackComputer computer) {
+    this.computer = computer;
+  }
+
+  /**
+   * Gets the number of blocks that have been compiled so far
+   */
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+   * Runs the computer's program, in compiled code wherever there is some
+   * @see HackComputer#run(long)
+   */
+  long run(long maxCycles) {
+    long count = 0;
+    long compiledCount = 0;
+    IdleLoops idleLoops = computer.getIdleLoops();
+    while (count < maxCycles) {
+      // Compiled code never goes to the start of an idle loop (see
+      // blockLength()), so they're always found here
+      if (idleLoops != null && idleLoops.isHead(computer.pc)) {
+        long skipped = computer.skipIdleLoop(maxCycles - count);
+        count += skipped;
+        compiledCount += skipped;
+        if (computer.isHalted()) {
+          break;
+        }
+      }
+      Code code = compiled[computer.pc];
+      if (code != null) {
+        long ran = code.run(computer, maxCycles - count);
+        count += ran;
+        compiledCount += ran;
+        if (ran > 0) {
+          continue;
+        }
+      }
+
+      int start = computer.pc;
+      count += computer.interpret(maxCycles - count, true);
+      if (computer.isHalted()) {
+        break;
+      }
+      if (++starts[start] == HOT_COUNT && !failed) {
+        hot.add(start);
+      }
+      if (!hot.isEmpty() && (hot.size() >= MIN_BATCH || ++waited >= MAX_WAIT)
+          && (compiling == null || compiling.isDone())) {
+        waited = 0;
+        compileHotBlocks();
+      }
+    }
+    // The interpreter counts its own cycles
+    computer.cycles += compiledCount;
+    return count;
+  }
+
+  /**
+   * Sends the hot blocks, and the blocks they lead to, off to be compiled
+   */
+  private void compileHotBlocks() {
+    Set<Integer> batch = new LinkedHashSet<Integer>();
+    ArrayDeque<Integer> next = new ArrayDeque<Integer>(hot);
+    hot.clear();
+    while (!next.isEmpty() && batch.size() < MAX_CLASS) {
+      int start = next.poll();
+      if (queued[start] || blockLength(start) == 0) {
+        continue;
+      }
+      queued[start] = true;
+      batch.add(start);
+      if (starts[start] < HOT_COUNT) {
+        continue;
+      }
+      for (int successor : successors(start)) {
+        if (!queued[successor]) {
+          next.add(successor);
+        }
+      }
+    }
+    // What didn't fit goes in the next batch
+    for (int start : next) {
+      if (starts[start] >= HOT_COUNT && !queued[start]) {
+        hot.add(start);
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    // Compiling the newest class again is only worth it if it would at least
+    // double in size, or else every block would get compiled over and over
+    if (newest.size() + batch.size() > MAX_CLASS || batch.size() < newest.size()) {
+      newest = new ArrayList<Integer>();
+    }
+    newest.addAll(batch);
+
+    if (compilerThread == null) {
+      compilerThread = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "HackJit");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    List<Integer> blocks = new ArrayList<Integer>(newest);
+    int added = batch.size();
+    compiling = compilerThread.submit(() -> {
+      Code code = compile(blocks);
+      if (code == null) {
+        failed = true;
+        return;
+      }
+      Code[] updated = compiled.clone();
+      for (int start : blocks) {
+        updated[start] = code;
+      }
+      blockCount += added;
+      compiled = updated;
+    });
+  }
+
+  /**
+   * Gets the number of instructions in the block that starts at an address.
+   * A block that would halt the program (see HackComputer) leaves out the jump
+   * that does it, and one that runs off the end of the program or starts an
+   * idle loop (see IdleLoops) isn't compiled at all (its length is 0), so that
+   * the interpreter can take care of those
+   */
+  private int blockLength(int start) {
+    IdleLoops idleLoops = computer.getIdleLoops();
+    if (idleLoops != null && idleLoops.isHead(start)) {
+      return 0;
+    }
+    for (int address = start; address < start + MAX_BLOCK && address <= HackComputer.ADDRESS_MASK; address++) {
+      int comp = computer.getComp(address);
+      if (comp == HackComputer.END) {
+        return 0;
+      }
+      if (comp == HackComputer.A_INSTRUCTION || computer.getJump(address) == 0) {
+        continue;
+      }
+      // A halt is an A-instruction with its own address and then 0;JMP. Only
+      // the A-instruction can be in the same block as the jump, since a jump
+      // to the jump would leave A set to something else
+      if (computer.getJump(address) == 0b111 && address > 0
+          && computer.getComp(address - 1) == HackComputer.A_INSTRUCTION
+          && (address == start || computer.getValue(address - 1) == address - 1)) {
+        return address - start;
+      }
+      return address - start + 1;
+    }
+    return Math.min(MAX_BLOCK, HackComputer.ADDRESS_MASK + 1 - start);
+  }
+
+  /**
+   * Gets where a block can go next that is known ahead of time: where it
+   * falls through to, and where it jumps if A is set by an A-instruction
+   * right before the jump
+   */
+  private List<Integer> successors(int start) {
+    List<Integer> successors = new ArrayList<Integer>();
+    int end = start + blockLength(start) - 1;
+    if (end + 1 <= HackComputer.ADDRESS_MASK) {
+      successors.add(end + 1);
+    }
+    if (end > start && computer.getComp(end) != HackComputer.A_INSTRUCTION && computer.getJump(end) != 0
+        && computer.getComp(end - 1) == HackComputer.A_INSTRUCTION) {
+      successors.add(computer.getValue(end - 1) & HackComputer.ADDRESS_MASK);
+    }
+    return successors;
+  }
+
+  /**
+   * Generates and compiles the Java code for a batch of blocks
+   * @return An instance of the compiled class, or <code>null</code> if it
+   *         couldn't be compiled
+   */
+  private Code compile(List<Integer> blocks) {
+    String className = "HackJitBlocks" + classCount.getAndIncrement();
+    StringBuilder source = new StringBuilder();
+    source.append("public final class ").append(className).append(" implements HackJit.Code {\n");
+    source.append("  private static final short[] BLOCKS = new short[").append(HackComputer.ADDRESS_MASK + 1)
+        .append("];\n\n  static {\n");
+    for (int i = 0; i < blocks.size(); i++) {
+      source.append("    BLOCKS[").append(blocks.get(i)).append("] = ").append(i + 1).append(";\n");
+    }
+    source.append("  }\n\n");
+    source.append("  private short[] ram;\n  private int a;\n  private int d;\n  private long count;\n\n");
+    // Blocks are only run while the longest one would still fit, so that
+    // there's no need to check before each one
+    int longest = blocks.stream().mapToInt(this::blockLength).max().getAsInt();
+    source.append("  public long run(HackComputer computer, long maxCycles) {\n");
+    source.append("    ram = computer.ram;\n    a = computer.a;\n    d = computer.d;\n    count = 0;\n");
+    source.append("    int pc = computer.pc;\n    long limit = maxCycles - ").append(longest).append(";\n");
+    source.append("    loop:\n    while (count <= limit) {\n      switch (BLOCKS[pc]) {\n");
+    for (int i = 0; i < blocks.size(); i++) {
+      source.append("        case ").append(i + 1).append(": pc = block").append(blocks.get(i)).append("(); continue;\n");
+    }
+    source.append("        default: break loop;\n      }\n    }\n");
+    source.append("    computer.a = a;\n    computer.d = d;\n    computer.pc = pc;\n    return count;\n  }\n");
+    for (int start : blocks) {
+      writeBlock(source, start);
+    }
+    source.append("}\n");
+
+    Map<String, byte[]> classes = new HashMap<String, byte[]>();
+    JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+        JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+        COMPILER.getStandardFileManager(null, null, null)) {
+      @Override
+      public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+          FileObject sibling) {
+        return new SimpleJavaFileObject(URI.create("bytes:///" + name + ".class"), kind) {
+          @Override
+          public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+              @Override
+              public void close() {
+                classes.put(name, toByteArray());
+              }
+            };
+          }
+        };
+      }
+    };
+    StringWriter errors = new StringWriter();
+    boolean ok = COMPILER.getTask(errors, files, null,
+        List.of("-classpath", System.getProperty("java.class.path"), "-g:none"), null, List.of(file)).call();
+    if (!ok) {
+      System.err.println("HackJit: couldn't compile a batch of blocks\n" + errors);
+      return null;
+    }
+
+    ClassLoader loader = new ClassLoader(HackJit.class.getClassLoader()) {
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null) {
+          throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+    try {
+      return (Code) loader.loadClass(className).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Gets a Java expression for any comp field, worked out the way the ALU does
+   * it (see HackComputer)
+   */
+  private static String aluExpression(int comp) {
+    String x = "d";
+    String y = (comp & 0x40) != 0 ? "ram[a & " + MASK + "]" : "a";
+    if ((comp & 0b100000) != 0) x = "0";
+    if ((comp & 0b010000) != 0) x = "~" + x;
+    if ((comp & 0b001000) != 0) y = "0";
+    if ((comp & 0b000100) != 0) y = "~" + y;
+    String out = (comp & 0b000010) != 0 ? x + " + " + y : x + " & " + y;
+    return (comp & 0b000001) != 0 ? "~(" + out + ")" : out;
+  }
+
+  /**
+   * Writes the method for a block, which runs it and returns where it goes
+   * next
+   */
+  private void writeBlock(StringBuilder source, int start) {
+    int length = blockLength(start);
+    source.append("\n  private int block").append(start).append("() {\n");
+    source.append("    final short[] ram = this.ram;\n    int a = this.a;\n    int d = this.d;\n    int out;\n");
+    String next = Integer.toString(start + length);
+    for (int address = start; address < start + length; address++) {
+      int comp = computer.getComp(address);
+      if (comp == HackComputer.A_INSTRUCTION) {
+        source.append("    a = ").append(computer.getValue(address)).append(";\n");
+        continue;
+      }
+      int dest = computer.getDest(address);
+      int jump = computer.getJump(address);
+      String expression = COMPS.getOrDefault(comp, aluExpression(comp));
+      source.append("    out = (short) (").append(expression).append(");\n");
+      // The jump goes where A was before this instruction
+      if (jump != 0) {
+        next = "jump ? target : " + (address + 1);
+        source.append("    final int target = a & ").append(MASK).append(";\n");
+        source.append("    final boolean jump = ").append(JUMPS[jump]).append(";\n");
+      }
+      if ((dest & 0b001) != 0) {
+        source.append("    ram[a & ").append(MASK).append("] = (short) out;\n");
+      }
+      if ((dest & 0b010) != 0) {
+        source.append("    d = out;\n");
+      }
+      if ((dest & 0b100) != 0) {
+        source.append("    a = out;\n");
+      }
+    }
+    source.append("    this.a = a;\n    this.d = d;\n    count += ").append(length).append(";\n    return ")
+        .append(next).append(";\n  }\n");
+  }
+}
@@ -0,0 +1,573 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds loops that a program spins in without getting anything done, like the
+ * ones in Sys.wait, Keyboard.readChar and Sys.halt, and skips ahead through
+ * them, for HackComputer (IdleLoops.Hack) or VMComputer (IdleLoops.VM).
+ * <p>
+ * Whenever the computer jumps back to an address, that might be the start of
+ * a loop. Every so often (the 2nd, 4th, 8th... time it gets to the same
+ * address), one time around the loop is worked out on the side, without
+ * running it. Every value is worked out as a function of the number of times
+ * around, k, of the form <code>c0 + c1 * k</code>:
+ * <ul>
+ * <li>The first time, the state of the computer is taken as it is, which
+ * shows how much each register and word of RAM changes by in one time around
+ * (its step, c1).</li>
+ * <li>The second time, every value that changes starts off as
+ * <code>now + step * k</code>. If every value comes out as
+ * <code>now + step * (k + 1)</code> at the end, and every address read or
+ * written, and every jump taken, is the same for all k, then time around k
+ * leaves the computer the way time around k + 1 starts, so the loop can be
+ * skipped through as many times as the jumps keep going the same way. Those
+ * are worked out from the values that the jumps test.</li>
+ * </ul>
+ * Anything else, like a value that is ANDed with a changing value, a changing
+ * address, or a call, means the loop isn't one that can be skipped. A loop
+ * that has failed like that a few times is never looked at again.
+ * <p>
+ * A loop where nothing changes at all (like <code>while (true) {}</code>)
+ * never ends. If it doesn't read the keyboard, nothing can ever change that,
+ * so the program has halted. If it does, it is waiting for a key, which can
+ * only be pressed once running stops, so all the time left to run is skipped.
+ * <p>
+ * Skipping through a loop leaves the computer exactly the way running it
+ * would have, with the same count of instructions or commands run. Loops that
+ * go past the breakpoint are left alone.
+ */
+public abstract class IdleLoops {
+  /**
+   * What fastForward() returns for a loop that never ends
+   */
+  static final long HALT = -1;
+
+  /**
+   * The most instructions or commands that one time around a loop can take
+   */
+  private static final int MAX_STEPS = 2000;
+
+  /**
+   * The number of times a loop can turn out not to be idle before it's given
+   * up on
+   */
+  private static final int MAX_FAILURES = 4;
+
+  /**
+   * What ends the working out of a loop that can't be skipped
+   */
+  private static class NotIdle extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    NotIdle() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final NotIdle NOT_IDLE = new NotIdle();
+
+  /**
+   * The number of times the computer has jumped back to each address, since
+   * the loop there was last skipped through
+   */
+  private final int[] arrivals;
+
+  /**
+   * The addresses that loops have been skipped from, which are worth looking
+   * at every time
+   */
+  private final boolean[] heads;
+
+  /**
+   * The number of times the loop at each address has turned out not to be
+   * idle
+   */
+  private final byte[] failures;
+
+  // One time around the loop: the values written (by register or address),
+  // and the step of each value that changes
+  private Map<Integer, Integer> written = new HashMap<Integer, Integer>();
+  private Map<Integer, Integer> steps = new HashMap<Integer, Integer>();
+  private boolean readsKeyboard;
+
+  /**
+   * How many times around the jumps go the same way
+   */
+  private long limit;
+
+  private long fastForwards = 0;
+  private long skipped = 0;
+
+  IdleLoops(int addressCount) {
+    arrivals = new int[addressCount];
+    heads = new boolean[addressCount];
+    failures = new byte[addressCount];
+  }
+
+  /**
+   * Tells the finder that the computer has jumped back to an address
+   * @return Whether to try fastForward() from there
+   */
+  boolean arrive(int address) {
+    if (failures[address] == MAX_FAILURES) {
+      return false;
+    }
+    int count = ++arrivals[address];
+    return heads[address] || (count & count - 1) == 0 && count > 1;
+  }
+
+  /**
+   * Whether a loop that starts at an address has been skipped through before
+   */
+  boolean isHead(int address) {
+    return address < heads.length && heads[address];
+  }
+
+  /**
+   * Skips ahead through the loop that starts where the computer is, if it is
+   * an idle loop
+   * @param head Where the loop starts, which is where the computer is
+   * @param maxSteps The most instructions or commands to skip
+   * @param breakpoint Where the computer has to stop, or -1
+   * @return The number of instructions or commands skipped, which may be 0,
+   *         or HALT if the loop never ends
+   */
+  long fastForward(int head, long maxSteps, int breakpoint) {
+    try {
+      // Once around, to find the steps
+      steps.clear();
+      written.clear();
+      readsKeyboard = false;
+      int length = trace(head, breakpoint);
+      for (Map.Entry<Integer, Integer> value : written.entrySet()) {
+        int step = (short) (start(value.getValue()) - current(value.getKey()));
+        if (step != 0) {
+          steps.put(value.getKey(), step);
+        }
+      }
+
+      long times;
+      if (steps.isEmpty()) {
+        if (!readsKeyboard) {
+          heads[head] = true;
+          fastForwards++;
+          return HALT;
+        }
+        times = maxSteps / length;
+      } else {
+        // Once around for any k, to check the steps and find the limit
+        written.clear();
+        limit = Long.MAX_VALUE;
+        if (trace(head, breakpoint) != length) {
+          throw NOT_IDLE;
+        }
+        for (Map.Entry<Integer, Integer> value : written.entrySet()) {
+          int step = steps.getOrDefault(value.getKey(), 0);
+          if (value.getValue() != affine(current(value.getKey()) + step, step)) {
+            throw NOT_IDLE;
+          }
+        }
+        times = Math.min(limit, maxSteps / length);
+        for (Map.Entry<Integer, Integer> step : steps.entrySet()) {
+          set(step.getKey(), (short) (current(step.getKey()) + times * step.getValue()));
+        }
+      }
+
+      heads[head] = true;
+      arrivals[head] = 0;
+      if (times > 0) {
+        fastForwards++;
+        skipped += times * length;
+      }
+      return times * length;
+    } catch (NotIdle e) {
+      heads[head] = false;
+      failures[head]++;
+      return 0;
+    }
+  }
+
+  /**
+   * Works out one time around the loop that starts at an address, with
+   * read() and write(), making sure it doesn't run into the breakpoint
+   * @return The number of instructions or commands it takes
+   * @throws NotIdle If it isn't a loop that can be skipped
+   */
+  abstract int trace(int head, int breakpoint);
+
+  /**
+   * Gets the value of a register or word of RAM (by its address)
+   */
+  abstract int current(int location);
+
+  /**
+   * Sets the value of a register or word of RAM
+   */
+  abstract void set(int location, int value);
+
+  /**
+   * Gets the number of loops skipped through (or found to never end)
+   */
+  public long getFastForwards() {
+    return fastForwards;
+  }
+
+  /**
+   * Gets the number of instructions or commands skipped
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  // Values of the form c0 + c1 * k are kept in an int, with c0 in the low 16
+  // bits and c1 in the high 16 bits, both wrapping around like Hack words do
+
+  static int affine(int start, int step) {
+    return step << 16 | start & 0xFFFF;
+  }
+
+  static int constant(int value) {
+    return affine(value, 0);
+  }
+
+  /**
+   * The value when k is 0
+   */
+  static int start(int value) {
+    return (short) value;
+  }
+
+  /**
+   * How much the value changes by each time around
+   */
+  static int step(int value) {
+    return value >> 16;
+  }
+
+  static int add(int x, int y) {
+    return affine(start(x) + start(y), step(x) + step(y));
+  }
+
+  static int negate(int x) {
+    return affine(-start(x), -step(x));
+  }
+
+  /**
+   * ~x is -x - 1, so it's still of the form c0 + c1 * k
+   */
+  static int not(int x) {
+    return affine(~start(x), -step(x));
+  }
+
+  /**
+   * Gets a value that has to be the same every time around, like an address
+   */
+  static int fixed(int x) {
+    if (step(x) != 0) {
+      throw NOT_IDLE;
+    }
+    return start(x);
+  }
+
+  int read(int location) {
+    Integer value = written.get(location);
+    if (value != null) {
+      return value;
+    }
+    if (location == HackComputer.KBD) {
+      readsKeyboard = true;
+    }
+    return affine(current(location), steps.getOrDefault(location, 0));
+  }
+
+  void write(int location, int value) {
+    written.put(location, value);
+  }
+
+  /**
+   * Works out which way a jump goes, and how many times around it keeps going
+   * that way
+   * @param value The value it tests
+   * @param jump What it tests for, as the jump bits of a Hack instruction
+   *             (less than 0, 0, and more than 0)
+   * @return Whether it jumps when k is 0
+   */
+  boolean jumps(int value, int jump) {
+    boolean jumps = tests(start(value), jump);
+    int step = step(value);
+    if (step == 0 || jump == 0b111) {
+      return jumps;
+    }
+    // The values past which the value tests differently, and the first one
+    // that wraps around
+    int[] thresholds = step > 0 ? new int[] { 0, 1, 32768 } : new int[] { 0, -1, -32769 };
+    for (int i = 0; i < thresholds.length; i++) {
+      // The first k for which the value gets to the threshold
+      long distance = (long) thresholds[i] - start(value);
+      long k = step > 0 ? -Math.floorDiv(-distance, step) : -Math.floorDiv(distance, -step);
+      if (k <= 0) {
+        continue;
+      }
+      if (i == thresholds.length - 1 || tests(start(value) + (int) (k * step), jump) != jumps) {
+        limit = Math.min(limit, k);
+        break;
+      }
+    }
+    return jumps;
+  }
+
+  private static boolean tests(int value, int jump) {
+    return (value < 0 ? jump & 0b100 : value == 0 ? jump & 0b010 : jump & 0b001) != 0;
+  }
+
+  /**
+   * Finds and skips idle loops in a HackComputer. The registers are kept as
+   * locations -1 (A) and -2 (D)
+   */
+  static class Hack extends IdleLoops {
+    private static final int A = -1;
+    private static final int D = -2;
+
+    private final HackComputer computer;
+
+    Hack(HackComputer computer) {
+      // Only jumps back inside the program are looked at
+      super(computer.getProgramSize() + 1);
+      this.computer = computer;
+    }
+
+    @Override
+    int trace(int head, int breakpoint) {
+      int a = read(A);
+      int d = read(D);
+      int pc = head;
+      int count = 0;
+      do {
+        if (count++ == MAX_STEPS || pc == breakpoint || pc > HackComputer.ADDRESS_MASK) {
+          throw NOT_IDLE;
+        }
+        int comp = computer.getComp(pc);
+        if (comp == HackComputer.A_INSTRUCTION) {
+          a = constant(computer.getValue(pc++));
+          continue;
+        }
+        if (comp == HackComputer.END) {
+          throw NOT_IDLE;
+        }
+
+        int m = 0;
+        if ((comp & 0x40) != 0) {
+          m = read(fixed(a) & HackComputer.ADDRESS_MASK);
+        }
+        int y = (comp & 0x40) != 0 ? m : a;
+        int out;
+        switch (comp & 0x3F) {
+          case 0b101010: out = constant(0); break;
+          case 0b111111: out = constant(1); break;
+          case 0b111010: out = constant(-1); break;
+          case 0b001100: out = d; break;
+          case 0b110000: out = y; break;
+          case 0b001101: out = not(d); break;
+          case 0b110001: out = not(y); break;
+          case 0b001111: out = negate(d); break;
+          case 0b110011: out = negate(y); break;
+          case 0b011111: out = add(d, constant(1)); break;
+          case 0b110111: out = add(y, constant(1)); break;
+          case 0b001110: out = add(d, constant(-1)); break;
+          case 0b110010: out = add(y, constant(-1)); break;
+          case 0b000010: out = add(d, y); break;
+          case 0b010011: out = add(d, negate(y)); break;
+          case 0b000111: out = add(y, negate(d)); break;
+          default:
+            // Anything else, like D&A, only if nothing in it changes
+            out = constant(HackComputer.alu(comp, fixed(d), fixed(y)));
+            break;
+        }
+
+        int oldA = a;
+        int dest = computer.getDest(pc);
+        if ((dest & 0b001) != 0) write(fixed(oldA) & HackComputer.ADDRESS_MASK, out);
+        if ((dest & 0b010) != 0) d = out;
+        if ((dest & 0b100) != 0) a = out;
+        int jump = computer.getJump(pc);
+        if (jump != 0 && jumps(out, jump)) {
+          int target = fixed(oldA) & HackComputer.ADDRESS_MASK;
+          if (target == pc - 1 && jump == 0b111 && computer.getComp(target) == HackComputer.A_INSTRUCTION) {
+            throw NOT_IDLE; // The computer halts on this itself
+          }
+          pc = target;
+        } else {
+          pc++;
+        }
+      } while (pc != head);
+      write(A, a);
+      write(D, d);
+      return count;
+    }
+
+    @Override
+    int current(int location) {
+      return location == A ? computer.a : location == D ? computer.d : computer.ram[location];
+    }
+
+    @Override
+    void set(int location, int value) {
+      if (location == A) {
+        computer.a = value;
+      } else if (location == D) {
+        computer.d = value;
+      } else {
+        computer.ram[location] = (short) value;
+      }
+    }
+  }
+
+  /**
+   * Finds and skips idle loops in a VMComputer. Calls and returns are never
+   * part of an idle loop
+   */
+  static class VM extends IdleLoops {
+    private static final int SP = 0;
+
+    private final VMComputer computer;
+
+    VM(VMComputer computer) {
+      super(computer.getProgramSize() + 1);
+      this.computer = computer;
+    }
+
+    /**
+     * Gets the address of the variable that a command uses
+     */
+    private int address(int pc) {
+      int segment = computer.getSegment(pc);
+      int index = computer.getArgument(pc);
+      return segment == 0 ? index : fixed(add(read(segment), constant(index))) & HackComputer.ADDRESS_MASK;
+    }
+
+    @Override
+    int trace(int head, int breakpoint) {
+      int pc = head;
+      int count = 0;
+      do {
+        if (count++ == MAX_STEPS || pc == breakpoint || pc >= computer.getProgramSize()) {
+          throw NOT_IDLE;
+        }
+        int sp = fixed(read(SP));
+        if (sp < 3) {
+          throw NOT_IDLE;
+        }
+        int op = computer.getOp(pc);
+        int next = pc + 1;
+        switch (op) {
+          case VMComputer.PUSH_CONSTANT:
+            write(sp, constant(computer.getArgument(pc)));
+            write(SP, constant(sp + 1));
+            break;
+          case VMComputer.PUSH_FIXED:
+          case VMComputer.PUSH_SEGMENT:
+            write(sp, read(address(pc)));
+            write(SP, constant(sp + 1));
+            break;
+          case VMComputer.POP_FIXED:
+          case VMComputer.POP_SEGMENT:
+            write(address(pc), read(sp - 1));
+            write(SP, constant(sp - 1));
+            break;
+          case VMComputer.ADD:
+          case VMComputer.SUB:
+          case VMComputer.EQ:
+          case VMComputer.GT:
+          case VMComputer.LT:
+          case VMComputer.AND:
+          case VMComputer.OR: {
+            int x = read(sp - 2);
+            int y = read(sp - 1);
+            int out;
+            switch (op) {
+              case VMComputer.ADD: out = add(x, y); break;
+              case VMComputer.SUB: out = add(x, negate(y)); break;
+              // Comparisons subtract, like VMComputer does
+              case VMComputer.EQ: out = constant(jumps(add(x, negate(y)), 0b010) ? -1 : 0); break;
+              case VMComputer.GT: out = constant(jumps(add(x, negate(y)), 0b001) ? -1 : 0); break;
+              case VMComputer.LT: out = constant(jumps(add(x, negate(y)), 0b100) ? -1 : 0); break;
+              case VMComputer.AND: out = constant(fixed(x) & fixed(y)); break;
+              default: out = constant(fixed(x) | fixed(y)); break;
+            }
+            write(sp - 2, out);
+            write(SP, constant(sp - 1));
+            break;
+          }
+          case VMComputer.NEG:
+            write(sp - 1, negate(read(sp - 1)));
+            break;
+          case VMComputer.NOT:
+            write(sp - 1, not(read(sp - 1)));
+            break;
+          case VMComputer.ALOAD:
+            write(sp - 2, read(fixed(add(read(sp - 1), read(sp - 2))) & HackComputer.ADDRESS_MASK));
+            write(SP, constant(sp - 1));
+            break;
+          case VMComputer.ASTORE:
+            write(fixed(add(read(sp - 2), read(sp - 3))) & HackComputer.ADDRESS_MASK, read(sp - 1));
+            write(SP, constant(sp - 3));
+            break;
+          case VMComputer.INC:
+          case VMComputer.DEC: {
+            int address = address(pc);
+            write(address, add(read(address), constant(op == VMComputer.INC ? 1 : -1)));
+            break;
+          }
+          case VMComputer.ADD_TO:
+          case VMComputer.SUB_TO:
+          case VMComputer.AND_TO:
+          case VMComputer.OR_TO: {
+            int address = address(pc);
+            int x = read(address);
+            int y = read(sp - 1);
+            write(address, op == VMComputer.ADD_TO ? add(x, y) : op == VMComputer.SUB_TO ? add(x, negate(y))
+                : constant(op == VMComputer.AND_TO ? fixed(x) & fixed(y) : fixed(x) | fixed(y)));
+            write(SP, constant(sp - 1));
+            break;
+          }
+          case VMComputer.GOTO:
+            next = computer.getArgument(pc);
+            break;
+          case VMComputer.IF_GOTO:
+            if (jumps(read(sp - 1), 0b101)) {
+              next = computer.getArgument(pc);
+            }
+            write(SP, constant(sp - 1));
+            break;
+          case VMComputer.IF_LT:
+          case VMComputer.IF_GT:
+          case VMComputer.IF_EQ:
+          case VMComputer.IF_GE:
+          case VMComputer.IF_LE:
+          case VMComputer.IF_NE: {
+            int[] conditions = { 0b100, 0b001, 0b010, 0b011, 0b110, 0b101 };
+            if (jumps(add(read(sp - 2), negate(read(sp - 1))), conditions[op - VMComputer.IF_LT])) {
+              next = computer.getArgument(pc);
+            }
+            write(SP, constant(sp - 2));
+            break;
+          }
+          default:
+            throw NOT_IDLE;
+        }
+        pc = next;
+      } while (pc != head);
+      return count;
+    }
+
+    @Override
+    int current(int location) {
+      return computer.ram[location];
+    }
+
+    @Override
+    void set(int location, int value) {
+      computer.ram[location] = (short) value;
+    }
+  }
+}
@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which functions of the VM program a run spends its time in, for
+ * HackComputer (going by the labels VMTranslator writes for functions) or
+ * VMComputer.
+ * <p>
+ * The computer tells the profiler whenever it gets to a function's first
+ * instruction, or to the address that a function called earlier returns to.
+ * Getting to a function is a call, and the address it will return to is
+ * whatever the call put in its frame (at LCL - 5). The exception is getting
+ * back to the start of the function that's already on top, with LCL still
+ * pointing at its frame: that's a loop whose label is at the very start
+ * (which is where it ends up in a function with no locals), not a recursive
+ * call, which would have made a new frame. Getting back there is a
+ * return, as long as the stack is back down to where the function's
+ * arguments were, which tells a return apart from a recursive call coming
+ * back to the same place. Everything run in between counts for whatever
+ * function is on top, and for the path of calls that led there.
+ * <p>
+ * For each function, the profile has:
+ * <ul>
+ * <li>the number of calls to it</li>
+ * <li>its self time, which is what was run in the function itself</li>
+ * <li>its total time, which also counts the functions it called (but only
+ * once for recursive calls)</li>
+ * </ul>
+ * It can be written in the format that ProfileGuide reads, or as collapsed
+ * stacks (one line per path of calls, like
+ * <code>Sys.init;Main.main;Math.multiply 1234</code>) for flame graph tools.
+ * <p>
+ * Given the line of code that each address comes from (see SourceMap), the
+ * computer also tells the profiler about every instruction or command it
+ * runs, and the report shows the lines that took the most time as well. Code
+ * that doesn't come from a line of its own, like outlined sequences and shared
+ * routines, counts for the line that ran before it (the one that called it).
+ */
+public class Profiler {
+  /**
+   * What VMTranslator names its functions' labels (the function's own name,
+   * like <code>Main.main</code>), as opposed to the labels it makes up, which
+   * all have a <code>$</code>, a second dot, or a number after the dot
+   */
+  private static final Pattern FUNCTION_LABEL = Pattern.compile("[A-Za-z_]\\w*\\.[A-Za-z_]\\w*");
+
+  /**
+   * What the time outside of any function is put down to, like the bootstrap
+   * code
+   */
+  private static final String OUTSIDE = "(none)";
+
+  private static final int SP = 0;
+  private static final int LCL = 1;
+  private static final int ARG = 2;
+
+  private final String unit;
+  private final String[] names;
+
+  /**
+   * The function whose first instruction is at each address, or -1
+   */
+  private final int[] functionAt;
+
+  /**
+   * The addresses the computer has to tell the profiler about when it jumps
+   * to them: the functions, and the addresses that calls return to
+   */
+  final boolean[] watched;
+
+  // For profiling lines: each line, the line each address comes from (-1 for
+  // none), the time taken by each line, and the line that ran last. lineAt is
+  // null if lines aren't being profiled
+  private List<String> lineNames = new ArrayList<String>();
+  private int[] lineAt;
+  private long[] lineTime;
+  private int line = 0;
+
+  // Per function
+  private final long[] calls;
+  private final long[] selfTime;
+  private final long[] totalTime;
+  private final int[] active;
+  private final long[] outermostStart;
+
+  // The tree of paths of calls. Node 0 is outside of any function
+  private List<Integer> nodeParent = new ArrayList<Integer>();
+  private List<Integer> nodeFunction = new ArrayList<Integer>();
+  private long[] nodeTime = new long[64];
+  private Map<Long, Integer> children = new HashMap<Long, Integer>();
+
+  // The functions being run, innermost last
+  private int depth;
+  private int maxDepth;
+  private int[] stackNode = new int[64];
+  private int[] stackReturn = new int[64];
+  private int[] stackArgument = new int[64];
+  private int[] stackLocal = new int[64];
+
+  /**
+   * The time of the last call or return
+   */
+  private long last;
+
+  /**
+   * Makes a profiler
+   * @param names The name of each function
+   * @param starts The address of each function's first instruction
+   * @param addressCount The number of addresses in the program
+   * @param unit What the time is counted in (like instructions)
+   */
+  public Profiler(String[] names, int[] starts, int addressCount, String unit) {
+    this.names = names;
+    this.unit = unit;
+    functionAt = new int[addressCount];
+    Arrays.fill(functionAt, -1);
+    watched = new boolean[addressCount];
+    for (int i = 0; i < starts.length; i++) {
+      functionAt[starts[i]] = i;
+      watched[starts[i]] = true;
+    }
+    calls = new long[names.length];
+    selfTime = new long[names.length];
+    totalTime = new long[names.length];
+    active = new int[names.length];
+    outermostStart = new long[names.length];
+    nodeParent.add(-1);
+    nodeFunction.add(-1);
+  }
+
+  /**
+   * Makes a profiler for a Hack program translated by VMTranslator
+   * @param labels The program's labels, and their addresses
+   */
+  public static Profiler forHack(Map<String, Integer> labels) {
+    List<String> names = new ArrayList<String>();
+    List<Integer> starts = new ArrayList<Integer>();
+    for (Map.Entry<String, Integer> label : labels.entrySet()) {
+      if (FUNCTION_LABEL.matcher(label.getKey()).matches()) {
+        names.add(label.getKey());
+        starts.add(label.getValue());
+      }
+    }
+    return new Profiler(names.toArray(new String[0]), starts.stream().mapToInt(Integer::intValue).toArray(),
+        HackComputer.ADDRESS_MASK + 1, "instructions");
+  }
+
+  /**
+   * Makes a profiler for a VM program
+   */
+  public static Profiler forVM(VMComputer computer) {
+    String[] names = new String[computer.getFunctionCount()];
+    int[] starts = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = computer.getFunctionName(i);
+      starts[i] = computer.getFunctionStart(i);
+    }
+    return new Profiler(names, starts, computer.getProgramSize() + 1, "commands");
+  }
+
+  /**
+   * Finds the line of code each instruction of a Hack program comes from, by
+   * the source map that VMTranslator -map wrote next to it. If JackCompiler
+   * -map wrote source maps for the VM files as well, this is the line of Jack
+   * code, and if not, the VM command
+   * @param asmFile The program
+   * @return The line of each instruction, or null if there's no source map
+   */
+  public static String[] hackSourceLines(Path asmFile) throws IOException {
+    Path mapFile = Paths.get(asmFile + ".map");
+    if (!Files.exists(mapFile)) {
+      return null;
+    }
+    SourceMap map = SourceMap.read(mapFile);
+    Path directory = asmFile.toAbsolutePath().getParent();
+    Map<String, SourceMap> jackMaps = new HashMap<String, SourceMap>();
+    String[] lines = new String[map.size()];
+    for (int address = 0; address < lines.length; address++) {
+      if (map.getSource(address) != null) {
+        lines[address] = sourceLine(directory, map.getSource(address), map.getPosition(address), jackMaps);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Finds the line of code each command of a VM program comes from: the line
+   * of Jack code if JackCompiler -map wrote source maps next to the VM files,
+   * and the VM command if not
+   * @param directory Where the VM files are
+   */
+  public static String[] vmSourceLines(VMComputer computer, Path directory) throws IOException {
+    Map<String, SourceMap> jackMaps = new HashMap<String, SourceMap>();
+    String[] lines = new String[computer.getProgramSize()];
+    for (int command = 0; command < lines.length; command++) {
+      lines[command] = sourceLine(directory, computer.getSourceFile(command) + ".vm",
+          computer.getSourceIndex(command), jackMaps);
+    }
+    return lines;
+  }
+
+  /**
+   * Finds the line of code a VM command comes from
+   * @param vmFile The name of the command's file
+   * @param command The index of the command in the file
+   * @param jackMaps The source maps of the VM files read so far (null where
+   *                 there is none)
+   */
+  private static String sourceLine(Path directory, String vmFile, int command, Map<String, SourceMap> jackMaps)
+      throws IOException {
+    if (!jackMaps.containsKey(vmFile)) {
+      Path mapFile = directory.resolve(vmFile + ".map");
+      jackMaps.put(vmFile, Files.exists(mapFile) ? SourceMap.read(mapFile) : null);
+    }
+    SourceMap jackMap = jackMaps.get(vmFile);
+    if (jackMap != null && jackMap.getSource(command) != null) {
+      return String.format("%s, line %d", jackMap.getSource(command), jackMap.getPosition(command));
+    }
+    return String.format("%s, command %d", vmFile, command + 1);
+  }
+
+  /**
+   * Profiles lines of code as well as functions. Should be done before the
+   * profiler is given to the computer
+   * @param sourceLines The line of code each address comes from (null for
+   *                    none), e.g. from hackSourceLines()
+   */
+  public void setSourceLines(String[] sourceLines) {
+    Map<String, Integer> lines = new HashMap<String, Integer>();
+    lineNames.add(OUTSIDE);
+    lineAt = new int[functionAt.length];
+    Arrays.fill(lineAt, -1);
+    for (int address = 0; address < Math.min(sourceLines.length, lineAt.length); address++) {
+      if (sourceLines[address] != null) {
+        lineAt[address] = lines.computeIfAbsent(sourceLines[address], name -> {
+          lineNames.add(name);
+          return lineNames.size() - 1;
+        });
+      }
+    }
+    lineTime = new long[lineNames.size()];
+  }
+
+  /**
+   * Whether the computer has to tell the profiler about every instruction or
+   * command it runs
+   */
+  boolean countsLines() {
+    return lineAt != null;
+  }
+
+  /**
+   * Tells the profiler that the computer is running an instruction or command
+   * @param address Where it is
+   */
+  void countLine(int address) {
+    if (lineAt[address] != -1) {
+      line = lineAt[address];
+    }
+    lineTime[line]++;
+  }
+
+  /**
+   * Gets the number of functions the program has
+   */
+  public int getFunctionCount() {
+    return names.length;
+  }
+
+  /**
+   * Tells the profiler that the computer has got to a watched address
+   * @param address Where the PC is now
+   * @param ram The computer's RAM
+   * @param time The number of instructions run so far
+   */
+  void arrive(int address, short[] ram, long time) {
+    if (address >= functionAt.length) {
+      return;
+    }
+    int function = functionAt[address];
+    if (function != -1) {
+      if (depth > 0 && nodeFunction.get(stackNode[depth]) == function && ram[LCL] == stackLocal[depth - 1]) {
+        return; // Looping, in the same frame
+      }
+      enter(function, ram[ram[LCL] - 5 & HackComputer.ADDRESS_MASK] & 0xFFFF, ram[ARG], ram[LCL], time);
+    } else if (depth > 0 && address == stackReturn[depth - 1] && ram[SP] <= stackArgument[depth - 1] + 1) {
+      leave(time);
+    }
+  }
+
+  /**
+   * Puts the time since the last call or return down to the function on top
+   */
+  private void account(long time) {
+    int node = stackNode[depth];
+    nodeTime[node] += time - last;
+    int function = nodeFunction.get(node);
+    if (function != -1) {
+      selfTime[function] += time - last;
+    }
+    last = time;
+  }
+
+  private void enter(int function, int returnAddress, int argument, int local, long time) {
+    account(time);
+    int parent = stackNode[depth];
+    long key = (long) parent << 32 | function;
+    Integer node = children.get(key);
+    if (node == null) {
+      node = nodeParent.size();
+      children.put(key, node);
+      nodeParent.add(parent);
+      nodeFunction.add(function);
+      if (node == nodeTime.length) {
+        nodeTime = Arrays.copyOf(nodeTime, node * 2);
+      }
+    }
+
+    depth++;
+    if (depth + 1 >= stackNode.length) {
+      stackNode = Arrays.copyOf(stackNode, stackNode.length * 2);
+      stackReturn = Arrays.copyOf(stackReturn, stackReturn.length * 2);
+      stackArgument = Arrays.copyOf(stackArgument, stackArgument.length * 2);
+      stackLocal = Arrays.copyOf(stackLocal, stackLocal.length * 2);
+    }
+    maxDepth = Math.max(maxDepth, depth);
+    stackNode[depth] = node;
+    stackReturn[depth - 1] = returnAddress;
+    stackArgument[depth - 1] = argument;
+    stackLocal[depth - 1] = local;
+    if (returnAddress < watched.length) {
+      watched[returnAddress] = true;
+    }
+
+    calls[function]++;
+    if (active[function]++ == 0) {
+      outermostStart[function] = time;
+    }
+  }
+
+  private void leave(long time) {
+    account(time);
+    int function = nodeFunction.get(stackNode[depth]);
+    depth--;
+    if (--active[function] == 0) {
+      totalTime[function] += time - outermostStart[function];
+    }
+  }
+
+  /**
+   * Puts the time since the last call or return down to the function on top,
+   * so that the profile is up to date. Should be done once the computer has
+   * stopped
+   * @param time The number of instructions run so far
+   */
+  public void stop(long time) {
+    account(time);
+  }
+
+  /**
+   * Gets a function's total time, counting its call that's still going on, if
+   * any
+   */
+  private long getTotalTime(int function) {
+    return totalTime[function] + (active[function] > 0 ? last - outermostStart[function] : 0);
+  }
+
+  /**
+   * Prints the functions that took the most time
+   * @param out Where to print them
+   * @param count The most functions to print
+   */
+  public void printReport(PrintStream out, int count) {
+    long time = Arrays.stream(nodeTime).sum();
+    Integer[] order = new Integer[names.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(selfTime[b], selfTime[a]));
+
+    out.println(String.format("Profile of %d %s, with calls up to %d deep:", time, unit, maxDepth));
+    out.println(String.format("%7s %12s %12s %10s  %s", "self %", "self", "total", "calls", "function"));
+    for (int i = 0; i < Math.min(count, order.length) && selfTime[order[i]] > 0; i++) {
+      int function = order[i];
+      out.println(String.format("%6.2f%% %12d %12d %10d  %s", 100.0 * selfTime[function] / Math.max(time, 1),
+          selfTime[function], getTotalTime(function), calls[function], names[function]));
+    }
+
+    if (lineAt != null) {
+      Integer[] lineOrder = new Integer[lineNames.size()];
+      for (int i = 0; i < lineOrder.length; i++) {
+        lineOrder[i] = i;
+      }
+      Arrays.sort(lineOrder, (a, b) -> Long.compare(lineTime[b], lineTime[a]));
+
+      out.println("Lines that took the most time:");
+      out.println(String.format("%7s %12s  %s", "%", "time", "line"));
+      for (int i = 0; i < Math.min(count, lineOrder.length) && lineTime[lineOrder[i]] > 0; i++) {
+        int line = lineOrder[i];
+        out.println(String.format("%6.2f%% %12d  %s", 100.0 * lineTime[line] / Math.max(time, 1), lineTime[line],
+            lineNames.get(line)));
+      }
+    }
+  }
+
+  /**
+   * Writes the profile in the format ProfileGuide reads (calls, then self
+   * time), with the total time as well
+   * @param file The file to write to
+   */
+  public void writeProfile(Path file) throws IOException {
+    StringBuilder profile = new StringBuilder(String.format("# function calls self total (in %s)\n", unit));
+    for (int function = 0; function < names.length; function++) {
+      if (calls[function] > 0) {
+        profile.append(String.format("%s %d %d %d\n", names[function], calls[function], selfTime[function],
+            getTotalTime(function)));
+      }
+    }
+    Files.writeString(file, profile);
+  }
+
+  /**
+   * Writes the time spent in each path of calls, as collapsed stacks
+   * @param file The file to write to
+   */
+  public void writeCollapsedStacks(Path file) throws IOException {
+    StringBuilder stacks = new StringBuilder();
+    for (int node = 0; node < nodeParent.size(); node++) {
+      if (nodeTime[node] == 0) {
+        continue;
+      }
+      if (node == 0) {
+        stacks.append(OUTSIDE);
+      } else {
+        List<String> path = new ArrayList<String>();
+        for (int n = node; n != 0; n = nodeParent.get(n)) {
+          path.add(names[nodeFunction.get(n)]);
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+          stacks.append(path.get(i)).append(i > 0 ? ";" : "");
+        }
+      }
+      stacks.append(' ').append(nodeTime[node]).append('\n');
+    }
+    Files.writeString(file, stacks);
+  }
+}
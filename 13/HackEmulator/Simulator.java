@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Something that a test script can run: a program is loaded into it, its
+ * variables are set and read, and it is stepped along.
+ */
+public interface Simulator {
+  /**
+   * Loads a program
+   * @param source The file given to the script's <code>load</code> command,
+   *               or the script's directory if none was given
+   */
+  void load(Path source) throws IOException;
+
+  /**
+   * Sets a variable, like <code>RAM[256]</code>
+   * @throws IllegalArgumentException If there is no such variable
+   */
+  void set(String variable, int value);
+
+  /**
+   * Gets the value of a variable, like <code>RAM[256]</code>
+   * @throws IllegalArgumentException If there is no such variable
+   */
+  int get(String variable);
+
+  /**
+   * Runs a stepping command (like <code>ticktock</code>) some number of
+   * times in a row
+   * @return Whether the command is one that this simulator knows
+   */
+  boolean step(String command, long times);
+
+  /**
+   * Saves the state of the program to a file (see Snapshot)
+   */
+  void save(Path file) throws IOException;
+
+  /**
+   * Puts the program back the way it was when a snapshot was saved
+   */
+  void restore(Path file) throws IOException;
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the whole state of a HackComputer or VMComputer to a file, and puts
+ * it back, so that a run can carry on from a point reached once (like the end
+ * of Sys.init's setting up of the OS) instead of running up to it every time.
+ * <p>
+ * The file is memory-mapped, so saving or restoring one is two block copies of
+ * RAM. It's made up of a 32-byte header followed by all of RAM, with every
+ * number big-endian:
+ * <ul>
+ * <li>the bytes <code>SNAP</code></li>
+ * <li>the kind of computer (1 for Hack, 2 for VM)</li>
+ * <li>a hash of the program, so that a snapshot is only ever restored into a
+ * computer running the program it was taken from</li>
+ * <li>the PC, A and D (both 0 for the VM), as 4-byte ints</li>
+ * <li>the number of instructions or commands run so far, as an 8-byte
+ * long</li>
+ * <li>the 32K words of RAM, as 2-byte shorts</li>
+ * </ul>
+ */
+public class Snapshot {
+  private static final int MAGIC = 0x534E4150; // "SNAP"
+
+  private static final int HACK = 1;
+  private static final int VM = 2;
+
+  private static final int HEADER_SIZE = 32;
+  private static final int SIZE = HEADER_SIZE + 2 * (HackComputer.ADDRESS_MASK + 1);
+
+  /**
+   * Saves the state of a Hack computer
+   */
+  public static void save(HackComputer computer, Path file) throws IOException {
+    write(file, HACK, computer.getProgramHash(), computer.pc, computer.a, computer.d, computer.cycles,
+        computer.ram);
+  }
+
+  /**
+   * Saves the state of a VM computer
+   */
+  public static void save(VMComputer computer, Path file) throws IOException {
+    write(file, VM, computer.getProgramHash(), computer.pc, 0, 0, computer.steps, computer.ram);
+  }
+
+  /**
+   * Puts a Hack computer back the way it was when a snapshot was saved
+   * @throws IOException If the file can't be read, or isn't a snapshot of
+   *                     this computer's program
+   */
+  public static void restore(HackComputer computer, Path file) throws IOException {
+    ByteBuffer snapshot = read(file, HACK, computer.getProgramHash());
+    computer.reset();
+    computer.pc = snapshot.getInt(12);
+    computer.a = snapshot.getInt(16);
+    computer.d = snapshot.getInt(20);
+    computer.cycles = snapshot.getLong(24);
+    snapshot.position(HEADER_SIZE);
+    snapshot.asShortBuffer().get(computer.ram);
+  }
+
+  /**
+   * Puts a VM computer back the way it was when a snapshot was saved
+   * @throws IOException If the file can't be read, or isn't a snapshot of
+   *                     this computer's program
+   */
+  public static void restore(VMComputer computer, Path file) throws IOException {
+    ByteBuffer snapshot = read(file, VM, computer.getProgramHash());
+    computer.clearHalted();
+    computer.pc = snapshot.getInt(12);
+    computer.steps = snapshot.getLong(24);
+    snapshot.position(HEADER_SIZE);
+    snapshot.asShortBuffer().get(computer.ram);
+  }
+
+  private static void write(Path file, int kind, int program, int pc, int a, int d, long time, short[] ram)
+      throws IOException {
+    // Every byte is written, so an old snapshot's pages are written over
+    // rather than thrown away
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      channel.truncate(SIZE);
+      MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+      snapshot.putInt(MAGIC).putInt(kind).putInt(program).putInt(pc).putInt(a).putInt(d).putLong(time);
+      snapshot.asShortBuffer().put(ram);
+    }
+  }
+
+  /**
+   * Maps a snapshot, after checking that it's one of the right program
+   */
+  private static ByteBuffer read(Path file, int kind, int program) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() != SIZE) {
+        throw new IOException(file + " isn't a snapshot");
+      }
+      MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+      if (snapshot.getInt(0) != MAGIC) {
+        throw new IOException(file + " isn't a snapshot");
+      }
+      if (snapshot.getInt(4) != kind) {
+        throw new IOException(String.format("%s is a snapshot of the %s computer", file,
+            snapshot.getInt(4) == HACK ? "Hack" : "VM"));
+      }
+      if (snapshot.getInt(8) != program) {
+        throw new IOException(file + " is a snapshot of a different program");
+      }
+      return snapshot;
+    }
+  }
+}
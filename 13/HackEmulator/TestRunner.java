@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds every test script (.tst) under the paths it's given, and runs them all
+ * at once on a pool of threads (see TestScript). Each result is printed as
+ * soon as it's in, followed by a summary. The exit status is 1 if any test
+ * failed.
+ *
+ * Scripts that load something there's no simulator for (like the .hdl files of
+ * the hardware projects) are skipped.
+ */
+public class TestRunner {
+  private static void printIncorrectUsage() {
+    System.out.println("Usage:\n\n\tTestRunner [-threads n] path...\n\nWhere each path is either a .tst file or a directory to look for .tst files in\n");
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<Path> scripts = new ArrayList<Path>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(Paths.get(args[i]))) {
+        scripts.addAll(files.filter(file -> file.toString().endsWith(".tst")).sorted().collect(Collectors.toList()));
+      } catch (IOException e) {
+        System.out.println("Error while reading " + args[i]);
+        e.printStackTrace();
+      }
+    }
+    if (scripts.isEmpty()) {
+      printIncorrectUsage();
+      return;
+    }
+
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<TestScript.Result>> results = new ArrayList<Future<TestScript.Result>>();
+    for (Path script : scripts) {
+      results.add(pool.submit(() -> {
+        TestScript test;
+        TestScript.Result result;
+        String message;
+        try {
+          test = new TestScript(script);
+          result = test.run();
+          message = test.getMessage();
+        } catch (IOException | RuntimeException e) {
+          result = TestScript.Result.FAILED;
+          message = e.getMessage();
+        }
+        synchronized (System.out) {
+          System.out.println(String.format("%-7s %s%s", result, script, message.isEmpty() ? "" : ": " + message));
+        }
+        return result;
+      }));
+    }
+    pool.shutdown();
+
+    Map<TestScript.Result, Integer> counts = new EnumMap<TestScript.Result, Integer>(TestScript.Result.class);
+    for (Future<TestScript.Result> result : results) {
+      try {
+        counts.merge(result.get(), 1, Integer::sum);
+      } catch (Exception e) {
+        counts.merge(TestScript.Result.FAILED, 1, Integer::sum);
+      }
+    }
+    System.out.println(String.format("\n%d passed, %d failed, %d skipped in %d ms",
+        counts.getOrDefault(TestScript.Result.PASSED, 0), counts.getOrDefault(TestScript.Result.FAILED, 0),
+        counts.getOrDefault(TestScript.Result.SKIPPED, 0), (System.nanoTime() - start) / 1000000));
+    if (counts.containsKey(TestScript.Result.FAILED)) {
+      System.exit(1);
+    }
+  }
+}
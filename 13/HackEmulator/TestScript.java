@@ -0,0 +1,474 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a test script (<code>.tst</code>) of the course's tools. Output lines
+ * are checked against the <code>compare-to</code> file as they are written,
+ * so a test stops at the first line that is wrong.
+ * <p>
+ * Only the commands that scripts for the CPU and VM emulators use are
+ * understood: <code>load</code>, <code>output-file</code>,
+ * <code>compare-to</code>, <code>output-list</code>, <code>output</code>,
+ * <code>set</code>, <code>repeat</code>, <code>while</code>,
+ * <code>echo</code>, and whatever stepping commands the simulator knows
+ * (<code>ticktock</code> for CPUSimulator, <code>vmstep</code> for
+ * VMSimulator).
+ * <p>
+ * On top of those, <code>save-snapshot file</code> saves the state of the
+ * loaded program, and <code>restore-snapshot file</code> puts it back (see
+ * Snapshot), so that scripts can all start from a state that one of them ran
+ * up to, like the end of the OS setting itself up.
+ */
+public class TestScript {
+  /**
+   * How a test went
+   */
+  public enum Result { PASSED, FAILED, SKIPPED }
+
+  /**
+   * A command of the script, or a <code>repeat</code> or <code>while</code>
+   * block
+   */
+  private static class Command {
+    String[] words;
+    int line;
+    long repeatCount;
+    String[] condition; // Only for while blocks
+    List<Command> body; // Only for repeat and while blocks
+  }
+
+  /**
+   * A column of <code>output-list</code>, e.g. <code>RAM[256]%D1.6.1</code>
+   */
+  private static class Column {
+    String variable;
+    char format;
+    int leftPadding;
+    int width;
+    int rightPadding;
+  }
+
+  /**
+   * Thrown when a test fails
+   */
+  private static class TestFailure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    TestFailure(String message) {
+      super(message);
+    }
+  }
+
+  private Path script;
+  private List<Command> commands;
+  private Simulator simulator;
+
+  private PrintWriter output;
+  private BufferedReader compare;
+  private int compareLine = 0;
+  private List<Column> columns = new ArrayList<Column>();
+  private long time = 0;
+
+  private Result result;
+  private String message = "";
+
+  /**
+   * Reads a test script
+   * @param script The <code>.tst</code> file
+   */
+  public TestScript(Path script) throws IOException {
+    this.script = script;
+    String text = Files.readString(script).replaceAll("\\r\\n?", "\n");
+    commands = parse(new Tokens(text), false);
+  }
+
+  /**
+   * Splits a script up into words and separators, leaving out comments
+   */
+  private static class Tokens {
+    private String text;
+    private int position = 0;
+    private int line = 1;
+
+    Tokens(String text) {
+      this.text = text;
+    }
+
+    /**
+     * Gets the next word, or a separator (one of <code>,;!{}</code>), or
+     * <code>null</code> at the end
+     */
+    String next() {
+      while (position < text.length()) {
+        char c = text.charAt(position);
+        if (c == '\n') {
+          line++;
+          position++;
+        } else if (Character.isWhitespace(c)) {
+          position++;
+        } else if (text.startsWith("//", position)) {
+          while (position < text.length() && text.charAt(position) != '\n') {
+            position++;
+          }
+        } else if (text.startsWith("/*", position)) {
+          int end = text.indexOf("*/", position + 2);
+          end = end == -1 ? text.length() : end + 2;
+          line += text.substring(position, end).chars().filter(ch -> ch == '\n').count();
+          position = end;
+        } else {
+          break;
+        }
+      }
+      if (position == text.length()) {
+        return null;
+      }
+
+      char c = text.charAt(position);
+      if (",;!{}".indexOf(c) != -1) {
+        position++;
+        return String.valueOf(c);
+      }
+      int start = position;
+      if (c == '"') {
+        int end = text.indexOf('"', position + 1);
+        position = end == -1 ? text.length() : end + 1;
+        return text.substring(start, position);
+      }
+      while (position < text.length() && !Character.isWhitespace(text.charAt(position))
+          && ",;!{}".indexOf(text.charAt(position)) == -1 && !text.startsWith("//", position)) {
+        position++;
+      }
+      return text.substring(start, position);
+    }
+  }
+
+  /**
+   * Parses commands up to the end of the script, or of a block
+   */
+  private static List<Command> parse(Tokens tokens, boolean inBlock) {
+    List<Command> commands = new ArrayList<Command>();
+    List<String> words = new ArrayList<String>();
+    int line = tokens.line;
+    while (true) {
+      String token = tokens.next();
+      if (token == null || token.equals("}")) {
+        if (token == null && inBlock) {
+          throw new TestFailure("Missing \"}\"");
+        }
+        if (!words.isEmpty()) {
+          throw new TestFailure(String.format("Line %d: Missing \";\" after %s", line, String.join(" ", words)));
+        }
+        return commands;
+      }
+      if (words.isEmpty()) {
+        line = tokens.line;
+      }
+
+      if (token.equals("{")) {
+        Command block = new Command();
+        block.line = line;
+        block.words = words.toArray(new String[0]);
+        if (!words.isEmpty() && words.get(0).equals("repeat")) {
+          block.repeatCount = words.size() > 1 ? Long.parseLong(words.get(1)) : Long.MAX_VALUE;
+        } else if (words.size() == 4 && words.get(0).equals("while")) {
+          block.condition = words.subList(1, 4).toArray(new String[0]);
+        } else {
+          throw new TestFailure(String.format("Line %d: Unexpected \"{\"", line));
+        }
+        block.body = parse(tokens, true);
+        commands.add(block);
+        words.clear();
+      } else if (token.equals(",") || token.equals(";") || token.equals("!")) {
+        if (!words.isEmpty()) {
+          Command command = new Command();
+          command.line = line;
+          command.words = words.toArray(new String[0]);
+          commands.add(command);
+          words.clear();
+        }
+      } else {
+        words.add(token);
+      }
+    }
+  }
+
+  /**
+   * Picks the simulator for a program, from what the script loads
+   * @return The simulator, or <code>null</code> if there is none for it
+   */
+  private Simulator simulatorFor(Path source) {
+    String name = source.getFileName().toString();
+    if (name.endsWith(".asm") || name.endsWith(".hack")) {
+      return new CPUSimulator();
+    }
+    if (name.endsWith(".vm") || Files.isDirectory(source)) {
+      return new VMSimulator();
+    }
+    return null;
+  }
+
+  /**
+   * Runs the script
+   * @return How it went (see getMessage() for why)
+   */
+  public Result run() {
+    try {
+      execute(commands);
+      if (compare != null && compare.readLine() != null) {
+        throw new TestFailure(String.format("Less output than in the compare file (%d lines)", compareLine));
+      }
+      result = Result.PASSED;
+    } catch (TestFailure e) {
+      result = result == Result.SKIPPED ? Result.SKIPPED : Result.FAILED;
+      message = e.getMessage();
+    } catch (IOException | RuntimeException e) {
+      result = Result.FAILED;
+      message = e.toString();
+    } finally {
+      try {
+        if (output != null) {
+          output.close();
+        }
+        if (compare != null) {
+          compare.close();
+        }
+      } catch (IOException e) {
+        // Nothing to do about it
+      }
+    }
+    return result;
+  }
+
+  public Result getResult() {
+    return result;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  private void execute(List<Command> commands) throws IOException {
+    for (Command command : commands) {
+      if (command.condition != null) {
+        while (holds(command)) {
+          execute(command.body);
+        }
+        continue;
+      }
+      if (command.body != null) {
+        // A loop of a single stepping command is handed to the simulator in
+        // one go
+        if (command.body.size() == 1 && command.body.get(0).body == null && simulator != null
+            && command.body.get(0).words.length == 1
+            && simulator.step(command.body.get(0).words[0], command.repeatCount)) {
+          time += command.repeatCount;
+          continue;
+        }
+        for (long i = 0; i < command.repeatCount; i++) {
+          execute(command.body);
+        }
+        continue;
+      }
+      execute(command);
+    }
+  }
+
+  private void execute(Command command) throws IOException {
+    String[] words = command.words;
+    Path directory = script.toAbsolutePath().getParent();
+    switch (words[0]) {
+      case "load":
+        Path source = words.length > 1 ? directory.resolve(words[1]) : directory;
+        simulator = simulatorFor(source);
+        if (simulator == null) {
+          result = Result.SKIPPED;
+          throw new TestFailure("No simulator for " + source.getFileName());
+        }
+        simulator.load(source);
+        break;
+      case "output-file":
+        output = new PrintWriter(Files.newBufferedWriter(directory.resolve(words[1])));
+        break;
+      case "compare-to":
+        compare = Files.newBufferedReader(directory.resolve(words[1]));
+        break;
+      case "output-list":
+        columns.clear();
+        for (int i = 1; i < words.length; i++) {
+          columns.add(parseColumn(words[i]));
+        }
+        writeLine(header());
+        break;
+      case "output":
+        writeLine(values());
+        break;
+      case "set":
+        requireSimulator(command);
+        simulator.set(words[1], parseValue(words[2]));
+        break;
+      case "save-snapshot":
+        requireSimulator(command);
+        simulator.save(directory.resolve(words[1]));
+        break;
+      case "restore-snapshot":
+        requireSimulator(command);
+        simulator.restore(directory.resolve(words[1]));
+        break;
+      case "echo": case "clear-echo": case "breakpoint": case "clear-breakpoints":
+        break;
+      default:
+        requireSimulator(command);
+        if (words.length > 1 || !simulator.step(words[0], 1)) {
+          throw new TestFailure(String.format("Line %d: Unknown command \"%s\"", command.line, words[0]));
+        }
+        time++;
+        break;
+    }
+  }
+
+  /**
+   * Checks the condition of a <code>while</code> block, like
+   * <code>RAM[0] &lt;&gt; 75</code>
+   */
+  private boolean holds(Command command) {
+    requireSimulator(command);
+    int left = simulator.get(command.condition[0]);
+    int right = parseValue(command.condition[2]);
+    switch (command.condition[1]) {
+      case "=": return left == right;
+      case "<>": return left != right;
+      case "<": return left < right;
+      case ">": return left > right;
+      case "<=": return left <= right;
+      case ">=": return left >= right;
+      default:
+        throw new TestFailure(String.format("Line %d: Unknown comparison \"%s\"", command.line,
+            command.condition[1]));
+    }
+  }
+
+  private void requireSimulator(Command command) {
+    if (simulator == null) {
+      throw new TestFailure(String.format("Line %d: Nothing loaded", command.line));
+    }
+  }
+
+  /**
+   * Parses a value in a <code>set</code> command, which is in decimal unless
+   * it starts with <code>%X</code> (hex), <code>%B</code> (binary) or
+   * <code>%D</code>
+   */
+  private static int parseValue(String value) {
+    if (value.startsWith("%X")) {
+      return Integer.parseInt(value.substring(2), 16);
+    } else if (value.startsWith("%B")) {
+      return Integer.parseInt(value.substring(2), 2);
+    } else if (value.startsWith("%D")) {
+      return Integer.parseInt(value.substring(2));
+    }
+    return Integer.parseInt(value);
+  }
+
+  private static Column parseColumn(String spec) {
+    Column column = new Column();
+    int percent = spec.indexOf('%');
+    if (percent == -1) {
+      column.variable = spec;
+      column.format = 'D';
+      column.leftPadding = 1;
+      column.width = 6;
+      column.rightPadding = 1;
+      return column;
+    }
+    column.variable = spec.substring(0, percent);
+    column.format = spec.charAt(percent + 1);
+    String[] sizes = spec.substring(percent + 2).split("\\.");
+    column.leftPadding = Integer.parseInt(sizes[0]);
+    column.width = Integer.parseInt(sizes[1]);
+    column.rightPadding = Integer.parseInt(sizes[2]);
+    return column;
+  }
+
+  /**
+   * The line of column names: each name is centered in its column, and cut
+   * off if it's too long
+   */
+  private String header() {
+    StringBuilder line = new StringBuilder("|");
+    for (Column column : columns) {
+      int size = column.leftPadding + column.width + column.rightPadding;
+      String name = column.variable.length() > size ? column.variable.substring(0, size) : column.variable;
+      int left = (size - name.length()) / 2;
+      line.append(" ".repeat(left)).append(name).append(" ".repeat(size - name.length() - left)).append('|');
+    }
+    return line.toString();
+  }
+
+  private String values() {
+    StringBuilder line = new StringBuilder("|");
+    for (Column column : columns) {
+      String value;
+      if (column.variable.equals("time")) {
+        value = Long.toString(time);
+      } else {
+        if (simulator == null) {
+          throw new TestFailure("Nothing loaded");
+        }
+        int v = simulator.get(column.variable);
+        switch (column.format) {
+          case 'B':
+            value = Integer.toBinaryString(v & 0xFFFF);
+            value = "0".repeat(Math.max(0, column.width - value.length())) + value;
+            value = value.substring(value.length() - column.width);
+            break;
+          case 'X':
+            value = Integer.toHexString(v & 0xFFFF).toUpperCase();
+            value = "0".repeat(Math.max(0, column.width - value.length())) + value;
+            break;
+          default:
+            value = Integer.toString(v);
+            break;
+        }
+      }
+      // Strings (like time) are left-aligned, and numbers right-aligned
+      String padding = " ".repeat(Math.max(0, column.width - value.length()));
+      value = column.format == 'S' ? value + padding : padding + value;
+      line.append(" ".repeat(column.leftPadding)).append(value).append(" ".repeat(column.rightPadding)).append('|');
+    }
+    return line.toString();
+  }
+
+  /**
+   * Writes a line of output, and checks it against the compare file. A
+   * <code>*</code> in the compare file matches anything, and spaces at the
+   * end of lines don't count
+   */
+  private void writeLine(String line) throws IOException {
+    if (output != null) {
+      output.println(line);
+    }
+    if (compare == null) {
+      return;
+    }
+    String expected = compare.readLine();
+    compareLine++;
+    if (expected == null) {
+      throw new TestFailure(String.format("More output than in the compare file (%d lines)", compareLine - 1));
+    }
+    expected = expected.stripTrailing();
+    line = line.stripTrailing();
+    boolean matches = expected.length() == line.length();
+    for (int i = 0; i < expected.length() && matches; i++) {
+      matches = expected.charAt(i) == '*' || expected.charAt(i) == line.charAt(i);
+    }
+    if (!matches) {
+      throw new TestFailure(String.format("Comparison failure at line %d: expected %s, got %s", compareLine,
+          expected.trim(), line));
+    }
+  }
+}
@@ -0,0 +1,820 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs VM code (<code>.vm</code> files) straight, one VM command at a time,
+ * instead of translating it to Hack first. RAM is laid out the same way as
+ * with the code VMTranslator writes: the stack and the segment pointers are in
+ * RAM, statics get addresses from 16 up in the order they show up, and the
+ * arithmetic is done on 16 bits the way the Hack code does it (so
+ * <code>lt</code> compares by subtracting, for one).
+ * <p>
+ * Loading a program decodes every command ahead of time: each segment is
+ * turned into either a fixed address or the pointer register its base is in,
+ * each label into the index of the command after it, and each function into
+ * its place in a table of functions. Running a command is then one
+ * <code>switch</code>.
+ * <p>
+ * Calls to some of the OS functions can be handed to Java versions of them
+ * instead (see VMIntrinsics), and loops that only wait are skipped through
+ * (see IdleLoops).
+ */
+public class VMComputer {
+  // What each command does. Labels aren't commands of their own, so stepping
+  // over one doesn't take a step, like in the VM emulator of the course
+  static final int PUSH_CONSTANT = 1;
+  static final int PUSH_FIXED = 2;
+  static final int PUSH_SEGMENT = 3;
+  static final int POP_FIXED = 4;
+  static final int POP_SEGMENT = 5;
+  static final int ADD = 6;
+  static final int SUB = 7;
+  static final int NEG = 8;
+  static final int EQ = 9;
+  static final int GT = 10;
+  static final int LT = 11;
+  static final int AND = 12;
+  static final int OR = 13;
+  static final int NOT = 14;
+  static final int ALOAD = 15;
+  static final int ASTORE = 16;
+  static final int INC = 17;
+  static final int DEC = 18;
+  static final int ADD_TO = 19;
+  static final int SUB_TO = 20;
+  static final int AND_TO = 21;
+  static final int OR_TO = 22;
+  static final int GOTO = 23;
+  static final int IF_GOTO = 24;
+  static final int IF_LT = 25;
+  static final int IF_GT = 26;
+  static final int IF_EQ = 27;
+  static final int IF_GE = 28;
+  static final int IF_LE = 29;
+  static final int IF_NE = 30;
+  static final int FUNCTION = 31;
+  static final int CALL = 32;
+  static final int RETURN = 33;
+  static final int RETURN_VOID = 34;
+
+  private static final Map<String, Integer> OPS = new HashMap<String, Integer>();
+
+  static {
+    String[] names = { "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not", "aload", "astore",
+        "inc", "dec", "add-to", "sub-to", "and-to", "or-to" };
+    for (int i = 0; i < names.length; i++) {
+      OPS.put(names[i], ADD + i);
+    }
+    String[] comparisons = { "lt", "gt", "eq", "ge", "le", "ne" };
+    for (int i = 0; i < comparisons.length; i++) {
+      OPS.put("if-" + comparisons[i], IF_LT + i);
+    }
+  }
+
+  /**
+   * Where the base of each segment is kept
+   */
+  private static final Map<String, Integer> SEGMENT_POINTERS = Map.of("local", 1, "argument", 2, "this", 3,
+      "that", 4);
+
+  private static final int SP = 0;
+  private static final int LCL = 1;
+  private static final int ARG = 2;
+  private static final int THIS = 3;
+  private static final int THAT = 4;
+
+  // The decoded commands. What seg and arg hold depends on the command: for a
+  // push, pop or in-place update, arg is the address (with seg 0) or the
+  // index into the segment whose base is in RAM[seg]. For a jump, arg is
+  // where to, for a function it's the number of locals, and for a call it's
+  // the function's index with seg the number of arguments
+  private int[] op;
+  private int[] seg;
+  private int[] arg;
+
+  /**
+   * The function each command is in, or -1 for commands before the first
+   * function
+   */
+  private int[] functionOf;
+
+  private List<String> functionNames = new ArrayList<String>();
+  private Map<String, Integer> functions = new HashMap<String, Integer>();
+  private List<Integer> functionStarts = new ArrayList<Integer>();
+
+  /**
+   * The address of each static, by the name of its file and its index (like
+   * <code>Math.0</code>)
+   */
+  private Map<String, Integer> statics = new HashMap<String, Integer>();
+
+  /**
+   * Where each command came from, as the file's name and the index of the
+   * command in it
+   */
+  private String[] sourceFile;
+  private int[] sourceIndex;
+
+  public final short[] ram = new short[HackComputer.ADDRESS_MASK + 1];
+  public int pc;
+
+  /**
+   * If not -1, running stops as soon as the PC gets here
+   */
+  private int breakpoint = -1;
+
+  /**
+   * The Java versions of OS functions to call instead of their VM code, if
+   * any
+   */
+  private VMIntrinsics intrinsics;
+
+  /**
+   * The profiler, if any
+   */
+  private Profiler profiler;
+
+  /**
+   * Finds the loops to skip through, or null to run every command
+   */
+  private IdleLoops idleLoops;
+
+  /**
+   * Where the program got into a loop that never ends, or -1. It stays halted
+   * for as long as the PC is left there
+   */
+  private int haltedAt = -1;
+
+  /**
+   * Whether the program halted because its stack ran past the end of RAM
+   */
+  private boolean stackOverflow = false;
+
+  /**
+   * The number of commands run since the program was loaded
+   */
+  public long steps;
+
+  /**
+   * Gets the VM files of a source
+   * @param source A VM file, or a directory with VM files in it
+   */
+  public static List<Path> vmFiles(Path source) throws IOException {
+    if (!Files.isDirectory(source)) {
+      return List.of(source);
+    }
+    // In the same order as VMTranslator, so that statics get the same
+    // addresses, but leaving out subdirectories
+    try (Stream<Path> files = Files.walk(source, 1)) {
+      return files.filter(file -> file.toString().endsWith(".vm")).collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Loads a program. If it has a Sys.init, it is called the way the bootstrap
+   * code of VMTranslator calls it, with the stack starting at 256; otherwise
+   * the program starts at its first command, and the stack and segments are
+   * left for whoever runs it to set up
+   * @param files The VM files of the program
+   */
+  public VMComputer(List<Path> files) throws IOException {
+    List<String[]> commands = new ArrayList<String[]>();
+    List<String> fileNames = new ArrayList<String>();
+    List<Integer> indices = new ArrayList<Integer>();
+    Map<String, Integer> labels = new HashMap<String, Integer>();
+    String function = "";
+    for (Path file : files) {
+      String fileName = file.getFileName().toString().replaceAll("\\.vm$", "");
+      Parser parser = new Parser(new Scanner(Files.readString(file).replaceAll("\\r\\n?", "\n")));
+      int index = 0;
+      while (parser.hasMoreCommands()) {
+        parser.advance();
+        // Labels are local to the function they're in
+        if (parser.commandType() == Parser.CommandType.C_LABEL) {
+          labels.put(function + "$" + parser.arg1(), commands.size());
+          index++;
+          continue;
+        }
+        if (parser.commandType() == Parser.CommandType.C_FUNCTION) {
+          function = parser.arg1();
+        }
+        String[] words;
+        switch (parser.commandType()) {
+          case C_ARITHMETIC: case C_RETURN: case C_RETURN_VOID:
+            words = new String[] { parser.command() };
+            break;
+          case C_GOTO: case C_IF: case C_IF_COMPARE:
+            words = new String[] { parser.command(), parser.arg1() };
+            break;
+          default:
+            words = new String[] { parser.command(), parser.arg1(), Integer.toString(parser.arg2()) };
+            break;
+        }
+        commands.add(words);
+        fileNames.add(fileName);
+        indices.add(index++);
+      }
+    }
+
+    int size = commands.size();
+    op = new int[size];
+    seg = new int[size];
+    arg = new int[size];
+    functionOf = new int[size];
+    sourceFile = fileNames.toArray(new String[0]);
+    sourceIndex = indices.stream().mapToInt(Integer::intValue).toArray();
+
+    // First pass: find the functions
+    for (int i = 0; i < size; i++) {
+      String[] words = commands.get(i);
+      if (words[0].equals("function")) {
+        function = words[1];
+        if (functions.containsKey(function)) {
+          throw new IllegalArgumentException(String.format("%s.vm: Function %s is defined twice", sourceFile[i],
+              function));
+        }
+        functions.put(function, functionNames.size());
+        functionNames.add(function);
+        functionStarts.add(i);
+      }
+      functionOf[i] = functionNames.size() - 1;
+    }
+
+    // Second pass: decode the commands
+    for (int i = 0; i < size; i++) {
+      String[] words = commands.get(i);
+      String where = String.format("%s.vm, command %d", sourceFile[i], sourceIndex[i] + 1);
+      String prefix = functionOf[i] == -1 ? "" : functionNames.get(functionOf[i]);
+      switch (words[0]) {
+        case "push": case "pop": case "inc": case "dec":
+        case "add-to": case "sub-to": case "and-to": case "or-to":
+          String segment = words[1];
+          int index = Integer.parseInt(words[2]);
+          boolean isPush = words[0].equals("push");
+          boolean isPop = words[0].equals("pop");
+          if (segment.equals("constant")) {
+            if (!isPush) {
+              throw new IllegalArgumentException(where + ": Only push can be used with constant");
+            }
+            op[i] = PUSH_CONSTANT;
+            arg[i] = index;
+            break;
+          }
+          Integer pointer = SEGMENT_POINTERS.get(segment);
+          if (pointer != null) {
+            op[i] = isPush ? PUSH_SEGMENT : isPop ? POP_SEGMENT : OPS.get(words[0]);
+            seg[i] = pointer;
+            arg[i] = index;
+            break;
+          }
+          int address;
+          switch (segment) {
+            case "static":
+              String name = sourceFile[i] + "." + index;
+              if (!statics.containsKey(name)) {
+                statics.put(name, 16 + statics.size());
+              }
+              address = statics.get(name);
+              break;
+            case "temp":
+              address = 5 + index;
+              break;
+            case "pointer":
+              address = 3 + index;
+              break;
+            default:
+              throw new IllegalArgumentException(String.format("%s: Unknown segment \"%s\"", where, segment));
+          }
+          op[i] = isPush ? PUSH_FIXED : isPop ? POP_FIXED : OPS.get(words[0]);
+          arg[i] = address;
+          break;
+        case "goto": case "if-goto":
+        case "if-lt": case "if-gt": case "if-eq": case "if-ge": case "if-le": case "if-ne":
+          Integer target = labels.get(prefix + "$" + words[1]);
+          if (target == null) {
+            throw new IllegalArgumentException(String.format("%s: No label %s in %s", where, words[1], prefix));
+          }
+          op[i] = words[0].equals("goto") ? GOTO : words[0].equals("if-goto") ? IF_GOTO : OPS.get(words[0]);
+          arg[i] = target;
+          break;
+        case "function":
+          op[i] = FUNCTION;
+          arg[i] = Integer.parseInt(words[2]);
+          break;
+        case "call":
+          Integer callee = functions.get(words[1]);
+          if (callee == null) {
+            throw new IllegalArgumentException(String.format("%s: No function %s", where, words[1]));
+          }
+          op[i] = CALL;
+          seg[i] = Integer.parseInt(words[2]);
+          arg[i] = callee;
+          break;
+        case "return":
+          op[i] = RETURN;
+          break;
+        case "return-void":
+          op[i] = RETURN_VOID;
+          break;
+        default:
+          Integer arithmetic = OPS.get(words[0]);
+          if (arithmetic == null || arithmetic > ASTORE) {
+            throw new IllegalArgumentException(String.format("%s: Unknown command \"%s\"", where, words[0]));
+          }
+          op[i] = arithmetic;
+          break;
+      }
+    }
+
+    Integer sysInit = functions.get("Sys.init");
+    if (sysInit != null) {
+      ram[SP] = 256;
+      call(sysInit, 0, size);
+    }
+  }
+
+  /**
+   * Makes a computer that runs the same program as another one, sharing the
+   * decoded commands. Its RAM is all zeros and its PC is 0
+   */
+  VMComputer(VMComputer program) {
+    op = program.op;
+    seg = program.seg;
+    arg = program.arg;
+    functionOf = program.functionOf;
+    functionNames = program.functionNames;
+    functions = program.functions;
+    functionStarts = program.functionStarts;
+    statics = program.statics;
+    sourceFile = program.sourceFile;
+    sourceIndex = program.sourceIndex;
+  }
+
+  /**
+   * Gets the number of commands in the program
+   */
+  public int getProgramSize() {
+    return op.length;
+  }
+
+  /**
+   * Gets a hash of the decoded program, to tell programs apart by (see
+   * Snapshot)
+   */
+  int getProgramHash() {
+    return (Arrays.hashCode(op) * 31 + Arrays.hashCode(seg)) * 31 + Arrays.hashCode(arg);
+  }
+
+  int getOp(int command) {
+    return op[command];
+  }
+
+  int getSegment(int command) {
+    return seg[command];
+  }
+
+  int getArgument(int command) {
+    return arg[command];
+  }
+
+  /**
+   * Gets the index of a function in the table of functions
+   * @return The index, or -1 if there's no such function
+   */
+  public int getFunction(String name) {
+    return functions.getOrDefault(name, -1);
+  }
+
+  public String getFunctionName(int function) {
+    return functionNames.get(function);
+  }
+
+  public int getFunctionCount() {
+    return functionNames.size();
+  }
+
+  /**
+   * Gets the index of the first command of a function (its
+   * <code>function</code> command)
+   */
+  public int getFunctionStart(int function) {
+    return functionStarts.get(function);
+  }
+
+  /**
+   * Gets the function that a command is in
+   * @return The index of the function, or -1 if the command comes before the
+   *         first function
+   */
+  public int getFunctionOf(int command) {
+    return functionOf[command];
+  }
+
+  /**
+   * Gets whether a function returns a value, going by its return commands
+   * @return 1 if it ends with <code>return</code>, 0 if it ends with
+   *         <code>return-void</code>, or -1 if it has both or neither
+   */
+  int getReturnKind(int function) {
+    int end = function + 1 < functionStarts.size() ? functionStarts.get(function + 1) : op.length;
+    int kind = -1;
+    for (int i = functionStarts.get(function); i < end; i++) {
+      if (op[i] == RETURN || op[i] == RETURN_VOID) {
+        int thisKind = op[i] == RETURN ? 1 : 0;
+        if (kind != -1 && kind != thisKind) {
+          return -1;
+        }
+        kind = thisKind;
+      }
+    }
+    return kind;
+  }
+
+  /**
+   * Gets the address of a static
+   * @param file The name of the file the static is in, without
+   *             <code>.vm</code>
+   * @param index Its index in the <code>static</code> segment
+   * @return The address, or -1 if the static is never used
+   */
+  public int getStaticAddress(String file, int index) {
+    return statics.getOrDefault(file + "." + index, -1);
+  }
+
+  /**
+   * Gets the name of the file (without <code>.vm</code>) that a command came
+   * from
+   */
+  public String getSourceFile(int command) {
+    return sourceFile[command];
+  }
+
+  /**
+   * Gets where a command is in the file it came from, counting from 0 and
+   * leaving out comments and blank lines
+   */
+  public int getSourceIndex(int command) {
+    return sourceIndex[command];
+  }
+
+  /**
+   * Whether the program has run off the end (which it does by returning from
+   * Sys.init, or from the last command of a program without one), or got into
+   * a loop that never ends, like the one in Sys.halt, or ran its stack past
+   * the end of RAM
+   */
+  public boolean isHalted() {
+    return pc >= op.length || pc == haltedAt;
+  }
+
+  /**
+   * Whether the program halted because a call or a function's locals would
+   * have gone past the end of RAM (like with recursion that never stops)
+   */
+  public boolean isStackOverflow() {
+    return stackOverflow;
+  }
+
+  /**
+   * Forgets where the program halted, for when its state is put back from
+   * outside
+   */
+  void clearHalted() {
+    haltedAt = -1;
+    stackOverflow = false;
+  }
+
+  /**
+   * Makes running stop when the PC gets to some command
+   * @param command The index of the command, or -1 for none
+   */
+  public void setBreakpoint(int command) {
+    breakpoint = command;
+  }
+
+  /**
+   * Sets the Java versions of OS functions to call instead of their VM code
+   * @param intrinsics The intrinsics, made for this computer, or null to run
+   *                   every function's VM code
+   */
+  public void setIntrinsics(VMIntrinsics intrinsics) {
+    this.intrinsics = intrinsics;
+  }
+
+  /**
+   * Turns skipping through idle loops (see IdleLoops) on or off. It doesn't
+   * change what a program does, or how many commands it takes, but it's off
+   * unless turned on, like it is for HackComputer
+   */
+  public void setIdleLoops(boolean on) {
+    idleLoops = on ? new IdleLoops.VM(this) : null;
+  }
+
+  public IdleLoops getIdleLoops() {
+    return idleLoops;
+  }
+
+  /**
+   * Sets a profiler to tell about every call and return
+   * @param profiler The profiler, made for this computer, or null for none
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+    if (profiler != null) {
+      profiler.arrive(pc, ram, steps);
+    }
+  }
+
+  /**
+   * Calls a function: pushes the return address and the segment pointers,
+   * and sets up the segments of the function
+   * @return Whether there was room on the stack for the call
+   */
+  private boolean call(int function, int argumentCount, int returnAddress) {
+    short[] ram = this.ram;
+    int sp = ram[SP];
+    if (sp < 0 || sp + 5 > HackComputer.ADDRESS_MASK) {
+      return false;
+    }
+    int arg = sp - argumentCount;
+    ram[sp] = (short) returnAddress;
+    ram[sp + 1] = ram[LCL];
+    ram[sp + 2] = ram[ARG];
+    ram[sp + 3] = ram[THIS];
+    ram[sp + 4] = ram[THAT];
+    ram[ARG] = (short) arg;
+    ram[LCL] = (short) (sp + 5);
+    ram[SP] = (short) (sp + 5);
+    pc = functionStarts.get(function);
+    return true;
+  }
+
+  /**
+   * Runs the program until it ends, hits the breakpoint, or has run some
+   * number of commands
+   * @param maxSteps The most commands to run
+   * @return The number of commands run
+   */
+  public long run(long maxSteps) {
+    final int[] op = this.op;
+    final int[] seg = this.seg;
+    final int[] arg = this.arg;
+    final short[] ram = this.ram;
+    final int mask = HackComputer.ADDRESS_MASK;
+    final int breakpoint = this.breakpoint;
+    final boolean countLines = profiler != null && profiler.countsLines();
+    final IdleLoops idleLoops = this.idleLoops;
+    int pc = this.pc;
+    int previous = pc;
+    long count = 0;
+    if (pc == haltedAt) {
+      return 0;
+    }
+
+    // A push or pop can only run off the end of RAM if the stack does, which
+    // halts the program like a call with no room left does
+    try {
+      running:
+      while (count < maxSteps && pc < op.length) {
+        if (pc == breakpoint && count > 0) {
+          break;
+        }
+        // A jump back, which might be to the start of an idle loop. A profiler
+        // has to see every command, so only halts are looked for then
+        if (pc <= previous && count > 0 && idleLoops != null && idleLoops.arrive(pc)) {
+          this.pc = pc;
+          long skipped = idleLoops.fastForward(pc, profiler == null ? maxSteps - count : 0, breakpoint);
+          if (skipped == IdleLoops.HALT) {
+            haltedAt = pc;
+            break;
+          }
+          count += skipped;
+          if (count >= maxSteps) {
+            break;
+          }
+        }
+        previous = pc;
+        count++;
+        if (countLines) {
+          profiler.countLine(pc);
+        }
+        int sp = ram[SP];
+        switch (op[pc]) {
+          case PUSH_CONSTANT:
+            ram[sp] = (short) arg[pc];
+            ram[SP] = (short) (sp + 1);
+            pc++;
+            break;
+          case PUSH_FIXED:
+            ram[sp] = ram[arg[pc]];
+            ram[SP] = (short) (sp + 1);
+            pc++;
+            break;
+          case PUSH_SEGMENT:
+            ram[sp] = ram[ram[seg[pc]] + arg[pc] & mask];
+            ram[SP] = (short) (sp + 1);
+            pc++;
+            break;
+          case POP_FIXED:
+            ram[SP] = (short) (sp - 1);
+            ram[arg[pc]] = ram[sp - 1];
+            pc++;
+            break;
+          case POP_SEGMENT: {
+            int address = ram[seg[pc]] + arg[pc] & mask;
+            ram[SP] = (short) (sp - 1);
+            ram[address] = ram[sp - 1];
+            pc++;
+            break;
+          }
+          case ADD:
+            ram[sp - 2] = (short) (ram[sp - 2] + ram[sp - 1]);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case SUB:
+            ram[sp - 2] = (short) (ram[sp - 2] - ram[sp - 1]);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case NEG:
+            ram[sp - 1] = (short) -ram[sp - 1];
+            pc++;
+            break;
+          // Comparisons subtract, and so overflow, like the Hack code does
+          case EQ:
+            ram[sp - 2] = (short) ((short) (ram[sp - 2] - ram[sp - 1]) == 0 ? -1 : 0);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case GT:
+            ram[sp - 2] = (short) ((short) (ram[sp - 2] - ram[sp - 1]) > 0 ? -1 : 0);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case LT:
+            ram[sp - 2] = (short) ((short) (ram[sp - 2] - ram[sp - 1]) < 0 ? -1 : 0);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case AND:
+            ram[sp - 2] = (short) (ram[sp - 2] & ram[sp - 1]);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case OR:
+            ram[sp - 2] = (short) (ram[sp - 2] | ram[sp - 1]);
+            ram[SP] = (short) (sp - 1);
+            pc++;
+            break;
+          case NOT:
+            ram[sp - 1] = (short) ~ram[sp - 1];
+            pc++;
+            break;
+          case ALOAD:
+            ram[SP] = (short) (sp - 1);
+            ram[sp - 2] = ram[ram[sp - 1] + ram[sp - 2] & mask];
+            pc++;
+            break;
+          case ASTORE:
+            ram[SP] = (short) (sp - 3);
+            ram[ram[sp - 2] + ram[sp - 3] & mask] = ram[sp - 1];
+            pc++;
+            break;
+          case INC:
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask]++;
+            pc++;
+            break;
+          case DEC:
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask]--;
+            pc++;
+            break;
+          case ADD_TO:
+            ram[SP] = (short) (sp - 1);
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask] += ram[sp - 1];
+            pc++;
+            break;
+          case SUB_TO:
+            ram[SP] = (short) (sp - 1);
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask] -= ram[sp - 1];
+            pc++;
+            break;
+          case AND_TO:
+            ram[SP] = (short) (sp - 1);
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask] &= ram[sp - 1];
+            pc++;
+            break;
+          case OR_TO:
+            ram[SP] = (short) (sp - 1);
+            ram[seg[pc] == 0 ? arg[pc] : ram[seg[pc]] + arg[pc] & mask] |= ram[sp - 1];
+            pc++;
+            break;
+          case GOTO:
+            pc = arg[pc];
+            break;
+          case IF_GOTO:
+            ram[SP] = (short) (sp - 1);
+            pc = ram[sp - 1] != 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_LT:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) < 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_GT:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) > 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_EQ:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) == 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_GE:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) >= 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_LE:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) <= 0 ? arg[pc] : pc + 1;
+            break;
+          case IF_NE:
+            ram[SP] = (short) (sp - 2);
+            pc = (short) (ram[sp - 2] - ram[sp - 1]) != 0 ? arg[pc] : pc + 1;
+            break;
+          case FUNCTION:
+            if (sp + arg[pc] > mask) {
+              haltedAt = pc;
+              stackOverflow = true;
+              count--;
+              break running;
+            }
+            for (int i = 0; i < arg[pc]; i++) {
+              ram[sp + i] = 0;
+            }
+            ram[SP] = (short) (sp + arg[pc]);
+            pc++;
+            break;
+          case CALL:
+            this.pc = pc;
+            // An intrinsic takes the place of the whole call, unless it turns
+            // it down
+            if (intrinsics != null && intrinsics.call(arg[pc], seg[pc])) {
+              pc++;
+              break;
+            }
+            if (!call(arg[pc], seg[pc], pc + 1)) {
+              haltedAt = pc;
+              stackOverflow = true;
+              count--;
+              break running;
+            }
+            pc = this.pc;
+            if (profiler != null) {
+              profiler.arrive(pc, ram, steps + count);
+            }
+            break;
+          case RETURN: case RETURN_VOID: {
+            boolean hasValue = op[pc] == RETURN;
+            int frame = ram[LCL];
+            int value = ram[sp - 1];
+            int arg0 = ram[ARG];
+            ram[THAT] = ram[frame - 1 & mask];
+            ram[THIS] = ram[frame - 2 & mask];
+            ram[ARG] = ram[frame - 3 & mask];
+            ram[LCL] = ram[frame - 4 & mask];
+            pc = ram[frame - 5 & mask] & 0xFFFF;
+            // The return value goes where the first argument was
+            if (hasValue) {
+              ram[arg0 & mask] = (short) value;
+              ram[SP] = (short) (arg0 + 1);
+            } else {
+              ram[SP] = (short) arg0;
+            }
+            if (profiler != null) {
+              profiler.arrive(pc, ram, steps + count);
+            }
+            break;
+          }
+          default:
+            throw new IllegalStateException("Bad command at " + pc);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      haltedAt = pc;
+      stackOverflow = true;
+      count--;
+    }
+
+    this.pc = pc;
+    steps += count;
+    return count;
+  }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs VM code (a <code>.vm</code> file, or a directory of them) on
+ * VMComputer, and prints how long it took along with whatever parts of RAM
+ * were asked for.
+ *
+ * The program runs until it ends, until it has run -steps commands, or with
+ * -until, until it gets to a function (e.g. Sys.halt). With -idle, loops that
+ * only wait, like the ones in Sys.wait and Sys.halt, are skipped through (see
+ * IdleLoops), so a program that ends in Sys.halt ends.
+ * -restore starts the program from a snapshot, and -save writes one of where
+ * it stopped (see Snapshot).
+ *
+ * With -intrinsics, calls to the slowest OS functions run Java versions of them
+ * instead of their VM code (see VMIntrinsics), so that the time spent in the
+ * program's own code stands out. -check does the same, but also runs the VM
+ * code of every such call on the side and stops at the first one that doesn't
+ * leave RAM the same.
+ *
+ * -profile and -flamegraph print the functions the program spent the most
+ * time in, and write a profile or collapsed stacks (see Profiler). They also
+ * print the lines of Jack code that took the most time, if the VM files were
+ * compiled with JackCompiler -map, or the VM commands if not.
+ */
+public class VMEmulator {
+  private static void printIncorrectUsage() {
+    System.out.println("Usage:\n\n\tVMEmulator [-steps n] [-until function] [-intrinsics | -check] [-idle] [-restore file] [-save file] [-profile file] [-flamegraph file] [-ram from[-to]]... source\n\nWhere source is either a VM file or a directory containing VM files\n");
+  }
+
+  public static void main(String[] args) {
+    String source = null;
+    long maxSteps = Long.MAX_VALUE;
+    String until = null;
+    boolean intrinsics = false;
+    boolean check = false;
+    boolean idleLoops = false;
+    List<int[]> ramRanges = new ArrayList<int[]>();
+    String profileFile = null;
+    String flameGraphFile = null;
+    String restoreFile = null;
+    String saveFile = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-steps") && i + 1 < args.length) {
+        maxSteps = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-until") && i + 1 < args.length) {
+        until = args[++i];
+      } else if (args[i].equals("-intrinsics")) {
+        intrinsics = true;
+      } else if (args[i].equals("-check")) {
+        intrinsics = true;
+        check = true;
+      } else if (args[i].equals("-idle")) {
+        idleLoops = true;
+      } else if (args[i].equals("-profile") && i + 1 < args.length) {
+        profileFile = args[++i];
+      } else if (args[i].equals("-flamegraph") && i + 1 < args.length) {
+        flameGraphFile = args[++i];
+      } else if (args[i].equals("-restore") && i + 1 < args.length) {
+        restoreFile = args[++i];
+      } else if (args[i].equals("-save") && i + 1 < args.length) {
+        saveFile = args[++i];
+      } else if (args[i].equals("-ram") && i + 1 < args.length) {
+        String[] range = args[++i].split("-");
+        int from = Integer.parseInt(range[0]);
+        ramRanges.add(new int[] { from, range.length > 1 ? Integer.parseInt(range[1]) : from });
+      } else {
+        source = args[i];
+      }
+    }
+    if (source == null) {
+      printIncorrectUsage();
+      return;
+    }
+
+    VMComputer computer;
+    try {
+      computer = new VMComputer(VMComputer.vmFiles(Paths.get(source)));
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error in loading program");
+      e.printStackTrace();
+      return;
+    }
+    computer.setIdleLoops(idleLoops);
+    if (restoreFile != null) {
+      try {
+        Snapshot.restore(computer, Paths.get(restoreFile));
+      } catch (IOException e) {
+        System.out.println("Error in restoring the snapshot: " + e.getMessage());
+        return;
+      }
+    }
+    if (until != null) {
+      int function = computer.getFunction(until);
+      if (function == -1) {
+        System.out.println(String.format("No function %s in the program", until));
+        return;
+      }
+      computer.setBreakpoint(computer.getFunctionStart(function));
+    }
+
+    VMIntrinsics os = null;
+    if (intrinsics) {
+      os = new VMIntrinsics(computer, check);
+      computer.setIntrinsics(os);
+    }
+
+    Profiler profiler = null;
+    if (profileFile != null || flameGraphFile != null) {
+      profiler = Profiler.forVM(computer);
+      try {
+        Path directory = Paths.get(source).toAbsolutePath();
+        profiler.setSourceLines(Profiler.vmSourceLines(computer,
+            Files.isDirectory(directory) ? directory : directory.getParent()));
+      } catch (IOException e) {
+        System.out.println("Error in reading the source maps");
+        e.printStackTrace();
+        return;
+      }
+      computer.setProfiler(profiler);
+    }
+
+    long start = System.nanoTime();
+    long ran = 0;
+    try {
+      ran = computer.run(maxSteps);
+    } catch (IllegalStateException e) {
+      System.out.println("Check failed: " + e.getMessage());
+      System.exit(1);
+    }
+    long time = System.nanoTime() - start;
+
+    System.out.println(String.format("%d commands, ran %d in %d ms (%.0f million per second)%s",
+        computer.getProgramSize(), ran, time / 1000000, ran * 1000.0 / Math.max(time, 1),
+        computer.isStackOverflow() ? ", stack overflow" : computer.isHalted() ? ", ended" : ""));
+    if (saveFile != null) {
+      try {
+        Snapshot.save(computer, Paths.get(saveFile));
+      } catch (IOException e) {
+        System.out.println("Error in saving the snapshot");
+        e.printStackTrace();
+      }
+    }
+    if (os != null) {
+      System.out.println(String.format("%d intrinsics took %d calls and turned down %d%s", os.getIntrinsicCount(),
+          os.getCalls(), os.getDeclined(),
+          check ? String.format(", all the same as the VM code (which took %d commands)", os.getCheckedSteps()) : ""));
+    }
+    if (computer.getIdleLoops() != null && computer.getIdleLoops().getFastForwards() > 0) {
+      System.out.println(String.format("%d idle loops skipped through, %d commands skipped",
+          computer.getIdleLoops().getFastForwards(), computer.getIdleLoops().getSkipped()));
+    }
+    if (profiler != null) {
+      profiler.stop(computer.steps);
+      profiler.printReport(System.out, 20);
+      try {
+        if (profileFile != null) {
+          profiler.writeProfile(Paths.get(profileFile));
+        }
+        if (flameGraphFile != null) {
+          profiler.writeCollapsedStacks(Paths.get(flameGraphFile));
+        }
+      } catch (IOException e) {
+        System.out.println("Error in writing the profile");
+        e.printStackTrace();
+      }
+    }
+    for (int[] range : ramRanges) {
+      StringBuilder values = new StringBuilder();
+      for (int address = range[0]; address <= range[1]; address++) {
+        values.append(' ').append(computer.ram[address]);
+      }
+      System.out.println(String.format("RAM[%d-%d]:%s", range[0], range[1], values));
+    }
+  }
+}
@@ -0,0 +1,507 @@
+import java.util.Arrays;
+
+/**
+ * Java versions of the OS functions of project 12 that Jack programs spend
+ * most of their time in: Math.multiply, Math.divide and Math.sqrt,
+ * Memory.alloc, and Screen.drawPixel, Screen.drawLine and
+ * Screen.drawRectangle. When VMComputer is given these, a call to one of the
+ * functions runs the Java version on the emulator's RAM instead of the
+ * function's VM code, and counts as one step.
+ * <p>
+ * They leave RAM exactly the way the VM code would, down to where
+ * Memory.alloc puts each block, as long as the OS is set up the way its init
+ * functions leave it. So each one first checks that it is: that the tables of
+ * powers of two are in place, that the screen is where it should be, that the
+ * free list doesn't run into the stack, and so on. If anything is off, or the
+ * arguments are ones the VM code wouldn't return from (like dividing by 0),
+ * the intrinsic turns the call down and the VM code runs as usual. The only
+ * things left different are the temp segment, the stack past SP and what the
+ * void Screen functions return, none of which any caller reads.
+ * <p>
+ * With checking on, every call that an intrinsic takes is also run through
+ * the VM code on a copy of RAM, and the two are compared.
+ */
+public class VMIntrinsics {
+  private static final int MULTIPLY = 1;
+  private static final int DIVIDE = 2;
+  private static final int SQRT = 3;
+  private static final int ALLOC = 4;
+  private static final int DRAW_PIXEL = 5;
+  private static final int DRAW_LINE = 6;
+  private static final int DRAW_RECTANGLE = 7;
+
+  private static final String[] NAMES = { null, "Math.multiply", "Math.divide", "Math.sqrt", "Memory.alloc",
+      "Screen.drawPixel", "Screen.drawLine", "Screen.drawRectangle" };
+  private static final int[] ARGUMENT_COUNTS = { 0, 2, 2, 1, 1, 2, 4, 4 };
+
+  /**
+   * What an intrinsic returns when it turns a call down
+   */
+  private static final int DECLINED = Integer.MIN_VALUE;
+
+  private static final int SP = 0;
+  private static final int LCL = 1;
+  private static final int MASK = HackComputer.ADDRESS_MASK;
+
+  /**
+   * Where the heap starts. Everything under it is registers, statics and the
+   * stack
+   */
+  private static final int HEAP = 2048;
+  private static final int SCREEN = 16384;
+
+  /**
+   * The most blocks Memory.alloc looks through before deciding that the free
+   * list has a loop in it
+   */
+  private static final int MAX_BLOCKS = SCREEN - HEAP;
+
+  /**
+   * The most commands the VM code of a function gets to return in when
+   * checking
+   */
+  private static final long MAX_CHECK_STEPS = 1000000000;
+
+  private final VMComputer computer;
+  private final short[] ram;
+
+  /**
+   * The intrinsic for each function in the computer's table of functions, or
+   * 0 for none
+   */
+  private final int[] intrinsicOf;
+  private final boolean[] returnsValue;
+  private int intrinsicCount;
+
+  // The addresses of the OS's statics, or -1 for those that aren't used
+  private final int mathTwoToThe;
+  private final int memoryFreeList;
+  private final int screenColor;
+  private final int screenAddress;
+  private final int screenTwoToThe;
+
+  /**
+   * What the VM code is run on when checking, or null when not checking
+   */
+  private final VMComputer reference;
+
+  private long calls;
+  private long declined;
+
+  /**
+   * Makes the intrinsics for a computer's program, for those of the functions
+   * the program has
+   * @param computer The computer, which still needs to be given these with
+   *                 setIntrinsics()
+   * @param check Whether to check every call against the VM code
+   */
+  public VMIntrinsics(VMComputer computer, boolean check) {
+    this.computer = computer;
+    ram = computer.ram;
+    reference = check ? new VMComputer(computer) : null;
+
+    mathTwoToThe = computer.getStaticAddress("Math", 0);
+    memoryFreeList = computer.getStaticAddress("Memory", 1);
+    screenColor = computer.getStaticAddress("Screen", 0);
+    screenAddress = computer.getStaticAddress("Screen", 1);
+    screenTwoToThe = computer.getStaticAddress("Screen", 2);
+
+    intrinsicOf = new int[computer.getFunctionCount()];
+    returnsValue = new boolean[computer.getFunctionCount()];
+    for (int intrinsic = 1; intrinsic < NAMES.length; intrinsic++) {
+      int function = computer.getFunction(NAMES[intrinsic]);
+      if (function == -1 || computer.getReturnKind(function) == -1) {
+        continue;
+      }
+      boolean hasStatics;
+      switch (intrinsic) {
+        case ALLOC:
+          hasStatics = memoryFreeList != -1;
+          break;
+        case DRAW_PIXEL: case DRAW_LINE: case DRAW_RECTANGLE:
+          hasStatics = screenColor != -1 && screenAddress != -1 && screenTwoToThe != -1;
+          break;
+        default:
+          hasStatics = mathTwoToThe != -1;
+          break;
+      }
+      if (hasStatics) {
+        intrinsicOf[function] = intrinsic;
+        returnsValue[function] = computer.getReturnKind(function) == 1;
+        intrinsicCount++;
+      }
+    }
+  }
+
+  /**
+   * Gets the number of the OS functions that the program has and that have
+   * intrinsics
+   */
+  public int getIntrinsicCount() {
+    return intrinsicCount;
+  }
+
+  /**
+   * Gets the number of calls that intrinsics took
+   */
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * Gets the number of calls that intrinsics turned down
+   */
+  public long getDeclined() {
+    return declined;
+  }
+
+  /**
+   * Gets the number of commands that the VM code took for the calls that were
+   * checked, which is what the intrinsics saved
+   */
+  public long getCheckedSteps() {
+    return reference == null ? 0 : reference.steps;
+  }
+
+  /**
+   * Calls the intrinsic for a function, if it has one. The PC of the computer
+   * has to be at the call
+   * @param function The function's index in the table of functions
+   * @param argumentCount The number of arguments on the stack
+   * @return Whether the intrinsic took the call, in which case the arguments
+   *         have been replaced by the return value like a return would
+   * @throws IllegalStateException If checking, and the VM code leaves RAM
+   *                               some other way
+   */
+  boolean call(int function, int argumentCount) {
+    int intrinsic = intrinsicOf[function];
+    if (intrinsic == 0 || argumentCount != ARGUMENT_COUNTS[intrinsic]) {
+      return false;
+    }
+    int first = ram[SP] - argumentCount;
+    int[] args = new int[argumentCount];
+    for (int i = 0; i < argumentCount; i++) {
+      args[i] = ram[first + i & MASK];
+    }
+    if (reference != null) {
+      System.arraycopy(ram, 0, reference.ram, 0, ram.length);
+      reference.pc = computer.pc;
+    }
+
+    int result;
+    switch (intrinsic) {
+      case MULTIPLY:
+        result = mathIsSetUp() ? (short) (args[0] * args[1]) : DECLINED;
+        break;
+      case DIVIDE:
+        result = mathIsSetUp() ? divide(args[0], args[1]) : DECLINED;
+        break;
+      case SQRT:
+        result = mathIsSetUp() ? sqrt(args[0]) : DECLINED;
+        break;
+      case ALLOC:
+        result = alloc(args[0]);
+        break;
+      case DRAW_PIXEL:
+        result = screenIsSetUp() && isDrawable(args[0], args[1]) ? drawPixel(args[0], args[1]) : DECLINED;
+        break;
+      case DRAW_LINE:
+        result = screenIsSetUp() && isDrawable(args[0], args[1]) && isDrawable(args[2], args[3])
+            ? drawLine(args[0], args[1], args[2], args[3])
+            : DECLINED;
+        break;
+      default:
+        result = screenIsSetUp() && isDrawable(args[0], args[1]) && isDrawable(args[2], args[3])
+            ? drawRectangle(args[0], args[1], args[2], args[3])
+            : DECLINED;
+        break;
+    }
+    if (result == DECLINED) {
+      declined++;
+      return false;
+    }
+    calls++;
+
+    // Return the way the function's own return command does
+    if (returnsValue[function]) {
+      ram[first & MASK] = (short) result;
+      ram[SP] = (short) (first + 1);
+    } else {
+      ram[SP] = (short) first;
+    }
+    if (reference != null) {
+      check(function, args);
+    }
+    return true;
+  }
+
+  /**
+   * Runs the VM code of a call that an intrinsic took on the copy of RAM, and
+   * compares the two
+   */
+  private void check(int function, int[] args) {
+    int pc = computer.pc;
+    String call = String.format("%s(%s) at %s.vm, command %d", NAMES[intrinsicOf[function]],
+        Arrays.toString(args).replaceAll("[\\[\\]]", ""), computer.getSourceFile(pc),
+        computer.getSourceIndex(pc) + 1);
+
+    // The call has returned once the PC is back after it, in the same frame
+    int lcl = reference.ram[LCL];
+    long stepsLeft = MAX_CHECK_STEPS;
+    reference.setBreakpoint(pc + 1);
+    while (reference.pc != pc + 1 || reference.ram[LCL] != lcl) {
+      if (stepsLeft <= 0 || reference.isHalted()) {
+        throw new IllegalStateException(call + " took, but the VM code doesn't return");
+      }
+      stepsLeft -= reference.run(stepsLeft);
+    }
+
+    // Compare everything but the temp segment and the stack past SP. The
+    // Screen functions are void, so what they return is thrown away by the
+    // caller, and without return-void it's whatever was left on their stack
+    int sp = ram[SP] & MASK;
+    int end = intrinsicOf[function] >= DRAW_PIXEL && returnsValue[function] ? sp - 1 : sp;
+    int[][] ranges = { { 0, 5 }, { 16, Math.max(end, 16) }, { HEAP, ram.length } };
+    for (int[] range : ranges) {
+      int mismatch = Arrays.mismatch(ram, range[0], range[1], reference.ram, range[0], range[1]);
+      if (mismatch != -1) {
+        int address = range[0] + mismatch;
+        throw new IllegalStateException(String.format("%s left RAM[%d] = %d, but the VM code leaves %d", call,
+            address, ram[address], reference.ram[address]));
+      }
+    }
+  }
+
+  /**
+   * Whether 16 words starting at the address in a static are the powers of
+   * two, which is how Math.init and Screen.init leave their twoToThe
+   */
+  private boolean isPowersOfTwo(int pointer) {
+    int table = ram[pointer];
+    if (table < HEAP || table > ram.length - 16) {
+      return false;
+    }
+    for (int i = 0; i < 16; i++) {
+      if (ram[table + i] != (short) (1 << i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether Math is set up. With its powers of two in place, Math.multiply
+   * works out to the product of its arguments on 16 bits, overflow and all
+   */
+  private boolean mathIsSetUp() {
+    return isPowersOfTwo(mathTwoToThe);
+  }
+
+  /**
+   * Whether Screen is set up. Math has to be as well, since drawPixel divides
+   * and multiplies
+   */
+  private boolean screenIsSetUp() {
+    return ram[screenAddress] == SCREEN && isPowersOfTwo(screenTwoToThe)
+        && (mathTwoToThe == -1 || mathIsSetUp());
+  }
+
+  /**
+   * Whether a pixel is on the screen, or under it in the rows down to the end
+   * of RAM (where clearScreen draws too, having its width and height the
+   * wrong way around)
+   */
+  private static boolean isDrawable(int x, int y) {
+    return x >= 0 && x < 512 && y >= 0 && y < 512;
+  }
+
+  /**
+   * Compares two numbers the way the VM does, by subtracting
+   */
+  private static boolean isGreater(int a, int b) {
+    return (short) (a - b) > 0;
+  }
+
+  private static boolean isLess(int a, int b) {
+    return (short) (a - b) < 0;
+  }
+
+  private static int abs(int x) {
+    return x < 0 ? (short) -x : x;
+  }
+
+  /**
+   * Math.divide, which halves its way down recursively
+   */
+  private static int divide(int x, int y) {
+    boolean isNeg = (x < 0 && y > 0) || (x > 0 && y < 0);
+    x = abs(x);
+    y = abs(y);
+    if (isGreater(y, x)) {
+      return 0;
+    }
+    // Doubling y ends up at 0 if it overflows, and from there the VM code
+    // recurses until the stack runs over everything
+    if (y == 0) {
+      return DECLINED;
+    }
+    int q = divide(x, (short) (y + y));
+    if (q == DECLINED) {
+      return DECLINED;
+    }
+    int halfX = (short) (q * y);
+    int result = isLess((short) (x - (short) (halfX + halfX)), y) ? (short) (q + q) : (short) (q + q + 1);
+    return isNeg ? (short) -result : result;
+  }
+
+  /**
+   * Math.sqrt, which finds the root a bit at a time from the 8th bit down
+   */
+  private static int sqrt(int x) {
+    int y = 0;
+    for (int j = 7; j >= 0; j--) {
+      int newEstimate = y + (1 << j);
+      int sqr = (short) (newEstimate * newEstimate);
+      if (!isGreater(sqr, x) && sqr > 0) {
+        y = newEstimate;
+      }
+    }
+    return y;
+  }
+
+  /**
+   * Whether an address is in the heap or past it, where the VM code of the OS
+   * can't be touching anything of its own
+   */
+  private static boolean isOutsideStack(int address) {
+    return (address & MASK) >= HEAP;
+  }
+
+  /**
+   * Memory.alloc, which takes the first block in the free list bigger than
+   * size + 4 and cuts the new block off the start of it. RAM is read and
+   * written in the same order as the VM code does, in case blocks overlap
+   */
+  private int alloc(int size) {
+    int freeList = ram[memoryFreeList];
+    int block = freeList;
+    int last = block;
+    for (int i = 0; ; i++) {
+      // Past the end of the list, the VM code goes on into the registers
+      if (i > MAX_BLOCKS || !isOutsideStack(block) || !isOutsideStack(block + 1)) {
+        return DECLINED;
+      }
+      if (isGreater(ram[block & MASK], (short) (size + 4))) {
+        break;
+      }
+      last = block;
+      block = ram[block + 1 & MASK];
+    }
+
+    int next = (short) (block + 2 + size);
+    if (!isOutsideStack(next) || !isOutsideStack(next + 1) || !isOutsideStack(last + 1)) {
+      return DECLINED;
+    }
+    if (last == freeList && block == freeList) {
+      ram[memoryFreeList] = (short) next;
+      ram[next & MASK] = (short) (ram[block & MASK] - (2 + size));
+      ram[next + 1 & MASK] = ram[block + 1 & MASK];
+    } else {
+      ram[next & MASK] = (short) (ram[block & MASK] - (2 + size));
+      ram[next + 1 & MASK] = ram[block + 1 & MASK];
+      ram[last + 1 & MASK] = (short) next;
+    }
+    return (short) (block + 2);
+  }
+
+  /**
+   * Screen.drawPixel, for a drawable pixel
+   */
+  private int drawPixel(int x, int y) {
+    int address = SCREEN + y * 32 + x / 16;
+    if (ram[screenColor] != 0) {
+      ram[address] |= 1 << (x & 15);
+    } else {
+      ram[address] &= ~(1 << (x & 15));
+    }
+    return 0;
+  }
+
+  /**
+   * Screen.drawLine, for a line between drawable pixels. Like the VM code, it leaves
+   * off the last pixel of vertical and horizontal lines
+   */
+  private int drawLine(int x1, int y1, int x2, int y2) {
+    if (x1 > x2) {
+      int x = x1;
+      x1 = x2;
+      x2 = x;
+      int y = y1;
+      y1 = y2;
+      y2 = y;
+    }
+    int dx = x2 - x1;
+    int dy = y2 - y1;
+    int a = 0;
+    int b = 0;
+    if (dx == 0) {
+      if (dy > 0) {
+        for (; b < dy; b++) {
+          drawPixel(x1, y1 + b);
+        }
+      } else {
+        for (; b > dy; b--) {
+          drawPixel(x1, y1 + b);
+        }
+      }
+    } else if (dy == 0) {
+      for (; a < dx; a++) {
+        drawPixel(x1 + a, y1);
+      }
+    } else if (dy > 0) {
+      int aDyMinusbDx = 0;
+      while (a <= dx && b <= dy) {
+        drawPixel(x1 + a, y1 + b);
+        if (aDyMinusbDx < 0) {
+          a++;
+          aDyMinusbDx += dy;
+        } else {
+          b++;
+          aDyMinusbDx -= dx;
+        }
+      }
+    } else {
+      int aDyMinusbDx = 0;
+      while (a <= dx && b >= dy) {
+        drawPixel(x1 + a, y1 + b);
+        if (aDyMinusbDx < 0) {
+          a++;
+          aDyMinusbDx -= dy;
+        } else {
+          b--;
+          aDyMinusbDx -= dx;
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Screen.drawRectangle, for a rectangle between drawable pixels, which is drawn as
+   * lines along its longer side
+   */
+  private int drawRectangle(int x1, int y1, int x2, int y2) {
+    int width = x2 - x1;
+    int height = y2 - y1;
+    if (width > height) {
+      for (int line = 0; line < height; line++) {
+        drawLine(x1, y1 + line, x2, y1 + line);
+      }
+    } else {
+      for (int line = 0; line < width; line++) {
+        drawLine(x1 + line, y1, x1 + line, y2);
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Runs the scripts written for the VM emulator of the course, which load a
+ * <code>.vm</code> file or a directory of them and step it with
+ * <code>vmstep</code>.
+ */
+public class VMSimulator implements Simulator {
+  /**
+   * The variables for the segment pointers
+   */
+  private static final Map<String, Integer> POINTERS = Map.of("sp", 0, "local", 1, "argument", 2, "this", 3,
+      "that", 4);
+
+  private VMComputer computer;
+
+  @Override
+  public void load(Path source) throws IOException {
+    computer = new VMComputer(VMComputer.vmFiles(source));
+  }
+
+  /**
+   * Gets the address of a variable: a segment pointer (<code>sp</code>,
+   * <code>local</code>, etc.), an element of a segment (like
+   * <code>argument[1]</code>), or <code>RAM[n]</code>
+   */
+  private int address(String variable) {
+    Integer pointer = POINTERS.get(variable);
+    if (pointer != null) {
+      return pointer;
+    }
+    int bracket = variable.indexOf('[');
+    if (bracket == -1 || !variable.endsWith("]")) {
+      throw new IllegalArgumentException("Unknown variable " + variable);
+    }
+    String segment = variable.substring(0, bracket);
+    int index = Integer.parseInt(variable.substring(bracket + 1, variable.length() - 1));
+    switch (segment) {
+      case "RAM":
+        return index & HackComputer.ADDRESS_MASK;
+      case "temp":
+        return 5 + index;
+      case "pointer":
+        return 3 + index;
+      default:
+        pointer = POINTERS.get(segment);
+        if (pointer == null || pointer == 0) {
+          throw new IllegalArgumentException("Unknown variable " + variable);
+        }
+        return computer.ram[pointer] + index & HackComputer.ADDRESS_MASK;
+    }
+  }
+
+  @Override
+  public void set(String variable, int value) {
+    computer.ram[address(variable)] = (short) value;
+  }
+
+  @Override
+  public int get(String variable) {
+    return computer.ram[address(variable)];
+  }
+
+  @Override
+  public boolean step(String command, long times) {
+    if (!command.equals("vmstep")) {
+      return false;
+    }
+    // Once the program has run off the end, stepping does nothing
+    computer.run(times);
+    return true;
+  }
+
+  @Override
+  public void save(Path file) throws IOException {
+    Snapshot.save(computer, file);
+  }
+
+  @Override
+  public void restore(Path file) throws IOException {
+    Snapshot.restore(computer, file);
+  }
+}